@@ -0,0 +1,129 @@
+import java.util.concurrent.atomic.* ;
+
+/**
+ * Decides whether a new call may enter the system, based on the number of calls in progress
+ * and the number of recordings still waiting to be stored. Counts every call it sheds.
+ */
+public class AdmissionControl
+{
+	private final DepositQueue deposits ;
+	private final int maximumSessions ;
+	private final int maximumPendingDeposits ;
+	private final AtomicInteger sessions ;
+	private final AtomicLong admittedCount ;
+	private final AtomicLong shedForSessionsCount ;
+	private final AtomicLong shedForDepositsCount ;
+	
+	public static final int DEFAULT_MAXIMUM_SESSIONS = 32 ;
+	public static final int DEFAULT_MAXIMUM_PENDING_DEPOSITS = DepositQueue.DEFAULT_CAPACITY / 2 ;
+	
+	/**
+	 * Constructs an admission control with the default limits.
+	 * @param d the deposit queue whose backlog is watched
+	 */
+	public AdmissionControl(DepositQueue d)
+	{
+		this(d, DEFAULT_MAXIMUM_SESSIONS, DEFAULT_MAXIMUM_PENDING_DEPOSITS) ;
+	}
+	
+	/**
+	 * Constructs an admission control with supplied limits.
+	 * @param d the deposit queue whose backlog is watched
+	 * @param maxSessions the maximum number of calls in progress
+	 * @param maxPendingDeposits the maximum number of recordings waiting to be stored before new calls are shed
+	 * @precondition maxSessions > 0 && maxPendingDeposits > 0
+	 */
+	public AdmissionControl(DepositQueue d, int maxSessions, int maxPendingDeposits)
+	{
+		assert(maxSessions > 0 && maxPendingDeposits > 0) : "Limits must be bigger than 0!" ;
+		deposits = d ;
+		maximumSessions = maxSessions ;
+		maximumPendingDeposits = maxPendingDeposits ;
+		sessions = new AtomicInteger() ;
+		admittedCount = new AtomicLong() ;
+		shedForSessionsCount = new AtomicLong() ;
+		shedForDepositsCount = new AtomicLong() ;
+	}
+	
+	/**
+	 * Tries to admit a new call. An admitted call must be released when it ends.
+	 * @return true if the call is admitted, false if the system is busy
+	 */
+	public boolean tryAdmit()
+	{
+		if (deposits.pending() >= maximumPendingDeposits)
+		{
+			shedForDepositsCount.incrementAndGet() ;
+			return false;
+		}
+		
+		int n ;
+		do
+		{
+			n = sessions.get() ;
+			if (n >= maximumSessions)
+			{
+				shedForSessionsCount.incrementAndGet() ;
+				return false;
+			}
+		}
+		while (!sessions.compareAndSet(n, n + 1)) ;
+		admittedCount.incrementAndGet() ;
+		return true;
+	}
+	
+	/**
+	 * Releases a call previously admitted by tryAdmit().
+	 * @precondition getInFlightSessions() > 0
+	 */
+	public void release()
+	{
+		int n = sessions.decrementAndGet() ;
+		assert(n >= 0) : "No call to be released!" ;
+	}
+	
+	/**
+	 * Gets the number of calls currently in progress.
+	 * @return the number of admitted calls not released yet
+	 */
+	public int getInFlightSessions()
+	{
+		return sessions.get();
+	}
+	
+	/**
+	 * Gets the number of recordings currently waiting to be stored.
+	 * @return the number of pending deposits
+	 */
+	public int getPendingDeposits()
+	{
+		return deposits.pending();
+	}
+	
+	/**
+	 * Gets the total number of calls admitted so far.
+	 * @return the number of admitted calls
+	 */
+	public long getAdmittedCount()
+	{
+		return admittedCount.get();
+	}
+	
+	/**
+	 * Gets the total number of calls shed because too many calls were in progress.
+	 * @return the number of calls shed for sessions
+	 */
+	public long getShedForSessionsCount()
+	{
+		return shedForSessionsCount.get();
+	}
+	
+	/**
+	 * Gets the total number of calls shed because too many recordings were waiting to be stored.
+	 * @return the number of calls shed for deposits
+	 */
+	public long getShedForDepositsCount()
+	{
+		return shedForDepositsCount.get();
+	}
+}
@@ -0,0 +1,157 @@
+import java.io.* ;
+import java.nio.ByteBuffer ;
+import java.util.* ;
+
+/**
+ * Recorded telephone audio, kept as a list of fixed-size chunks so that it can be recorded
+ * frame by frame and played chunk by chunk without ever being copied into one large array.
+ * The audio is 8 kHz, 16-bit, mono, signed little-endian PCM.
+ */
+public class AudioClip implements Serializable
+{
+	private transient ArrayList<ByteBuffer> chunks ;
+	private long length ;
+	
+	public static final int CHUNK_BYTES = 4096 ;
+	public static final float SAMPLE_RATE = 8000 ;
+	public static final int BYTES_PER_SECOND = 16000 ;
+	
+	private static final long serialVersionUID = 1L ;
+	
+	/**
+	 * Constructs an empty clip.
+	 */
+	public AudioClip()
+	{
+		chunks = new ArrayList<ByteBuffer>() ;
+		length = 0 ;
+	}
+	
+	/**
+	 * Appends the remaining bytes of a recorded frame to the end of the clip.
+	 * @param frame the frame, which is read but not kept
+	 */
+	public void append(ByteBuffer frame)
+	{
+		ByteBuffer source = frame.duplicate() ;
+		while (source.hasRemaining())
+		{
+			if (chunks.isEmpty() || !chunks.get(chunks.size() - 1).hasRemaining())
+				chunks.add(ByteBuffer.allocate(CHUNK_BYTES)) ;
+			ByteBuffer last = chunks.get(chunks.size() - 1) ;
+			int n = Math.min(source.remaining(), last.remaining()) ;
+			ByteBuffer slice = source.duplicate() ;
+			slice.limit(slice.position() + n) ;
+			last.put(slice) ;
+			source.position(source.position() + n) ;
+			length += n ;
+		}
+	}
+	
+	/**
+	 * Gets the number of bytes in the clip.
+	 * @return the clip length in bytes
+	 */
+	public long length()
+	{
+		return length;
+	}
+	
+	/**
+	 * Checks whether anything has been recorded.
+	 * @return true if the clip is empty
+	 */
+	public boolean isEmpty()
+	{
+		return length == 0;
+	}
+	
+	/**
+	 * Gets the number of chunks in the clip.
+	 * @return the chunk count
+	 */
+	public int chunkCount()
+	{
+		return chunks.size();
+	}
+	
+	/**
+	 * Gets the chunks of the clip in order, as read-only views that share the recorded bytes.
+	 * @return an iterator over the chunks
+	 */
+	public Iterator<ByteBuffer> chunks()
+	{
+		final Iterator<ByteBuffer> i = chunks.iterator() ;
+		return new 
+			Iterator<ByteBuffer>()
+			{
+				public boolean hasNext()
+				{
+					return i.hasNext();
+				}
+				
+				public ByteBuffer next()
+				{
+					ByteBuffer b = i.next().asReadOnlyBuffer() ;
+					b.flip() ;
+					return b;
+				}
+			};
+	}
+	
+	/**
+	 * Gets the duration of the clip.
+	 * @return the duration in seconds
+	 */
+	public double seconds()
+	{
+		return (double) length / BYTES_PER_SECOND;
+	}
+	
+	/**
+	 * Describes the clip for display on the phone's speaker.
+	 * @return a short description
+	 */
+	public String describe()
+	{
+		return String.format("[Voice recording, %.1f seconds]%n", seconds());
+	}
+	
+	/**
+	 * Writes the clip chunk by chunk.
+	 * @param out the stream the clip is written to
+	 */
+	private void writeObject(ObjectOutputStream out) throws IOException
+	{
+		out.defaultWriteObject() ;
+		out.writeInt(chunks.size()) ;
+		Iterator<ByteBuffer> i = chunks() ;
+		while (i.hasNext())
+		{
+			ByteBuffer b = i.next() ;
+			byte[] bytes = new byte[b.remaining()] ;
+			b.get(bytes) ;
+			out.writeInt(bytes.length) ;
+			out.write(bytes) ;
+		}
+	}
+	
+	/**
+	 * Reads the clip back chunk by chunk.
+	 * @param in the stream the clip is read from
+	 */
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException
+	{
+		in.defaultReadObject() ;
+		int count = in.readInt() ;
+		chunks = new ArrayList<ByteBuffer>(count) ;
+		for (int c = 0; c < count; c++)
+		{
+			ByteBuffer b = ByteBuffer.allocate(CHUNK_BYTES) ;
+			byte[] bytes = new byte[in.readInt()] ;
+			in.readFully(bytes) ;
+			b.put(bytes) ;
+			chunks.add(b) ;
+		}
+	}
+}
@@ -0,0 +1,277 @@
+import java.io.* ;
+import java.nio.charset.StandardCharsets ;
+import java.nio.file.* ;
+import java.util.concurrent.atomic.* ;
+import java.util.concurrent.locks.LockSupport ;
+
+/**
+ * Writes a call detail record for every call: when it started, how long it lasted, the states it
+ * went through, the extension reached, the size of the deposit, and how it ended.
+ * Records are copied into a preallocated ring, so logging a call allocates nothing and never touches
+ * the disk. A writer thread appends them to rolling CSV files in large sequential writes.
+ * When the ring is full, a record is either dropped or waits for room, as configured.
+ */
+public class CallDetailLog
+{
+	private final Slot[] ring ;
+	private final AtomicLongArray published ;
+	private final int mask ;
+	private final AtomicLong head ;
+	private final AtomicLong consumed ;
+	private final AtomicLong droppedCount ;
+	private final boolean blockWhenFull ;
+	private final Path directory ;
+	private final long maximumFileBytes ;
+	private final Thread writer ;
+	private volatile boolean closed ;
+	private Writer out ;
+	private long fileBytes ;
+	private int fileNumber ;
+	
+	public static final int HUNG_UP			= 0 ;
+	public static final int DEPOSITED		= 1 ;
+	public static final int TIMED_OUT		= 2 ;
+	public static final int MAILBOX_FULL	= 3 ;
+	public static final int BUSY			= 4 ;
+	public static final int REJECTED		= 5 ;
+	
+	public static final int DEFAULT_CAPACITY = 4096 ;
+	public static final long DEFAULT_FILE_BYTES = 16 * 1024 * 1024 ;
+	public static final int MAXIMUM_PATH = 32 ;
+	private static final int WRITE_BUFFER_BYTES = 64 * 1024 ;
+	private static final long IDLE_PARK_NANOS = 10000000 ;
+	private static final String[] OUTCOMES = { "hung up", "deposited", "timed out", "mailbox full", "busy", "rejected" } ;
+	
+	/**
+	 * Constructs a log writing to a new temporary directory, dropping records when the ring is full.
+	 * @throws IOException if the directory can't be created
+	 */
+	public CallDetailLog() throws IOException
+	{
+		this(Files.createTempDirectory("cdr"), DEFAULT_CAPACITY, DEFAULT_FILE_BYTES, false) ;
+	}
+	
+	/**
+	 * Constructs a log and starts its writer.
+	 * @param dir the directory receiving the files
+	 * @param capacity the number of records the ring holds
+	 * @param fileBytes the size after which a new file is started
+	 * @param block true to make a call wait for room when the ring is full, false to drop its record
+	 * @throws IOException if the directory can't be created
+	 * @precondition capacity > 0 && (capacity & (capacity - 1)) == 0
+	 * @precondition fileBytes > 0
+	 */
+	public CallDetailLog(Path dir, int capacity, long fileBytes, boolean block) throws IOException
+	{
+		assert(capacity > 0 && (capacity & (capacity - 1)) == 0) : "Capacity must be a power of 2!" ;
+		assert(fileBytes > 0) : "File size must be bigger than 0!" ;
+		directory = Files.createDirectories(dir) ;
+		ring = new Slot[capacity] ;
+		for (int i = 0; i < capacity; i++)
+			ring[i] = new Slot() ;
+		published = new AtomicLongArray(capacity) ;
+		for (int i = 0; i < capacity; i++)
+			published.set(i, -1) ;
+		mask = capacity - 1 ;
+		head = new AtomicLong() ;
+		consumed = new AtomicLong() ;
+		droppedCount = new AtomicLong() ;
+		blockWhenFull = block ;
+		maximumFileBytes = fileBytes ;
+		writer = new Thread(new 
+			Runnable()
+			{
+				public void run()
+				{
+					writeRecords() ;
+				}
+			}, "cdr-writer") ;
+		writer.setDaemon(true) ;
+		writer.start() ;
+	}
+	
+	/**
+	 * Gets the directory receiving the files.
+	 * @return the directory
+	 */
+	public Path getDirectory()
+	{
+		return directory;
+	}
+	
+	/**
+	 * Gets the number of records dropped because the ring was full.
+	 * @return the number of dropped records
+	 */
+	public long getDroppedCount()
+	{
+		return droppedCount.get();
+	}
+	
+	/**
+	 * Gets the number of records written to the files so far.
+	 * @return the number of written records
+	 */
+	public long getWrittenCount()
+	{
+		return consumed.get();
+	}
+	
+	/**
+	 * Logs a finished call. Copies the details into the ring and returns without allocating.
+	 * @param start the time the call started, in milliseconds
+	 * @param end the time the call ended, in milliseconds
+	 * @param extension the extension reached, or an empty string
+	 * @param outcome HUNG_UP, DEPOSITED, TIMED_OUT, MAILBOX_FULL, BUSY, or REJECTED
+	 * @param depositBytes the size of the message left, or 0
+	 * @param path the states the call went through, in order
+	 * @param pathLength the number of states in path
+	 * @return true if the record has been logged, false if it was dropped
+	 */
+	public boolean log(long start, long end, String extension, int outcome, long depositBytes, byte[] path, int pathLength)
+	{
+		long sequence ;
+		while (true)
+		{
+			sequence = head.get() ;
+			if (sequence - consumed.get() >= ring.length)
+			{
+				if (!blockWhenFull || closed)
+				{
+					droppedCount.incrementAndGet() ;
+					return false;
+				}
+				LockSupport.parkNanos(1000) ;
+			}
+			else if (head.compareAndSet(sequence, sequence + 1))
+				break ;
+		}
+		
+		Slot s = ring[(int) sequence & mask] ;
+		s.start = start ;
+		s.end = end ;
+		s.extension = extension ;
+		s.outcome = outcome ;
+		s.depositBytes = depositBytes ;
+		s.pathLength = Math.min(pathLength, MAXIMUM_PATH) ;
+		System.arraycopy(path, 0, s.path, 0, s.pathLength) ;
+		published.set((int) sequence & mask, sequence) ;
+		return true;
+	}
+	
+	/**
+	 * Writes the records still in the ring, then closes the current file.
+	 */
+	public void close()
+	{
+		closed = true ;
+		LockSupport.unpark(writer) ;
+		try
+		{
+			writer.join() ;
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt() ;
+		}
+	}
+	
+	/**
+	 * Takes records off the ring in order and writes them, flushing when the ring runs empty.
+	 */
+	private void writeRecords()
+	{
+		StringBuilder line = new StringBuilder(256) ;
+		long next = 0 ;
+		try
+		{
+			while (true)
+			{
+				int i = (int) next & mask ;
+				if (published.get(i) != next)
+				{
+					if (out != null)
+						out.flush() ;
+					if (closed && next == head.get())
+						break ;
+					LockSupport.parkNanos(IDLE_PARK_NANOS) ;
+					continue ;
+				}
+				format(ring[i], line) ;
+				ring[i].extension = null ;
+				consumed.lazySet(++next) ;
+				write(line) ;
+			}
+		}
+		catch (IOException e)
+		{
+			closed = true ;
+		}
+		finally
+		{
+			try
+			{
+				if (out != null)
+					out.close() ;
+			}
+			catch (IOException e)
+			{
+			}
+		}
+	}
+	
+	/**
+	 * Formats a record as one CSV line: start, duration in milliseconds, extension, outcome,
+	 * deposit size, and the states separated by '>'.
+	 * @param s the record
+	 * @param line the builder receiving the line, cleared first
+	 */
+	private static void format(Slot s, StringBuilder line)
+	{
+		line.setLength(0) ;
+		line.append(s.start).append(',').append(s.end - s.start).append(',').append(s.extension).append(',')
+			.append(OUTCOMES[s.outcome]).append(',').append(s.depositBytes).append(',') ;
+		for (int i = 0; i < s.pathLength; i++)
+		{
+			if (i > 0)
+				line.append('>') ;
+			line.append(s.path[i]) ;
+		}
+		line.append('\n') ;
+	}
+	
+	/**
+	 * Appends a line to the current file, starting a new file when the current one is full.
+	 * @param line the line
+	 * @throws IOException if the file can't be written
+	 */
+	private void write(CharSequence line) throws IOException
+	{
+		if (out == null || fileBytes >= maximumFileBytes)
+		{
+			if (out != null)
+				out.close() ;
+			Path file = directory.resolve("cdr-" + (++fileNumber) + ".csv") ;
+			out = new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(file), StandardCharsets.US_ASCII),
+					WRITE_BUFFER_BYTES) ;
+			out.write("start,duration,extension,outcome,deposit,path\n") ;
+			fileBytes = 0 ;
+		}
+		out.append(line) ;
+		fileBytes += line.length() ;
+	}
+	
+	/**
+	 * A preallocated record, filled by a call and emptied by the writer.
+	 */
+	private static class Slot
+	{
+		private long start ;
+		private long end ;
+		private String extension ;
+		private int outcome ;
+		private long depositBytes ;
+		private final byte[] path = new byte[MAXIMUM_PATH] ;
+		private int pathLength ;
+	}
+}
@@ -0,0 +1,441 @@
+import java.util.ArrayList ;
+import java.util.List ;
+import java.util.concurrent.* ;
+import java.util.concurrent.atomic.AtomicInteger ;
+import java.util.function.Function ;
+
+/**
+ * This program checks the concurrent and timed paths around the mail center: the deposit writer,
+ * the timing wheel, the tiered store, the login throttle, the deposit guard, and the delivery scheduler.
+ * Prints each failed check and exits with status 1 if there is any.
+ */
+public class ConcurrencyCheck
+{
+	private static int failures = 0 ;
+	
+	public static final int THREADS = 4 ;
+	public static final int PER_THREAD = 500 ;
+	public static final long TIMEOUT_MILLIS = 30000 ;
+	
+	public static void main(String[] args) throws Exception
+	{
+		checkDepositWriter() ;
+		checkTimingWheel() ;
+		checkTieredStore() ;
+		checkLoginThrottle() ;
+		checkAdminLockout() ;
+		checkDepositGuard() ;
+		checkDeliveryRetry() ;
+		checkDeliveryThread() ;
+		if (failures > 0)
+		{
+			System.out.println(failures + " checks failed") ;
+			System.exit(1) ;
+		}
+		System.out.println("All checks passed") ;
+	}
+	
+	/**
+	 * Records a check, printing it if it failed.
+	 * @param passed true if the check passed
+	 * @param what what was checked
+	 */
+	private static void check(boolean passed, String what)
+	{
+		if (!passed)
+		{
+			failures++ ;
+			System.out.println("FAILED: " + what) ;
+		}
+	}
+	
+	/**
+	 * Starts threads that run the same task at once and waits for all of them.
+	 * @param task the task, given the number of its thread
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	private static void runConcurrently(final Task task) throws InterruptedException
+	{
+		final CountDownLatch start = new CountDownLatch(1) ;
+		Thread[] threads = new Thread[THREADS] ;
+		for (int t = 0; t < THREADS; t++)
+		{
+			final int number = t ;
+			threads[t] = new Thread(new
+				Runnable()
+				{
+					public void run()
+					{
+						try
+						{
+							start.await() ;
+						}
+						catch (InterruptedException e)
+						{
+							return;
+						}
+						task.run(number) ;
+					}
+				}, "check-" + t) ;
+			threads[t].start() ;
+		}
+		start.countDown() ;
+		for (Thread t: threads)
+			t.join() ;
+	}
+	
+	/**
+	 * Submits deposits from several threads, some for a mailbox whose store always fails. Every future
+	 * must complete, the failing ones exceptionally, without killing the writer, and no stage waiting
+	 * on a future may run while holding the lock of the mail center.
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	private static void checkDepositWriter() throws InterruptedException
+	{
+		String name = "DepositQueue" ;
+		final MailCenter c = new 
+			MailCenter()
+			{
+				@Override
+				public synchronized void recordNewMessage(String extension, MessageBody body, long callerId, int priority)
+				{
+					if (extension.equals("0"))
+						throw new java.io.UncheckedIOException(new java.io.IOException("Store failed")) ;
+					super.recordNewMessage(extension, body, callerId, priority) ;
+				}
+			} ;
+		for (int t = 0; t <= THREADS; t++)
+			c.add("" + t, Credential.create("0", 1)) ;
+		final DepositQueue d = new DepositQueue(c) ;
+		final List<CompletableFuture<Boolean>> futures = new CopyOnWriteArrayList<CompletableFuture<Boolean>>() ;
+		final AtomicInteger underLock = new AtomicInteger() ;
+		runConcurrently(new
+			Task()
+			{
+				public void run(int thread)
+				{
+					for (int i = 0; i < PER_THREAD; i++)
+					{
+						CompletableFuture<Boolean> f = d.submit(i % 2 == 0 ? "0" : "" + (thread + 1), "message " + i) ;
+						f.thenApply(new
+							Function<Boolean, Boolean>()
+							{
+								public Boolean apply(Boolean stored)
+								{
+									if (Thread.holdsLock(c))
+										underLock.incrementAndGet() ;
+									return stored;
+								}
+							}) ;
+						futures.add(f) ;
+					}
+				}
+			}) ;
+		
+		int failed = 0 ;
+		int stored = 0 ;
+		int hung = 0 ;
+		for (CompletableFuture<Boolean> f: futures)
+			try
+			{
+				if (f.get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS))
+					stored++ ;
+			}
+			catch (ExecutionException e)
+			{
+				failed++ ;
+			}
+			catch (TimeoutException e)
+			{
+				hung++ ;
+			}
+		check(hung == 0, name + ": " + hung + " deposits never completed") ;
+		check(failed == THREADS * PER_THREAD / 2, name + ": " + failed + " failed deposits, expected " + THREADS * PER_THREAD / 2) ;
+		check(stored == THREADS * Mailbox.MAXIMUM_MESSAGE, name + ": stored " + stored + " messages") ;
+		check(underLock.get() == 0, name + ": " + underLock.get() + " stages ran holding the mail center lock") ;
+		System.out.println(name + ": stored " + stored + ", failed " + failed) ;
+	}
+	
+	/**
+	 * Arms timeouts in one slot where the first one cancels the second. Every other timeout of the slot
+	 * must still run on its own tick, and one a revolution away must not run early or late.
+	 */
+	private static void checkTimingWheel()
+	{
+		String name = "TimingWheel" ;
+		final int slots = 8 ;
+		final TimingWheel w = new TimingWheel(1000, slots) ;
+		final StringBuilder ran = new StringBuilder() ;
+		TimingWheel.Timeout later = w.schedule(task(ran, "L"), (slots + 1) * 1000) ;
+		w.schedule(task(ran, "C"), 1000) ;
+		final TimingWheel.Timeout cancelled = w.schedule(task(ran, "B"), 1000) ;
+		w.schedule(new
+			Runnable()
+			{
+				public void run()
+				{
+					ran.append("A") ;
+					cancelled.cancel() ;
+				}
+			}, 1000) ;
+		
+		w.advance() ;
+		check(ran.toString().equals("AC"), name + ": first tick ran \"" + ran + "\", expected \"AC\"") ;
+		for (int i = 1; i < slots; i++)
+			w.advance() ;
+		check(ran.toString().equals("AC"), name + ": ran \"" + ran + "\" before the later timeout was due") ;
+		w.advance() ;
+		check(ran.toString().equals("ACL"), name + ": later timeout ran \"" + ran + "\" on its tick") ;
+		later.cancel() ;
+		System.out.println(name + ": ran " + ran) ;
+	}
+	
+	/**
+	 * Gets a task appending a name to a log.
+	 * @param log the log
+	 * @param what the name
+	 * @return the task
+	 */
+	private static Runnable task(final StringBuilder log, final String what)
+	{
+		return new 
+			Runnable()
+			{
+				public void run()
+				{
+					log.append(what) ;
+				}
+			};
+	}
+	
+	/**
+	 * Saves and deletes messages from several threads without ever starting the compactor.
+	 * Once every message is deleted, the store must hold nothing.
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	private static void checkTieredStore() throws InterruptedException
+	{
+		String name = "TieredStore" ;
+		final TieredStore s = new TieredStore() ;
+		final MailCenter c = new MailCenter(s) ;
+		for (int t = 0; t < THREADS; t++)
+			c.add("" + t, Credential.create("0", 1)) ;
+		runConcurrently(new
+			Task()
+			{
+				public void run(int thread)
+				{
+					for (int i = 0; i < PER_THREAD; i++)
+					{
+						c.recordNewMessage("" + thread, "message " + thread + "-" + i) ;
+						c.saveNewMessage("" + thread) ;
+						c.removeOldMessage("" + thread) ;
+					}
+				}
+			}) ;
+		check(s.getUncompressedCount() == 0, name + ": " + s.getUncompressedCount() + " deleted bodies still held") ;
+		check(s.getHotBytes() == 0, name + ": " + s.getHotBytes() + " bytes still counted in memory") ;
+		System.out.println(name + ": " + s.getUncompressedCount() + " bodies held") ;
+	}
+	
+	/**
+	 * Tries one extension from several lines at once. Exactly as many attempts as the extension's
+	 * bucket holds must pass, and every rejected attempt must give back its line's token.
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	private static void checkLoginThrottle() throws InterruptedException
+	{
+		String name = "LoginThrottle" ;
+		final LoginThrottle throttle = new LoginThrottle() ;
+		final long now = System.currentTimeMillis() ;
+		final int[] allowed = new int[THREADS] ;
+		runConcurrently(new
+			Task()
+			{
+				public void run(int thread)
+				{
+					for (int i = 0; i < LoginThrottle.DEFAULT_LINE_ATTEMPTS; i++)
+						if (throttle.tryAttempt("1234", thread, now))
+							allowed[thread]++ ;
+				}
+			}) ;
+		
+		int total = 0 ;
+		for (int t = 0; t < THREADS; t++)
+		{
+			total += allowed[t] ;
+			int left = 0 ;
+			while (throttle.tryAttempt(null, t, now))
+				left++ ;
+			check(left == LoginThrottle.DEFAULT_LINE_ATTEMPTS - allowed[t],
+					name + ": line " + t + " has " + left + " attempts left after " + allowed[t] + " allowed") ;
+		}
+		check(total == LoginThrottle.DEFAULT_EXTENSION_ATTEMPTS,
+				name + ": allowed " + total + " attempts, expected " + LoginThrottle.DEFAULT_EXTENSION_ATTEMPTS) ;
+		System.out.println(name + ": allowed " + total + ", rejected " + throttle.getRejectedCount()) ;
+	}
+	
+	/**
+	 * Mistypes commands on several lines sharing one throttle, then enters the admin code on another.
+	 * The administrator must still get in.
+	 */
+	private static void checkAdminLockout()
+	{
+		String name = "ControlHub admin code" ;
+		MailCenter c = new MailCenter() ;
+		LoginThrottle throttle = new LoginThrottle() ;
+		DepositQueue d = new DepositQueue(c) ;
+		HeadlessPhone[] phones = new HeadlessPhone[THREADS] ;
+		ControlHub[] hubs = new ControlHub[THREADS] ;
+		for (int t = 0; t < THREADS; t++)
+		{
+			phones[t] = new HeadlessPhone() ;
+			hubs[t] = new ControlHub(c, phones[t], d, new AdmissionControl(d), new TimingWheel()) ;
+			hubs[t].setLoginThrottle(throttle) ;
+		}
+		for (int t = 1; t < THREADS; t++)
+			for (int i = 0; i < LoginThrottle.DEFAULT_LINE_ATTEMPTS; i++)
+				dial(hubs[t], i % 2 == 0 ? "2112#" : "12345#") ;
+		phones[0].takeSpoken() ;
+		dial(hubs[0], "21120109#") ;
+		String spoken = phones[0].takeSpoken().toString() ;
+		check(spoken.contains("Welcome, admin"), name + ": administrator locked out by mistyped commands") ;
+		System.out.println(name + ": " + (spoken.contains("Welcome, admin") ? "administrator got in" : "administrator locked out")) ;
+	}
+	
+	/**
+	 * Presses keys on a hub.
+	 * @param h the hub
+	 * @param keys the keys, one character each
+	 */
+	private static void dial(ControlHub h, String keys)
+	{
+		for (char key: keys.toCharArray())
+			h.dial("" + key) ;
+	}
+	
+	/**
+	 * Starts deposits for one mailbox from several lines at once, before any is stored. No more than
+	 * the mailbox's limit may be allowed, and giving the reservations back must free them again.
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	private static void checkDepositGuard() throws InterruptedException
+	{
+		String name = "DepositGuard" ;
+		final DepositGuard g = new DepositGuard() ;
+		final AtomicInteger allowed = new AtomicInteger() ;
+		runConcurrently(new
+			Task()
+			{
+				public void run(int thread)
+				{
+					for (int i = 0; i < PER_THREAD; i++)
+						if (g.allowDeposit("1234", thread * PER_THREAD + i))
+							allowed.incrementAndGet() ;
+				}
+			}) ;
+		check(allowed.get() == DepositGuard.DEFAULT_MAILBOX_DEPOSITS,
+				name + ": allowed " + allowed.get() + " deposits, expected " + DepositGuard.DEFAULT_MAILBOX_DEPOSITS) ;
+		
+		g.releaseDeposit("1234", 0) ;
+		check(g.allowDeposit("1234", 0), name + ": released reservation not given back") ;
+		System.out.println(name + ": allowed " + allowed.get() + ", rejected " + g.getRejectedCount()) ;
+	}
+	
+	/**
+	 * Schedules a message for a distribution list whose members are full, then cancels it.
+	 * Every retry must be dropped with it, while a retry not cancelled is delivered once there is room.
+	 */
+	private static void checkDeliveryRetry()
+	{
+		String name = "DeliveryScheduler retry" ;
+		MailCenter c = new MailCenter() ;
+		ArrayList<String> members = new ArrayList<String>() ;
+		for (int t = 0; t < THREADS; t++)
+		{
+			c.add("" + t, Credential.create("0", 1)) ;
+			members.add("" + t) ;
+			for (int i = 0; i < Mailbox.MAXIMUM_MESSAGE; i++)
+				c.recordNewMessage("" + t, "filler " + i) ;
+		}
+		c.addGroup("9", members) ;
+		DeliveryScheduler s = new DeliveryScheduler(c) ;
+		long now = System.currentTimeMillis() ;
+		
+		long id = s.schedule("9", new MessageBody("cancelled"), Message.UNKNOWN_CALLER, Message.NORMAL, now) ;
+		check(s.deliverDue(now) == 0, name + ": delivered to full mailboxes") ;
+		s.cancel(id) ;
+		for (int t = 0; t < THREADS; t++)
+			c.removeNewMessage("" + t) ;
+		int delivered = s.deliverDue(now + 2 * DeliveryScheduler.RETRY_MILLIS) ;
+		check(delivered == 0, name + ": " + delivered + " retries delivered after cancel") ;
+		check(s.bucketCount() == 0, name + ": " + s.bucketCount() + " minutes still waiting after cancel") ;
+		
+		c.recordNewMessage("0", "filler") ;
+		now += 3 * DeliveryScheduler.RETRY_MILLIS ;
+		s.schedule("0", new MessageBody("kept"), Message.UNKNOWN_CALLER, Message.NORMAL, now) ;
+		check(s.deliverDue(now) == 0, name + ": delivered to a full mailbox") ;
+		c.removeNewMessage("0") ;
+		delivered = s.deliverDue(now + DeliveryScheduler.RETRY_MILLIS) ;
+		check(delivered == 1, name + ": retry delivered " + delivered + " times") ;
+		System.out.println(name + ": retry delivered " + delivered + " time") ;
+	}
+	
+	/**
+	 * Schedules messages from several threads while the delivery thread runs. Each must be delivered exactly once.
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	private static void checkDeliveryThread() throws InterruptedException
+	{
+		String name = "DeliveryScheduler thread" ;
+		final int perThread = 50 ;
+		final MailCenter c = new MailCenter() ;
+		for (int t = 0; t < THREADS; t++)
+			for (int i = 0; i < perThread; i++)
+				c.add("" + (100 + t * perThread + i), Credential.create("0", 1)) ;
+		final DeliveryScheduler s = new DeliveryScheduler(c) ;
+		s.start() ;
+		final long now = System.currentTimeMillis() ;
+		runConcurrently(new
+			Task()
+			{
+				public void run(int thread)
+				{
+					for (int i = 0; i < perThread; i++)
+						s.schedule("" + (100 + thread * perThread + i), new MessageBody("due"), Message.UNKNOWN_CALLER, Message.NORMAL, now) ;
+				}
+			}) ;
+		
+		long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS ;
+		int delivered = 0 ;
+		while (System.currentTimeMillis() < deadline)
+		{
+			delivered = 0 ;
+			for (String extension: c.getExtensions())
+				delivered += c.newSize(extension) ;
+			if (delivered >= THREADS * perThread)
+				break;
+			Thread.sleep(10) ;
+		}
+		s.stop() ;
+		int twice = 0 ;
+		for (String extension: c.getExtensions())
+			if (c.newSize(extension) > 1)
+				twice++ ;
+		check(delivered == THREADS * perThread, name + ": delivered " + delivered + " of " + THREADS * perThread) ;
+		check(twice == 0, name + ": " + twice + " messages delivered more than once") ;
+		System.out.println(name + ": delivered " + delivered) ;
+	}
+	
+	/**
+	 * The work of one thread.
+	 */
+	private interface Task
+	{
+		/**
+		 * Runs the work.
+		 * @param thread the number of the thread, from 0
+		 */
+		void run(int thread) ;
+	}
+}
@@ -1,3 +1,13 @@
+import java.nio.ByteBuffer ;
+import java.util.* ;
+import java.util.concurrent.CompletableFuture ;
+import java.util.concurrent.Executor ;
+import java.util.function.BiConsumer ;
+import java.util.function.Function ;
+import java.util.concurrent.atomic.AtomicInteger ;
+import java.util.function.BiFunction ;
+import javax.swing.SwingUtilities ;
+
 /**
    Connects a phone to the mail center. This class keeps
    track of the state of a connection, since the phone
@@ -6,11 +16,40 @@
 public class ControlHub
 {
 	private final MailCenter center ;
-	private static String currentRecording ;
-	private static String accumulatedKeys ;
-	private static String extension ;
-	private final Telephone phone ;
-	private static int state ;
+	private final DepositQueue deposits ;
+	private final AdmissionControl admission ;
+	private final TimingWheel timers ;
+	private final CallDetailLog calls ;
+	private long callStart ;
+	private final byte[] callPath ;
+	private int callPathLength ;
+	private int callOutcome ;
+	private long depositBytes ;
+	private TimingWheel.Timeout idleTimeout ;
+	private boolean admitted ;
+	private String currentRecording ;
+	private AudioClip currentAudio ;
+	private String accumulatedKeys ;
+	private String extension ;
+	private final ArrayList<String> members ;
+	private boolean forwardingOld ;
+	private boolean urgent ;
+	private boolean enteringDelay ;
+	private long delayHours ;
+	private DeliveryScheduler scheduler ;
+	private final Phone phone ;
+	private SessionRecorder recorder ;
+	private LoginThrottle throttle ;
+	private DepositGuard guard ;
+	private final int line ;
+	private int passwordAttempt ;
+	private CompletableFuture<Void> pendingPassword ;
+	private Executor dispatcher ;
+	
+	private static final AtomicInteger nextLine = new AtomicInteger(1) ;
+	private int state ;
+	
+	public static final long IDLE_TIMEOUT_MILLIS = 60000 ;
 	
 	private static final int IDLE					= 0 ;
 	private static final int CONNECTED 				= 1 ;
@@ -29,6 +68,28 @@ public class ControlHub
 	private static final int CREATE_PASSWORD		= 14 ;
 	private static final int FIND_EXTENSION			= 15 ;
 	private static final int ADMIN_CHANGE_PASSWORD	= 16 ;
+	private static final int CREATE_GROUP			= 17 ;
+	private static final int ADD_GROUP_MEMBER		= 18 ;
+	private static final int FORWARD_MESSAGE		= 19 ;
+	private static final int VERIFYING_PASSWORD		= 20 ;
+	private static final int ANNOUNCE_EXTENSION		= 21 ;
+	private static final int ANNOUNCE_INTERVAL		= 22 ;
+	private static final int RECORD_ANNOUNCEMENT	= 23 ;
+	private static final int HASHING_PASSWORD		= 24 ;
+	
+	private static final int STATISTICS_TOP = 5 ;
+	private static final String CALLER_CODE = "123456789" ;
+	private static final String ADMIN_CODE = "21120109" ;
+	
+	private static final String TOO_MANY_ATTEMPTS_TEXT = "\nToo many attempts. Please try again later\n" ;
+	private static final String URGENT_KEY = "1" ;
+	private static final String URGENT_TEXT = "Press " + URGENT_KEY + " at any time to mark your message urgent\n" ;
+	private static final String DELAY_KEY = "2" ;
+	private static final String DELAY_TEXT = "Press " + DELAY_KEY + " to have it delivered later\n" ;
+	private static final int MAXIMUM_DELAY_DIGITS = 4 ;
+	private static final long HOUR_MILLIS = 3600000 ;
+	private static final long THROTTLE_PURGE_MILLIS = 60000 ;
+	private static final String TOO_MANY_MESSAGES_TEXT = "\nToo many messages have been left recently. Please try again later\n" ;
 	
 	private static final String MAILBOX_MENU_TEXT = 
 			"\nMAILBOX MENU:\n"
@@ -41,14 +102,19 @@ public class ControlHub
 			+ "Enter 1 to listen to this message again\n"
 			+ "Enter 2 to delete this message\n"
 			+ "Enter 3 to listen to next message\n"
-			+ "Enter 4 to back to the previous menu\n" ;
+			+ "Enter 4 to back to the previous menu\n"
+			+ "Enter 5 to forward this message\n"
+			+ "Enter 6 to delete all old messages\n"
+			+ "Enter 7 to delete the messages heard so far\n" ;
 	
 	private static final String NEW_MESSAGE_MENU_TEXT = 
 			"\nMESSAGE MENU:\n"
 			+ "Enter 1 to listen to this message again\n"
 			+ "Enter 2 to save this message\n"
 			+ "Enter 3 to delete this message\n"
-			+ "Enter 4 to back to the previous menu\n" ;
+			+ "Enter 4 to back to the previous menu\n"
+			+ "Enter 5 to forward this message\n"
+			+ "Enter 6 to save all new messages\n" ;
 	
 	private static final String GREETING_MENU_TEXT = 
 			"\nGREETING MENU:\n"
@@ -61,55 +127,429 @@ public class ControlHub
 			"\nADMINISTRATOR MENU:\n"
 			+ "Enter 1 to create a new mailbox\n"
 			+ "Enter 2 to change a mailbox password\n"
-			+ "Enter 3 to reset all mailboxes passwords\n" ;
+			+ "Enter 3 to reset all mailboxes passwords\n"
+			+ "Enter 4 to create a distribution list\n"
+			+ "Enter 5 to hear the system statistics\n"
+			+ "Enter 6 to schedule a recurring announcement\n" ;
+	
+	/**
+	 * Construct a ControlHub object whose calls never time out.
+	 * @param c a MailCenter object
+	 * @param p the Phone the hub talks through
+	 */
+	public ControlHub(MailCenter c, Phone p)
+	{
+		this(c, p, new DepositQueue(c)) ;
+	}
+	
+	/**
+	 * Construct a ControlHub object with default admission control, whose calls never time out.
+	 * @param c a MailCenter object
+	 * @param p the Phone the hub talks through
+	 * @param d the DepositQueue storing caller recordings into c
+	 */
+	public ControlHub(MailCenter c, Phone p, DepositQueue d)
+	{
+		this(c, p, d, new AdmissionControl(d)) ;
+	}
+	
+	/**
+	 * Construct a ControlHub object whose calls never time out, since its TimingWheel is never advanced.
+	 * Pass a started TimingWheel to hang up on idle callers.
+	 * @param c a MailCenter object
+	 * @param p the Phone the hub talks through
+	 * @param d the DepositQueue storing caller recordings into c
+	 * @param a the AdmissionControl deciding whether new calls are accepted
+	 */
+	public ControlHub(MailCenter c, Phone p, DepositQueue d, AdmissionControl a)
+	{
+		this(c, p, d, a, new TimingWheel()) ;
+	}
 	
 	/**
 	 * Construct a ControlHub object.
 	 * @param c a MailCenter object
-	 * @param p a Telephone object
+	 * @param p the Phone the hub talks through
+	 * @param d the DepositQueue storing caller recordings into c
+	 * @param a the AdmissionControl deciding whether new calls are accepted
+	 * @param w the started TimingWheel running the inactivity timer of the call and the purge of the login throttle
 	 */
-	public ControlHub(MailCenter c, Telephone p)
+	public ControlHub(MailCenter c, Phone p, DepositQueue d, AdmissionControl a, TimingWheel w)
+	{
+		this(c, p, d, a, w, null) ;
+	}
+	
+	/**
+	 * Construct a ControlHub object.
+	 * @param c a MailCenter object
+	 * @param p the Phone the hub talks through
+	 * @param d the DepositQueue storing caller recordings into c
+	 * @param a the AdmissionControl deciding whether new calls are accepted
+	 * @param w the started TimingWheel running the inactivity timer of the call and the purge of the login throttle
+	 * @param l the CallDetailLog recording every call, or null to record none
+	 */
+	public ControlHub(MailCenter c, Phone p, DepositQueue d, AdmissionControl a, TimingWheel w, CallDetailLog l)
 	{
 		center = c ;
+		deposits = d ;
+		admission = a ;
+		timers = w ;
+		calls = l ;
+		throttle = new LoginThrottle() ;
+		guard = new DepositGuard() ;
+		line = nextLine.getAndIncrement() ;
+		passwordAttempt = 0 ;
+		pendingPassword = CompletableFuture.completedFuture(null) ;
+		dispatcher = new 
+			Executor()
+			{
+				public void execute(Runnable r)
+				{
+					SwingUtilities.invokeLater(r) ;
+				}
+			} ;
+		callPath = new byte[CallDetailLog.MAXIMUM_PATH] ;
+		callStart = 0 ;
+		admitted = false ;
+		members = new ArrayList<String>() ;
 		phone = p ;
+		purgeThrottle() ;
 		resetConnection() ;
-		phone.speak("Welcome to Le Duy Vu's voicemail system\nPlease log in as an administrator"
+		speak("Welcome to Le Duy Vu's voicemail system\nPlease log in as an administrator"
 				+ " first to create the first mailbox to test the system\nReady to receive command") ;
 	}
 	
+	/**
+	 * Forgets the full buckets of the login throttle once a minute, so the buckets of extensions
+	 * tried only once don't pile up.
+	 */
+	private void purgeThrottle()
+	{
+		timers.schedule(new 
+			Runnable()
+			{
+				public void run()
+				{
+					throttle.purge() ;
+					timers.schedule(this, THROTTLE_PURGE_MILLIS) ;
+				}
+			}, THROTTLE_PURGE_MILLIS) ;
+	}
+	
+	/**
+	 * Sets the recorder capturing every event of the calls from now on.
+	 * @param r the SessionRecorder, or null to stop capturing
+	 */
+	public void setSessionRecorder(SessionRecorder r)
+	{
+		recorder = r ;
+	}
+	
+	/**
+	 * Sets the throttle limiting password and admin code attempts. Hubs sharing a throttle
+	 * share the limit on each extension.
+	 * @param t the LoginThrottle
+	 */
+	public void setLoginThrottle(LoginThrottle t)
+	{
+		throttle = t ;
+	}
+	
+	/**
+	 * Sets the guard limiting how many messages are left per mailbox and per line. Hubs sharing a guard
+	 * share the limit on each mailbox.
+	 * @param g the DepositGuard
+	 */
+	public void setDepositGuard(DepositGuard g)
+	{
+		guard = g ;
+	}
+	
+	/**
+	 * Sets the scheduler holding messages to be delivered later. Without one, callers and administrators
+	 * can't schedule deliveries.
+	 * @param s the DeliveryScheduler, or null
+	 */
+	public void setDeliveryScheduler(DeliveryScheduler s)
+	{
+		scheduler = s ;
+	}
+	
+	/**
+	 * Sets the executor handing results computed off the hub, such as password checks, back to the
+	 * thread driving the hub. By default they are handed to the Swing event dispatch thread.
+	 * @param e the Executor
+	 */
+	public void setDispatcher(Executor e)
+	{
+		dispatcher = e ;
+	}
+	
+	/**
+	 * Waits until the last password check, hashing, or reset, if any, has been answered.
+	 */
+	public void awaitPendingPassword()
+	{
+		pendingPassword.join() ;
+	}
+	
+	/**
+	 * Speaks to the user through the phone, capturing the output if a session is being recorded.
+	 * @param output the voice output
+	 */
+	private void speak(String output)
+	{
+		if (recorder != null)
+			recorder.output(output) ;
+		phone.speak(output) ;
+	}
+	
 	/**
 	 * Resets the connection to the IDLE state and says welcome.
 	 */
 	private void resetConnection()
 	{
+		endCall() ;
+		if (idleTimeout != null)
+		{
+			idleTimeout.cancel() ;
+			idleTimeout = null ;
+		}
+		if (admitted)
+		{
+			admission.release() ;
+			admitted = false ;
+		}
 		currentRecording = "" ;
+		currentAudio = new AudioClip() ;
 		accumulatedKeys = "" ;
 		extension = "" ;
+		urgent = false ;
+		enteringDelay = false ;
+		delayHours = 0 ;
 		state = IDLE ;
-		phone.speak("\nWelcome to Le Duy Vu's voicemail system. Ready to receive command") ;
+		speak("\nWelcome to Le Duy Vu's voicemail system. Ready to receive command") ;
+	}
+	
+	/**
+	 * Starts the call detail of a new call.
+	 */
+	private void beginCall()
+	{
+		callStart = System.currentTimeMillis() ;
+		callPathLength = 0 ;
+		callOutcome = CallDetailLog.HUNG_UP ;
+		depositBytes = 0 ;
+		trace(state) ;
+	}
+	
+	/**
+	 * Adds a state to the path of the current call. States past the maximum path length are left out.
+	 * @param s the state the call has moved to
+	 */
+	private void trace(int s)
+	{
+		if (callStart != 0 && callPathLength < callPath.length)
+			callPath[callPathLength++] = (byte) s ;
+	}
+	
+	/**
+	 * Logs the details of the current call, if there is one.
+	 */
+	private void endCall()
+	{
+		if (callStart == 0)
+			return;
+		if (calls != null)
+			calls.log(callStart, System.currentTimeMillis(), extension, callOutcome, depositBytes, callPath, callPathLength) ;
+		callStart = 0 ;
 	}
 	
 	/**
-	 * Runs when the user hangs up the phone, records new message if applicable, then resets connection.
+	 * Restarts the inactivity timer of the call, starting the call if there is none yet.
+	 * When the timer expires, the call is hung up. Does nothing while the line is idle.
+	 */
+	private void touch()
+	{
+		if (state == IDLE)
+			return;
+		if (callStart == 0)
+			beginCall() ;
+		if (idleTimeout != null)
+			idleTimeout.cancel() ;
+		idleTimeout = timers.schedule(new 
+			Runnable()
+			{
+				public void run()
+				{
+					idleTimeout = null ;
+					timeOut() ;
+				}
+			}, IDLE_TIMEOUT_MILLIS) ;
+	}
+	
+	/**
+	 * Runs when the user hangs up the phone, queues the new message for storage if applicable, then resets connection.
 	 */
 	public void hangUp()
+	{
+		if (recorder != null)
+			recorder.hangUp() ;
+		endSession() ;
+	}
+	
+	/**
+	 * Runs when the call has been idle too long, and ends it like a hang up.
+	 */
+	public void timeOut()
+	{
+		if (recorder != null)
+			recorder.timeOut() ;
+		callOutcome = CallDetailLog.TIMED_OUT ;
+		endSession() ;
+	}
+	
+	/**
+	 * Queues the new message for storage if applicable, or gives back its deposit reservation
+	 * if nothing was recorded, then resets connection.
+	 */
+	private void endSession()
 	{
 		if (state == RECORDING)
-			if (currentRecording != "")
-				center.recordNewMessage(extension, currentRecording) ;
+			if (currentRecording != "" || !currentAudio.isEmpty())
+			{
+				MessageBody body = takeRecording() ;
+				callOutcome = CallDetailLog.DEPOSITED ;
+				depositBytes = body.length() + (body.getAudio() == null ? 0 : body.getAudio().length()) ;
+				int priority = urgent ? Message.URGENT : Message.NORMAL ;
+				if (delayHours > 0 && scheduler != null)
+				{
+					scheduler.schedule(extension, body, Message.UNKNOWN_CALLER, priority,
+							System.currentTimeMillis() + delayHours * HOUR_MILLIS) ;
+					guard.recordDeposit(extension, line) ;
+				}
+				else
+				{
+					CompletableFuture<Boolean> stored ;
+					if (center.isGroup(extension))
+						stored = deposits.offerBroadcast(center.getMembers(extension), body, Message.UNKNOWN_CALLER, priority)
+								.thenApply(new 
+									Function<Integer, Boolean>()
+									{
+										public Boolean apply(Integer delivered)
+										{
+											return delivered > 0;
+										}
+									}) ;
+					else
+						stored = deposits.offer(extension, body, Message.UNKNOWN_CALLER, priority) ;
+					countWhenStored(stored) ;
+					logWhenStored(stored) ;
+				}
+			}
+			else
+				guard.releaseDeposit(extension, line) ;
 		resetConnection() ;
 	}
 	
+	/**
+	 * Counts the message of the current call against the deposit limits once it is stored,
+	 * or gives back its reservation if it couldn't be stored.
+	 * @param stored the future completed with true once the message is stored
+	 */
+	private void countWhenStored(CompletableFuture<Boolean> stored)
+	{
+		final DepositGuard g = guard ;
+		final String ext = extension ;
+		stored.whenComplete(new 
+			BiConsumer<Boolean, Throwable>()
+			{
+				public void accept(Boolean ok, Throwable error)
+				{
+					if (error == null && ok)
+						g.recordDeposit(ext, line) ;
+					else
+						g.releaseDeposit(ext, line) ;
+				}
+			}) ;
+	}
+	
+	/**
+	 * Holds back the call detail of the current call until its message is stored, then logs it as deposited,
+	 * or as mailbox full if the message couldn't be stored.
+	 * @param stored the future completed with true once the message is stored
+	 */
+	private void logWhenStored(CompletableFuture<Boolean> stored)
+	{
+		if (calls == null || callStart == 0)
+			return;
+		final long start = callStart ;
+		final long end = System.currentTimeMillis() ;
+		final String ext = extension ;
+		final long bytes = depositBytes ;
+		final byte[] path = Arrays.copyOf(callPath, callPathLength) ;
+		callStart = 0 ;
+		stored.whenComplete(new 
+			BiConsumer<Boolean, Throwable>()
+			{
+				public void accept(Boolean ok, Throwable error)
+				{
+					int outcome = error == null && ok ? CallDetailLog.DEPOSITED : CallDetailLog.MAILBOX_FULL ;
+					calls.log(start, end, ext, outcome, bytes, path, path.length) ;
+				}
+			}) ;
+	}
+	
 	/**
 	 * Records the input voice if applicable.
 	 * @param voice voice spoken by the user
 	 */
 	public void record(String voice)
 	{
-		if (state == RECORDING || state == RECORD_GREETING)
+		if (recorder != null)
+			recorder.speech(voice) ;
+		touch() ;
+		if (state == RECORDING || state == RECORD_GREETING || state == RECORD_ANNOUNCEMENT)
 			currentRecording += voice + "\n" ;
 		else
-			phone.speak("Please follow instruction!\n") ;
+			speak("Please follow instruction!\n") ;
+	}
+	
+	/**
+	 * Records a frame of audio from the microphone if applicable.
+	 * @param frame the audio frame, which is copied into the recording
+	 */
+	public void record(ByteBuffer frame)
+	{
+		if (recorder != null)
+			recorder.audio(frame) ;
+		touch() ;
+		if (state == RECORDING || state == RECORD_GREETING || state == RECORD_ANNOUNCEMENT)
+			currentAudio.append(frame) ;
+	}
+	
+	/**
+	 * Takes what has been recorded so far as a message body and starts a new recording.
+	 * @return the body holding the recorded text and audio
+	 * @precondition currentRecording != "" || !currentAudio.isEmpty()
+	 */
+	private MessageBody takeRecording()
+	{
+		AudioClip audio = currentAudio.isEmpty() ? null : currentAudio ;
+		String text = audio == null ? currentRecording : currentRecording + audio.describe() ;
+		currentRecording = "" ;
+		currentAudio = new AudioClip() ;
+		return new MessageBody(text, audio);
+	}
+	
+	/**
+	 * Plays recorded audio to the user if there is any.
+	 * @param clip the audio, or null
+	 */
+	private void playAudio(AudioClip clip)
+	{
+		if (clip != null)
+			phone.play(clip) ;
 	}
 	
 	/**
@@ -117,6 +557,21 @@ public class ControlHub
 	 * @param key the single key pressed by the user
 	 */
 	public void dial(String key)
+	{
+		if (recorder != null)
+			recorder.dial(key) ;
+		int before = state ;
+		dispatch(key) ;
+		if (state != before && callStart != 0)
+			trace(state) ;
+		touch() ;
+	}
+	
+	/**
+	 * Passes a key to the handler of the current state.
+	 * @param key the single key pressed by the user
+	 */
+	private void dispatch(String key)
 	{
 		switch (state)
 		{
@@ -147,6 +602,9 @@ public class ControlHub
 			case SWITCH_GREETING:
 				switchGreeting(key) ;
 				break ;
+			case RECORDING:
+				recordingKey(key) ;
+				break ;
 			case RECORD_GREETING:
 				recordGreeting(key) ;
 				break ;
@@ -168,6 +626,27 @@ public class ControlHub
 			case ADMIN_CHANGE_PASSWORD:
 				adminChangePassword(key) ;
 				break ;
+			case CREATE_GROUP:
+				createGroup(key) ;
+				break ;
+			case ADD_GROUP_MEMBER:
+				addGroupMember(key) ;
+				break ;
+			case FORWARD_MESSAGE:
+				forwardMessage(key) ;
+				break ;
+			case VERIFYING_PASSWORD:
+			case HASHING_PASSWORD:
+				break ;
+			case ANNOUNCE_EXTENSION:
+				announceExtension(key) ;
+				break ;
+			case ANNOUNCE_INTERVAL:
+				announceInterval(key) ;
+				break ;
+			case RECORD_ANNOUNCEMENT:
+				recordAnnouncement(key) ;
+				break ;
 		}
 	}
 	
@@ -180,38 +659,74 @@ public class ControlHub
 		if (!key.equals("#"))
 		{
 			accumulatedKeys += key ;
+			if (!CALLER_CODE.startsWith(accumulatedKeys) && !ADMIN_CODE.startsWith(accumulatedKeys)
+					&& !center.hasExtensionPrefix(accumulatedKeys))
+			{
+				if (throttle.tryAttempt(null, line))
+					speak("\nThe system doesn't understand your command. Please try again\n") ;
+				else
+					speak(TOO_MANY_ATTEMPTS_TEXT) ;
+				accumulatedKeys = "" ;
+			}
 		}
 		else
 		{
 			if (accumulatedKeys == "")
 			{
-				phone.speak("\nPlease enter key before #") ;
+				speak("\nPlease enter key before #") ;
 				return;
 			}
 			
-			if (accumulatedKeys.equals("123456789"))
+			if (accumulatedKeys.equals(CALLER_CODE))
 			{
+				if (!admission.tryAdmit())
+				{
+					speak("\nThe system is busy. Please call again later\n") ;
+					beginCall() ;
+					callOutcome = CallDetailLog.BUSY ;
+					endCall() ;
+					accumulatedKeys = "" ;
+					return;
+				}
+				
+				admitted = true ;
+				callOutcome = CallDetailLog.HUNG_UP ;
 				state = CONNECTED ;
-				phone.speak("\nWelcome to SJSU. Please enter the extension number you want to reach") ;
+				speak("\nWelcome to SJSU. Please enter the extension number you want to reach") ;
 			}
 			else if (center.checkMailbox(accumulatedKeys))
 			{
 				state = LOG_IN ;
 				extension = accumulatedKeys ;
-				phone.speak("\nWelcome to your mailbox. Please enter your password") ;
+				speak("\nWelcome to your mailbox. Please enter your password") ;
 			}
-			else if (accumulatedKeys.equals("21120109"))
+			else if (!throttle.tryAttempt(isAdminAttempt(accumulatedKeys) ? ADMIN_CODE : null, line))
+				speak(TOO_MANY_ATTEMPTS_TEXT) ;
+			else if (accumulatedKeys.equals(ADMIN_CODE))
 			{
 				state = ADMIN_MENU ;
-				phone.speak("\nWelcome, admin\n" + ADMIN_MENU_TEXT) ;
+				speak("\nWelcome, admin\n" + ADMIN_MENU_TEXT) ;
 			}
 			else
-				phone.speak("\nThe system doesn't understand your command. Please try again\n") ;
+				speak("\nThe system doesn't understand your command. Please try again\n") ;
 			
 			accumulatedKeys = "" ;
 		}
 	}
 	
+	/**
+	 * Checks if digits entered before # are a whole attempt at the admin code, so the attempt counts
+	 * against the admin code's bucket. Digits straying from every code are turned away key by key, so
+	 * anything shorter is a command cut short; it only counts against the line, so callers mistyping
+	 * a command can't lock the administrator out.
+	 * @param keys the digits entered
+	 * @return true if as many digits as the admin code has were entered
+	 */
+	private boolean isAdminAttempt(String keys)
+	{
+		return keys.length() == ADMIN_CODE.length();
+	}
+	
 	/**
 	 * Tries to connect the caller with the specified mailbox.
 	 * @param key the single key pressed by the user
@@ -219,12 +734,19 @@ public class ControlHub
 	private void connect(String key)
 	{
 		if (!key.equals("#"))
+		{
 			accumulatedKeys += key ;
+			if (!center.canReach(accumulatedKeys))
+			{
+				speak("\nThis mailbox does not exist. Please try a different one!\n") ;
+				accumulatedKeys = "" ;
+			}
+		}
 		else
 		{
 			if (accumulatedKeys == "")
 			{
-				phone.speak("\nPlease enter key before #") ;
+				speak("\nPlease enter key before #") ;
 				return;
 			}
 			
@@ -232,24 +754,94 @@ public class ControlHub
 			
 			if (center.checkMailbox(accumulatedKeys))
 			{
-				if (center.newSize(extension) < Mailbox.MAXIMUM_MESSAGE)
+				if (center.newSize(extension) >= Mailbox.MAXIMUM_MESSAGE)
+				{
+					speak("\nThis mailbox can't receive any new message. Please come back at another time\n") ;
+					callOutcome = CallDetailLog.MAILBOX_FULL ;
+					resetConnection() ;
+				}
+				else if (!guard.allowDeposit(extension, line))
+					rejectDeposit() ;
+				else
 				{
 					state = RECORDING ;
-					phone.speak("\n" + center.getCurrentGreeting(extension)) ;
+					speak("\n" + center.getCurrentGreeting(extension) + "\n" + recordingOptions()) ;
+					playAudio(center.getCurrentGreetingAudio(extension)) ;
 				}
+			}
+			else if (center.isGroup(accumulatedKeys))
+			{
+				if (!guard.allowDeposit(extension, line))
+					rejectDeposit() ;
 				else
 				{
-					phone.speak("\nThis mailbox can't receive any new message. Please come back at another time\n") ;
-					resetConnection() ;
+					state = RECORDING ;
+					speak("\nYou have reached distribution list " + extension + ".\nPlease leave your message now.\n" + recordingOptions()) ;
 				}
 			}
 			else
-				phone.speak("\nThis mailbox does not exist. Please try a different one!\n") ;
+				speak("\nThis mailbox does not exist. Please try a different one!\n") ;
 			
 			accumulatedKeys = "" ;
 		}
 	}
 	
+	/**
+	 * Gets the keys a caller can press while leaving a message.
+	 * @return the spoken options
+	 */
+	private String recordingOptions()
+	{
+		return scheduler == null ? URGENT_TEXT : URGENT_TEXT + DELAY_TEXT;
+	}
+	
+	/**
+	 * Responds to a key pressed while the caller leaves a message: marks the message urgent, so it is
+	 * played before the mailbox's other new messages, or takes the number of hours to delay its delivery.
+	 * @param key the single key pressed by the user
+	 */
+	private void recordingKey(String key)
+	{
+		if (enteringDelay)
+		{
+			if (!key.equals("#"))
+				accumulatedKeys += key ;
+			else if (enteredHours() == 0)
+			{
+				speak("\nPlease enter from 1 to 9999 hours followed by the # key\n") ;
+				accumulatedKeys = "" ;
+			}
+			else
+			{
+				delayHours = enteredHours() ;
+				enteringDelay = false ;
+				accumulatedKeys = "" ;
+				speak("\nYour message will be delivered in " + delayHours + " hour(s). Please go on\n") ;
+			}
+		}
+		else if (key.equals(URGENT_KEY) && !urgent)
+		{
+			urgent = true ;
+			speak("\nYour message will be marked urgent. Please go on\n") ;
+		}
+		else if (key.equals(DELAY_KEY) && scheduler != null)
+		{
+			enteringDelay = true ;
+			accumulatedKeys = "" ;
+			speak("\nEnter the number of hours to delay delivery followed by the # key\n") ;
+		}
+	}
+	
+	/**
+	 * Turns away a caller who would leave one message too many in the mailbox or from the line.
+	 */
+	private void rejectDeposit()
+	{
+		speak(TOO_MANY_MESSAGES_TEXT) ;
+		callOutcome = CallDetailLog.REJECTED ;
+		resetConnection() ;
+	}
+	
 	/**
 	 * Tries to log in as the mailbox owner.
 	 * @param key the single key pressed by the user
@@ -260,17 +852,115 @@ public class ControlHub
 			accumulatedKeys += key ;
 		else
 		{
-			if (center.checkPassword(extension, accumulatedKeys))
+			if (!throttle.tryAttempt(extension, line))
 			{
-				state = MAILBOX_MENU ;
-				phone.speak("\nLog in successfully\n" + MAILBOX_MENU_TEXT) ;
+				speak(TOO_MANY_ATTEMPTS_TEXT) ;
+				resetConnection() ;
+				return;
 			}
-			else
-				phone.speak("\nIncorrect password. Try again!\n") ;
+			state = VERIFYING_PASSWORD ;
+			final int attempt = ++passwordAttempt ;
+			pendingPassword = center.verifyPassword(extension, accumulatedKeys).handleAsync(new 
+				BiFunction<Boolean, Throwable, Void>()
+				{
+					public Void apply(Boolean ok, Throwable error)
+					{
+						finishLogIn(attempt, ok, error) ;
+						return null;
+					}
+				}, dispatcher) ;
 			accumulatedKeys = "" ;
 		}
 	}
 	
+	/**
+	 * Answers a password check, unless the call has moved on since it was started.
+	 * @param attempt the number of the log in attempt checked
+	 * @param ok true if the password is correct
+	 * @param error the reason the check couldn't be made, or null
+	 */
+	private void finishLogIn(int attempt, Boolean ok, Throwable error)
+	{
+		if (attempt != passwordAttempt || state != VERIFYING_PASSWORD)
+			return;
+		if (error != null)
+		{
+			state = LOG_IN ;
+			speak("\nThe system is busy. Please enter your password again\n") ;
+		}
+		else if (ok)
+		{
+			state = MAILBOX_MENU ;
+			speak("\nLog in successfully\n" + MAILBOX_MENU_TEXT) ;
+		}
+		else
+		{
+			state = LOG_IN ;
+			speak("\nIncorrect password. Try again!\n") ;
+		}
+		trace(state) ;
+	}
+	
+	/**
+	 * Hashes a new password on the verifier's worker threads, then applies it and answers on the dispatcher.
+	 * The credential is applied even if the call has ended meanwhile, since the user confirmed it, but the
+	 * answer is only spoken if the call is still waiting for it. Keys pressed while waiting are ignored.
+	 * @param password the new password
+	 * @param change applies the credential to the mail center and gives what to say
+	 * @param next the state once the password is applied
+	 * @param retry the state to go back to if the system is too busy to hash the password
+	 */
+	private void hashPassword(String password, final Function<Credential, String> change, final int next, final int retry)
+	{
+		state = HASHING_PASSWORD ;
+		final int attempt = ++passwordAttempt ;
+		pendingPassword = center.hashPassword(password).handleAsync(new 
+			BiFunction<Credential, Throwable, Void>()
+			{
+				public Void apply(Credential c, Throwable error)
+				{
+					String answer = error == null ? change.apply(c) : null ;
+					if (attempt != passwordAttempt || state != HASHING_PASSWORD)
+						return null;
+					if (error != null)
+					{
+						state = retry ;
+						speak("\nThe system is busy. Please enter the password again\n") ;
+					}
+					else
+					{
+						state = next ;
+						speak(answer) ;
+					}
+					trace(state) ;
+					return null;
+				}
+			}, dispatcher) ;
+	}
+	
+	/**
+	 * Makes the change setting the password of a mailbox, if the mailbox still exists.
+	 * @param mailbox the extension number of the mailbox
+	 * @param answer what to say once the password is changed
+	 * @return the change
+	 */
+	private Function<Credential, String> changeCredential(final String mailbox, final String answer)
+	{
+		return new 
+			Function<Credential, String>()
+			{
+				public String apply(Credential c)
+				{
+					synchronized (center)
+					{
+						if (center.checkMailbox(mailbox))
+							center.setCredential(mailbox, c) ;
+					}
+					return answer;
+				}
+			};
+	}
+	
 	/**
 	 * Responds to the owner's choice from mailbox menu.
 	 * @param key the single key pressed by the user
@@ -281,32 +971,34 @@ public class ControlHub
 		{
 			case "1":
 				if (center.oldSize(extension) == 0 && center.newSize(extension) == 0)
-					phone.speak("\nThere is no message in your mailbox. Please come back at another time\n"
+					speak("\nThere is no message in your mailbox. Please come back at another time\n"
 							+ MAILBOX_MENU_TEXT) ;
 				else if (center.newSize(extension) == 0)
 				{
 					state = OLD_MESSAGE_MENU ;
 					center.resetCurrent(extension) ;
-					phone.speak("\nThere is no new message. You have " + center.oldSize(extension) + " old message(s).\n\n"
+					speak("\nThere is no new message. You have " + center.oldSize(extension) + " old message(s).\n\n"
 							+ "First old message:\n\n" + center.oldFront(extension) + OLD_MESSAGE_MENU_TEXT) ;
+					playAudio(center.getAudio(extension, true)) ;
 				}
 				else
 				{
 					state = NEW_MESSAGE_MENU ;
-					phone.speak("\nYou have " + center.newSize(extension) + " new message(s).\n\n"
+					speak("\nYou have " + center.newSize(extension) + " new message(s).\n\n"
 							+ "First new message:\n\n" + center.newFront(extension) + NEW_MESSAGE_MENU_TEXT) ;
+					playAudio(center.getAudio(extension, false)) ;
 				}
 				break ;
 			case "2":
 				state = OWNER_CHANGE_PASSWORD ;
-				phone.speak("\nEnter new password followed by the # key") ;
+				speak("\nEnter new password followed by the # key") ;
 				break ;
 			case "3":
 				state = GREETING_MENU ;
-				phone.speak("\nYou have " + center.getGreetingsCount(extension) + " greeting(s).\n" + GREETING_MENU_TEXT) ;
+				speak("\nYou have " + center.getGreetingsCount(extension) + " greeting(s).\n" + GREETING_MENU_TEXT) ;
 				break ;
 			default:
-				phone.speak("Invalid key. Please enter again.\n") ;
+				speak("Invalid key. Please enter again.\n") ;
 		}
 	}
 	
@@ -320,33 +1012,62 @@ public class ControlHub
 		{
 			case "1":
 				if (center.oldFront(extension) != center.currentMessage(extension))
-					phone.speak("\n" + center.currentMessage(extension) + OLD_MESSAGE_MENU_TEXT) ;
+					speak("\n" + center.currentMessage(extension) + OLD_MESSAGE_MENU_TEXT) ;
 				else
-					phone.speak("\n" + center.oldFront(extension) + OLD_MESSAGE_MENU_TEXT) ;
+					speak("\n" + center.oldFront(extension) + OLD_MESSAGE_MENU_TEXT) ;
+				playAudio(center.getAudio(extension, true)) ;
 				break ;
 			case "2":
 				center.removeOldMessage(extension) ;
 				if (center.oldSize(extension) != 0)
-					phone.speak("\nMessage deleted successfully\n\n"
+				{
+					speak("\nMessage deleted successfully\n\n"
 							+ "Next old message:\n\n" 
 							+ center.currentMessage(extension) + OLD_MESSAGE_MENU_TEXT) ;
+					playAudio(center.getAudio(extension, true)) ;
+				}
 				else
 				{
 					state = MAILBOX_MENU ;
-					phone.speak("\nMessage deleted successfully\n\n"
+					speak("\nMessage deleted successfully\n\n"
 							+ "You have no old message left\n" + MAILBOX_MENU_TEXT);
 				}
 				break ;
 			case "3":
 				center.advanceCurrent(extension) ;
-				phone.speak("\nNext old message:\n" + center.currentMessage(extension) + OLD_MESSAGE_MENU_TEXT) ;
+				speak("\nNext old message:\n" + center.currentMessage(extension) + OLD_MESSAGE_MENU_TEXT) ;
+				playAudio(center.getAudio(extension, true)) ;
 				break ;
 			case "4":
 				state = MAILBOX_MENU ;
-				phone.speak(MAILBOX_MENU_TEXT) ;
+				speak(MAILBOX_MENU_TEXT) ;
+				break ;
+			case "5":
+				prepForwardMessage(true) ;
+				break ;
+			case "6":
+				state = MAILBOX_MENU ;
+				speak("\n" + center.removeAllOldMessages(extension) + " message(s) deleted successfully\n\n"
+						+ "You have no old message left\n" + MAILBOX_MENU_TEXT) ;
+				break ;
+			case "7":
+				int deleted = center.removeHeardMessages(extension) ;
+				if (center.oldSize(extension) != 0)
+				{
+					speak("\n" + deleted + " message(s) deleted successfully\n\n"
+							+ "Next old message:\n\n" 
+							+ center.currentMessage(extension) + OLD_MESSAGE_MENU_TEXT) ;
+					playAudio(center.getAudio(extension, true)) ;
+				}
+				else
+				{
+					state = MAILBOX_MENU ;
+					speak("\n" + deleted + " message(s) deleted successfully\n\n"
+							+ "You have no old message left\n" + MAILBOX_MENU_TEXT) ;
+				}
 				break ;
 			default:
-				phone.speak("Invalid key. Please enter again.\n") ;
+				speak("Invalid key. Please enter again.\n") ;
 		}
 	}
 	
@@ -359,38 +1080,111 @@ public class ControlHub
 		switch (key)
 		{
 			case "1":
-				phone.speak("\n" + center.newFront(extension) + NEW_MESSAGE_MENU_TEXT) ;
+				speak("\n" + center.newFront(extension) + NEW_MESSAGE_MENU_TEXT) ;
+				playAudio(center.getAudio(extension, false)) ;
 				break ;
 			case "2":
 				center.saveNewMessage(extension) ;
 				if (center.newSize(extension) != 0)
-					phone.speak("\nMessage saved successfully\n\n"
+				{
+					speak("\nMessage saved successfully\n\n"
 							+ "Next new message:\n\n" + center.newFront(extension) + NEW_MESSAGE_MENU_TEXT) ;
+					playAudio(center.getAudio(extension, false)) ;
+				}
 				else
 				{
 					state = MAILBOX_MENU ;
-					phone.speak("\nMessage saved successfully\n\n"
+					speak("\nMessage saved successfully\n\n"
 							+ "You have no new message left\n" + MAILBOX_MENU_TEXT);
 				}
 				break ;
 			case "3":
 				center.removeNewMessage(extension) ;
 				if (center.newSize(extension) != 0)
-					phone.speak("\nMessage deleted successfully\n\n"
+				{
+					speak("\nMessage deleted successfully\n\n"
 							+ "Next new message:\n\n" + center.newFront(extension) + NEW_MESSAGE_MENU_TEXT) ;
+					playAudio(center.getAudio(extension, false)) ;
+				}
 				else
 				{
 					state = MAILBOX_MENU ;
-					phone.speak("\nMessage deleted successfully\n\n"
+					speak("\nMessage deleted successfully\n\n"
 							+ "You have no new message left\n" + MAILBOX_MENU_TEXT);
 				}
 				break ;
 			case "4":
 				state = MAILBOX_MENU ;
-				phone.speak(MAILBOX_MENU_TEXT) ;
+				speak(MAILBOX_MENU_TEXT) ;
+				break ;
+			case "5":
+				prepForwardMessage(false) ;
+				break ;
+			case "6":
+				int saved = center.saveAllNewMessages(extension) ;
+				if (center.newSize(extension) != 0)
+				{
+					speak("\n" + saved + " message(s) saved. There is no room to save the others\n\n"
+							+ "Next new message:\n\n" + center.newFront(extension) + NEW_MESSAGE_MENU_TEXT) ;
+					playAudio(center.getAudio(extension, false)) ;
+				}
+				else
+				{
+					state = MAILBOX_MENU ;
+					speak("\n" + saved + " message(s) saved successfully\n\n"
+							+ "You have no new message left\n" + MAILBOX_MENU_TEXT) ;
+				}
 				break ;
 			default:
-				phone.speak("Invalid key. Please enter again.\n") ;
+				speak("Invalid key. Please enter again.\n") ;
+		}
+	}
+	
+	/**
+	 * Starts forwarding the message the owner is listening to.
+	 * @param old true if the owner is in the old message menu, false if in the new message menu
+	 */
+	private void prepForwardMessage(boolean old)
+	{
+		state = FORWARD_MESSAGE ;
+		forwardingOld = old ;
+		members.clear() ;
+		speak("\nEnter each extension to forward to followed by #. Press # alone when done:") ;
+	}
+	
+	/**
+	 * Collects the extensions to forward to, then forwards the message to all of them at once.
+	 * @param key the single key pressed by the user
+	 */
+	private void forwardMessage(String key)
+	{
+		if (!key.equals("#"))
+			accumulatedKeys += key ;
+		else
+		{
+			if (accumulatedKeys == "")
+			{
+				String menu = forwardingOld ? OLD_MESSAGE_MENU_TEXT : NEW_MESSAGE_MENU_TEXT ;
+				state = forwardingOld ? OLD_MESSAGE_MENU : NEW_MESSAGE_MENU ;
+				if (members.isEmpty())
+					speak("\nNo message forwarded\n" + menu) ;
+				else
+				{
+					int delivered = center.forwardMessage(extension, forwardingOld, members) ;
+					speak("\nMessage forwarded to " + delivered + " mailbox(es)\n" + menu) ;
+				}
+				members.clear() ;
+				return;
+			}
+			
+			if (!center.checkMailbox(accumulatedKeys) && !center.isGroup(accumulatedKeys))
+				speak("\nThis mailbox does not exist. Please try a different one!\n") ;
+			else if (!members.contains(accumulatedKeys))
+			{
+				members.add(accumulatedKeys) ;
+				speak("\nExtension added. Enter another extension, or press # alone when done:") ;
+			}
+			accumulatedKeys = "" ;
 		}
 	}
 	
@@ -406,13 +1200,12 @@ public class ControlHub
 		{
 			if (accumulatedKeys == "")
 			{
-				phone.speak("Password can't be empty. Please enter new password again.\n") ;
+				speak("Password can't be empty. Please enter new password again.\n") ;
 				return;
 			}
 			
-			center.setPassword(extension, accumulatedKeys) ;
-			phone.speak("\nPassword changed successfully\n" + MAILBOX_MENU_TEXT) ;
-			state = MAILBOX_MENU ;
+			hashPassword(accumulatedKeys, changeCredential(extension, "\nPassword changed successfully\n" + MAILBOX_MENU_TEXT),
+					MAILBOX_MENU, OWNER_CHANGE_PASSWORD) ;
 			accumulatedKeys = "" ;
 		}
 	}
@@ -438,10 +1231,10 @@ public class ControlHub
 				break ;
 			case "4":
 				state = MAILBOX_MENU ;
-				phone.speak(MAILBOX_MENU_TEXT) ;
+				speak(MAILBOX_MENU_TEXT) ;
 				break ;
 			default:
-				phone.speak("Invalid key. Please enter again.\n") ;
+				speak("Invalid key. Please enter again.\n") ;
 		}
 	}
 	
@@ -452,14 +1245,14 @@ public class ControlHub
 	private void prepSwitchGreeting(int num)
 	{
 		if (num == 1)
-			phone.speak("\nYou only have 1 greeting. Please record a new one first to switch\n" + GREETING_MENU_TEXT) ;
+			speak("\nYou only have 1 greeting. Please record a new one first to switch\n" + GREETING_MENU_TEXT) ;
 		else
 		{
 			state = SWITCH_GREETING ;
 			for (int i = 1; i <= Mailbox.MAXIMUM_GREETING; i++)
 				if (center.getSpecificGreeting(extension, i) != null)
-					phone.speak("\nGreeting " + i + ":\n" + center.getSpecificGreeting(extension, i)) ;
-			phone.speak("Enter the number of the greeting you want to switch to:");
+					speak("\nGreeting " + i + ":\n" + center.getSpecificGreeting(extension, i)) ;
+			speak("Enter the number of the greeting you want to switch to:");
 		}
 	}
 	
@@ -474,16 +1267,16 @@ public class ControlHub
 		{
 			if (center.getSpecificGreeting(extension, k) == null)
 			{
-				phone.speak("\nThe greeting you choose doesn't exist. Please choose a different one\n") ;
+				speak("\nThe greeting you choose doesn't exist. Please choose a different one\n") ;
 				return;
 			}
 			
 			center.switchGreeting(extension, k) ;
-			phone.speak("\nGreeting switched succesfully\n" + GREETING_MENU_TEXT) ;
+			speak("\nGreeting switched succesfully\n" + GREETING_MENU_TEXT) ;
 			state = GREETING_MENU ;
 		}
 		else
-			phone.speak("Invalid key. Please enter again.\n") ;
+			speak("Invalid key. Please enter again.\n") ;
 	}
 	
 	/**
@@ -493,12 +1286,12 @@ public class ControlHub
 	private void prepRecordGreeting(int num)
 	{
 		if (num == 3)
-			phone.speak("\nYou have reached maximum of 3 greetings. To record a new one, "
+			speak("\nYou have reached maximum of 3 greetings. To record a new one, "
 					+ "please delete an existing greeting first\n" + GREETING_MENU_TEXT) ;
 		else
 		{
 			state = RECORD_GREETING ;
-			phone.speak("\nRecord your greeting, then press #") ;
+			speak("\nRecord your greeting, then press #") ;
 		}
 	}
 	
@@ -510,16 +1303,16 @@ public class ControlHub
 	{
 		if (key.equals("#"))
 		{
-			if (currentRecording == "")
+			if (currentRecording == "" && currentAudio.isEmpty())
 			{
-				phone.speak("Greeting can't be empty. Please record your greeting again.\n") ;
+				speak("Greeting can't be empty. Please record your greeting again.\n") ;
 				return;
 			}
 			
-			center.recordGreeting(extension, currentRecording) ;
-			currentRecording = "" ;
+			MessageBody greeting = takeRecording() ;
+			center.recordGreeting(extension, greeting.getContent(), greeting.getAudio()) ;
 			state = GREETING_MENU ;
-			phone.speak("\nGreeting recorded succesfully\n" + GREETING_MENU_TEXT) ;
+			speak("\nGreeting recorded succesfully\n" + GREETING_MENU_TEXT) ;
 		}
 	}
 	
@@ -530,15 +1323,15 @@ public class ControlHub
 	private void prepDeleteGreeting(int num)
 	{
 		if (num == 1)
-			phone.speak("\nYou can't delete your only greeting. To delete this greeting, "
+			speak("\nYou can't delete your only greeting. To delete this greeting, "
 					+ "please record a new one first\n" + GREETING_MENU_TEXT) ;
 		else
 		{
 			state = DELETE_GREETING ;
 			for (int i = 1; i <= Mailbox.MAXIMUM_GREETING; i++)
 				if (center.getSpecificGreeting(extension, i) != null)
-					phone.speak("\nGreeting " + i + ":\n" + center.getSpecificGreeting(extension, i)) ;
-			phone.speak("Enter the number of the greeting you want to delete:");
+					speak("\nGreeting " + i + ":\n" + center.getSpecificGreeting(extension, i)) ;
+			speak("Enter the number of the greeting you want to delete:");
 		}
 	}
 	
@@ -553,7 +1346,7 @@ public class ControlHub
 		{
 			if (k == center.getCurrentGreetingNumber(extension))
 			{
-				phone.speak("\nYou can't delete your currently used greeting. To delete this"
+				speak("\nYou can't delete your currently used greeting. To delete this"
 						+ " greeting, please switch to another one first\n" + GREETING_MENU_TEXT) ;
 				state = GREETING_MENU ;
 				return;
@@ -561,16 +1354,16 @@ public class ControlHub
 			
 			if (center.getSpecificGreeting(extension, k) == null)
 			{
-				phone.speak("\nThe greeting you choose doesn't exist. Please choose a different one\n") ;
+				speak("\nThe greeting you choose doesn't exist. Please choose a different one\n") ;
 				return;
 			}
 			
 			center.deleteGreeting(extension, k) ;
-			phone.speak("\nGreeting deleted succesfully\n" + GREETING_MENU_TEXT) ;
+			speak("\nGreeting deleted succesfully\n" + GREETING_MENU_TEXT) ;
 			state = GREETING_MENU ;
 		}
 		else
-			phone.speak("Invalid key. Please enter again.\n") ;
+			speak("Invalid key. Please enter again.\n") ;
 	}
 	
 	/**
@@ -583,24 +1376,146 @@ public class ControlHub
 		{
 			case "1":
 				state = CREATE_EXTENSION ;
-				phone.speak("\nEnter the extension number for the new mailbox:") ;
+				speak("\nEnter the extension number for the new mailbox:") ;
 				break ;
 			case "2":
 				state = FIND_EXTENSION ;
-				phone.speak("\nEnter the mailbox extension you want to change password:") ;
+				speak("\nEnter the mailbox extension you want to change password:") ;
 				break ;
 			case "3":
 				if (center.size() > 0)
 				{
-					center.resetAllPassword() ;
-					phone.speak("\nAll mailboxes passwords have been set to default, "
-							+ "which are the same as their extension number\n" + ADMIN_MENU_TEXT) ;
+					state = HASHING_PASSWORD ;
+					speak("\nAll mailboxes passwords are being set to default, "
+							+ "which are the same as their extension number. Please wait\n") ;
+					final int attempt = ++passwordAttempt ;
+					pendingPassword = center.resetAllPassword().handleAsync(new 
+						BiFunction<Integer, Throwable, Void>()
+						{
+							public Void apply(Integer reset, Throwable error)
+							{
+								if (attempt != passwordAttempt || state != HASHING_PASSWORD)
+									return null;
+								state = ADMIN_MENU ;
+								speak((error == null ? "\nAll mailboxes passwords have been set to default\n"
+										: "\nThe system is busy, so not every password has been set to default. "
+										+ "Please try again later\n") + ADMIN_MENU_TEXT) ;
+								trace(state) ;
+								return null;
+							}
+						}, dispatcher) ;
+				}
+				else
+					speak("\nThere is no mailbox in the system. Please create a mailbox first\n" + ADMIN_MENU_TEXT) ;
+				break ;
+			case "4":
+				if (center.size() > 0)
+				{
+					state = CREATE_GROUP ;
+					speak("\nEnter the extension number for the new distribution list:") ;
 				}
 				else
-					phone.speak("\nThere is no mailbox in the system. Please create a mailbox first\n" + ADMIN_MENU_TEXT) ;
+					speak("\nThere is no mailbox in the system. Please create a mailbox first\n" + ADMIN_MENU_TEXT) ;
+				break ;
+			case "5":
+				List<String> fullest = center.fullestMailboxes(STATISTICS_TOP) ;
+				speak("\nThere are " + center.size() + " mailbox(es) with " + center.totalNewMessages()
+						+ " new and " + center.totalOldMessages() + " old message(s).\n"
+						+ center.fullMailboxCount() + " mailbox(es) can't receive new messages, and "
+						+ center.defaultGreetingCount() + " still use the default greeting.\n"
+						+ (fullest.isEmpty() ? "" : "Fullest mailboxes: " + String.join(", ", fullest) + "\n")
+						+ ADMIN_MENU_TEXT) ;
+				break ;
+			case "6":
+				if (scheduler == null)
+					speak("\nScheduled delivery isn't available\n" + ADMIN_MENU_TEXT) ;
+				else if (center.size() > 0)
+				{
+					state = ANNOUNCE_EXTENSION ;
+					speak("\nEnter the mailbox or distribution list to receive the announcement:") ;
+				}
+				else
+					speak("\nThere is no mailbox in the system. Please create a mailbox first\n" + ADMIN_MENU_TEXT) ;
 				break ;
 			default:
-				phone.speak("Invalid key. Please enter again.\n") ;
+				speak("Invalid key. Please enter again.\n") ;
+		}
+	}
+	
+	/**
+	 * Reads the number of hours entered so far.
+	 * @return the number of hours, or 0 if what was entered isn't from 1 to 9999
+	 */
+	private long enteredHours()
+	{
+		if (accumulatedKeys.length() == 0 || accumulatedKeys.length() > MAXIMUM_DELAY_DIGITS
+				|| !accumulatedKeys.matches("[0-9]+"))
+			return 0;
+		return Long.parseLong(accumulatedKeys);
+	}
+	
+	/**
+	 * Takes the mailbox or distribution list receiving a recurring announcement.
+	 * @param key the single key pressed by the user
+	 */
+	private void announceExtension(String key)
+	{
+		if (!key.equals("#"))
+			accumulatedKeys += key ;
+		else
+		{
+			if (center.checkMailbox(accumulatedKeys) || center.isGroup(accumulatedKeys))
+			{
+				extension = accumulatedKeys ;
+				state = ANNOUNCE_INTERVAL ;
+				speak("\nEnter the number of hours between two announcements followed by the # key") ;
+			}
+			else
+				speak("\nThis mailbox does not exist. Please try a different one!\n") ;
+			accumulatedKeys = "" ;
+		}
+	}
+	
+	/**
+	 * Takes the number of hours between two deliveries of a recurring announcement.
+	 * @param key the single key pressed by the user
+	 */
+	private void announceInterval(String key)
+	{
+		if (!key.equals("#"))
+			accumulatedKeys += key ;
+		else
+		{
+			if (enteredHours() == 0)
+				speak("\nPlease enter from 1 to 9999 hours followed by the # key\n") ;
+			else
+			{
+				delayHours = enteredHours() ;
+				state = RECORD_ANNOUNCEMENT ;
+				speak("\nRecord the announcement, then press the # key") ;
+			}
+			accumulatedKeys = "" ;
+		}
+	}
+	
+	/**
+	 * Schedules the recorded announcement, delivered right away and then every chosen number of hours.
+	 * @param key the single key pressed by the user
+	 */
+	private void recordAnnouncement(String key)
+	{
+		if (key.equals("#"))
+		{
+			if (currentRecording == "" && currentAudio.isEmpty())
+			{
+				speak("Announcement can't be empty. Please record your announcement again.\n") ;
+				return;
+			}
+			
+			scheduler.scheduleRecurring(extension, takeRecording(), System.currentTimeMillis(), delayHours * HOUR_MILLIS) ;
+			delayHours = 0 ;
+			state = ADMIN_MENU ;
+			speak("\nAnnouncement scheduled\n" + ADMIN_MENU_TEXT) ;
 		}
 	}
 	
@@ -616,20 +1531,20 @@ public class ControlHub
 		{
 			if (accumulatedKeys == "")
 			{
-				phone.speak("\nExtension can't be empty. Please enter again\n") ;
+				speak("\nExtension can't be empty. Please enter again\n") ;
 				return;
 			}
 			
 			if (center.checkMailbox(accumulatedKeys))
 			{
-				phone.speak("\nThis extension already existed. Please create a different extension\n" + ADMIN_MENU_TEXT) ;
+				speak("\nThis extension already existed. Please create a different extension\n" + ADMIN_MENU_TEXT) ;
 				state = ADMIN_MENU ;
 			}
 			else
 			{
 				state = CREATE_PASSWORD ;
 				extension = accumulatedKeys ;
-				phone.speak("\nEnter the password for the new mailbox:") ;
+				speak("\nEnter the password for the new mailbox:") ;
 			}
 			accumulatedKeys = "" ;
 		}
@@ -647,13 +1562,25 @@ public class ControlHub
 		{
 			if (accumulatedKeys == "")
 			{
-				phone.speak("\nPassword can't be empty. Please enter the password again\n") ;
+				speak("\nPassword can't be empty. Please enter the password again\n") ;
 				return;
 			}
 			
-			center.add(extension, accumulatedKeys) ; 
-			phone.speak("\nNew mailbox created successfully\n" + ADMIN_MENU_TEXT) ;
-			state = ADMIN_MENU ;
+			final String created = extension ;
+			hashPassword(accumulatedKeys, new 
+				Function<Credential, String>()
+				{
+					public String apply(Credential c)
+					{
+						synchronized (center)
+						{
+							if (center.checkMailbox(created) || center.isGroup(created))
+								return "\nThis extension has just been taken. Please choose another one\n" + ADMIN_MENU_TEXT;
+							center.add(created, c) ;
+						}
+						return "\nNew mailbox created successfully\n" + ADMIN_MENU_TEXT;
+					}
+				}, ADMIN_MENU, CREATE_PASSWORD) ;
 			accumulatedKeys = "" ;
 		}
 	}
@@ -672,10 +1599,10 @@ public class ControlHub
 			{
 				state = ADMIN_CHANGE_PASSWORD ;
 				extension = accumulatedKeys ;
-				phone.speak("\nEnter new password for this mailbox:") ;
+				speak("\nEnter new password for this mailbox:") ;
 			}
 			else
-				phone.speak("\nThis mailbox does not exist. Please try a different one!\n") ;
+				speak("\nThis mailbox does not exist. Please try a different one!\n") ;
 			accumulatedKeys = "" ;
 		}
 	}
@@ -692,13 +1619,82 @@ public class ControlHub
 		{
 			if (accumulatedKeys == "")
 			{
-				phone.speak("\nPassword can't be empty. Please enter new password again\n") ;
+				speak("\nPassword can't be empty. Please enter new password again\n") ;
 				return;
 			}
 			
-			center.setPassword(extension, accumulatedKeys) ;
-			phone.speak("\nPassword changed succesfully\n" + ADMIN_MENU_TEXT) ;
-			state = ADMIN_MENU ;
+			hashPassword(accumulatedKeys, changeCredential(extension, "\nPassword changed succesfully\n" + ADMIN_MENU_TEXT),
+					ADMIN_MENU, ADMIN_CHANGE_PASSWORD) ;
+			accumulatedKeys = "" ;
+		}
+	}
+	
+	/**
+	 * Chooses the extension of a new distribution list.
+	 * @param key the single key pressed by the user
+	 */
+	private void createGroup(String key)
+	{
+		if (!key.equals("#"))
+			accumulatedKeys += key ;
+		else
+		{
+			if (accumulatedKeys == "")
+			{
+				speak("\nExtension can't be empty. Please enter again\n") ;
+				return;
+			}
+			
+			if (center.checkMailbox(accumulatedKeys) || center.isGroup(accumulatedKeys))
+			{
+				speak("\nThis extension already existed. Please create a different extension\n" + ADMIN_MENU_TEXT) ;
+				state = ADMIN_MENU ;
+			}
+			else
+			{
+				state = ADD_GROUP_MEMBER ;
+				extension = accumulatedKeys ;
+				members.clear() ;
+				speak("\nEnter each member mailbox followed by #. Press # alone when done:") ;
+			}
+			accumulatedKeys = "" ;
+		}
+	}
+	
+	/**
+	 * Adds a member mailbox to the new distribution list, or creates the list when the admin is done.
+	 * @param key the single key pressed by the user
+	 */
+	private void addGroupMember(String key)
+	{
+		if (!key.equals("#"))
+			accumulatedKeys += key ;
+		else
+		{
+			if (accumulatedKeys == "")
+			{
+				if (members.isEmpty())
+				{
+					speak("\nA distribution list needs at least 1 member. Please enter a member mailbox\n") ;
+					return;
+				}
+				
+				center.addGroup(extension, members) ;
+				speak("\nDistribution list created with " + members.size() + " member(s)\n" + ADMIN_MENU_TEXT) ;
+				members.clear() ;
+				state = ADMIN_MENU ;
+				return;
+			}
+			
+			if (!center.checkMailbox(accumulatedKeys))
+				speak("\nThis mailbox does not exist. Please try a different one!\n") ;
+			else if (members.contains(accumulatedKeys))
+				speak("\nThis mailbox is already a member\n") ;
+			else
+			{
+				members.add(accumulatedKeys) ;
+				speak("\nMember added. Enter another member mailbox, or press # alone when done:") ;
+			}
 			accumulatedKeys = "" ;
 		}
 	}
@@ -0,0 +1,127 @@
+import java.io.Serializable ;
+import java.security.* ;
+import java.security.spec.InvalidKeySpecException ;
+import java.util.Arrays ;
+import javax.crypto.Mac ;
+import javax.crypto.SecretKeyFactory ;
+import javax.crypto.spec.SecretKeySpec ;
+import javax.crypto.spec.PBEKeySpec ;
+
+/**
+ * A password stored as a salted PBKDF2 hash, so the password itself is never kept.
+ * The work factor is the number of hashing iterations; the higher, the slower each check,
+ * for the owner and for anyone guessing.
+ */
+public class Credential implements Serializable
+{
+	private final byte[] salt ;
+	private final byte[] hash ;
+	private final int iterations ;
+	
+	public static final int DEFAULT_ITERATIONS = 100000 ;
+	private static final int SALT_BYTES = 16 ;
+	private static final int HASH_BITS = 256 ;
+	private static final String ALGORITHM = "PBKDF2WithHmacSHA256" ;
+	private static final SecureRandom random = new SecureRandom() ;
+	private static final long serialVersionUID = 1L ;
+	
+	/**
+	 * Constructs a credential from its parts.
+	 * @param salt the random salt
+	 * @param hash the hash of the password with the salt
+	 * @param iterations the work factor the hash was made with
+	 */
+	private Credential(byte[] salt, byte[] hash, int iterations)
+	{
+		this.salt = salt ;
+		this.hash = hash ;
+		this.iterations = iterations ;
+	}
+	
+	/**
+	 * Hashes a password with a new random salt. Takes as long as a check.
+	 * @param password the password
+	 * @param iterations the work factor
+	 * @return the credential
+	 * @precondition password.length() > 0 && iterations > 0
+	 */
+	public static Credential create(String password, int iterations)
+	{
+		assert(password.length() > 0 && iterations > 0) : "Password can't be empty!" ;
+		byte[] salt = new byte[SALT_BYTES] ;
+		random.nextBytes(salt) ;
+		return new Credential(salt, derive(password, salt, iterations), iterations);
+	}
+	
+	/**
+	 * Checks if a password matches, taking the same time whether it does or not.
+	 * @param password the input password
+	 * @return true if the password is correct
+	 */
+	public boolean verify(String password)
+	{
+		return password.length() > 0 && MessageDigest.isEqual(hash, derive(password, salt, iterations));
+	}
+	
+	/**
+	 * Gets the work factor the hash was made with.
+	 * @return the number of iterations
+	 */
+	public int getIterations()
+	{
+		return iterations;
+	}
+	
+	/**
+	 * Computes a quick fingerprint of a password for this credential, used to recognize a password
+	 * that has just been verified without stretching it again. The fingerprint is keyed with a secret
+	 * that never leaves the process, so a leaked fingerprint can't be used to guess the password quickly.
+	 * @param key the secret key
+	 * @param password the password
+	 * @return the HMAC-SHA256 of the salt and the password
+	 */
+	public byte[] fingerprint(byte[] key, String password)
+	{
+		try
+		{
+			Mac mac = Mac.getInstance("HmacSHA256") ;
+			mac.init(new SecretKeySpec(key, "HmacSHA256")) ;
+			mac.update(salt) ;
+			return mac.doFinal(password.getBytes(java.nio.charset.StandardCharsets.UTF_8));
+		}
+		catch (NoSuchAlgorithmException | InvalidKeyException e)
+		{
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	/**
+	 * Runs the key stretching.
+	 * @param password the password
+	 * @param salt the salt
+	 * @param iterations the work factor
+	 * @return the hash
+	 */
+	private static byte[] derive(String password, byte[] salt, int iterations)
+	{
+		PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, HASH_BITS) ;
+		try
+		{
+			return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec).getEncoded();
+		}
+		catch (NoSuchAlgorithmException | InvalidKeySpecException e)
+		{
+			throw new IllegalStateException(ALGORITHM + " is not available", e);
+		}
+		finally
+		{
+			spec.clearPassword() ;
+		}
+	}
+	
+	@Override
+	public String toString()
+	{
+		return "Credential[" + iterations + " iterations, salt " + Arrays.hashCode(salt) + "]";
+	}
+}
@@ -0,0 +1,555 @@
+import java.io.* ;
+import java.util.* ;
+
+/**
+ * Holds messages to be delivered at a future time, once or repeatedly, in a time-sorted log on disk.
+ * Deliveries are appended to one file per minute of due time, so only the minute that is due is ever
+ * read back into memory, however many deliveries are waiting. A single thread wakes up when the earliest
+ * minute is due and stores its deliveries in batches, each under one lock of the mail center. That thread
+ * also writes new deliveries to disk, so scheduling one never waits for the disk or for a batch being stored.
+ * A minute's file is deleted only once all its deliveries have been stored, so after a crash a delivery
+ * may be repeated but is never lost.
+ */
+public class DeliveryScheduler
+{
+	private final MailCenter center ;
+	private File directory ;
+	private final boolean temporary ;
+	private final TreeSet<Long> buckets ;
+	private final PriorityQueue<Delivery> due ;
+	private long loadedBucket ;
+	private final HashSet<Long> cancelled ;
+	private final ArrayDeque<Delivery> incoming ;
+	private long nextId ;
+	private Thread worker ;
+	
+	public static final long BUCKET_MILLIS = 60000 ;
+	public static final long RETRY_MILLIS = 60000 ;
+	public static final int MAXIMUM_BATCH = 16 ;
+	private static final String BUCKET_PREFIX = "bucket-" ;
+	private static final String BUCKET_SUFFIX = ".log" ;
+	private static final String CANCELLED_FILE = "cancelled.log" ;
+	
+	/**
+	 * Constructs a scheduler keeping its deliveries in a temporary directory, created the first time one is scheduled.
+	 * @param c the mail center receiving the messages
+	 */
+	public DeliveryScheduler(MailCenter c)
+	{
+		center = c ;
+		directory = null ;
+		temporary = true ;
+		buckets = new TreeSet<Long>() ;
+		due = new PriorityQueue<Delivery>() ;
+		loadedBucket = -1 ;
+		cancelled = new HashSet<Long>() ;
+		incoming = new ArrayDeque<Delivery>() ;
+		nextId = 0 ;
+	}
+	
+	/**
+	 * Constructs a scheduler keeping its deliveries in supplied directory, picking up those left there earlier.
+	 * @param c the mail center receiving the messages
+	 * @param dir the directory holding the delivery log
+	 */
+	public DeliveryScheduler(MailCenter c, File dir)
+	{
+		center = c ;
+		directory = dir ;
+		temporary = false ;
+		buckets = new TreeSet<Long>() ;
+		due = new PriorityQueue<Delivery>() ;
+		loadedBucket = -1 ;
+		cancelled = new HashSet<Long>() ;
+		incoming = new ArrayDeque<Delivery>() ;
+		nextId = 0 ;
+		
+		dir.mkdirs() ;
+		File[] files = dir.listFiles() ;
+		if (files != null)
+			for (File f: files)
+			{
+				String name = f.getName() ;
+				if (name.startsWith(BUCKET_PREFIX) && name.endsWith(BUCKET_SUFFIX))
+					buckets.add(Long.parseLong(name.substring(BUCKET_PREFIX.length(), name.length() - BUCKET_SUFFIX.length()))) ;
+			}
+		readCancelled() ;
+	}
+	
+	/**
+	 * Starts the thread delivering messages when they are due. Does nothing if already started.
+	 */
+	public synchronized void start()
+	{
+		if (worker != null)
+			return;
+		worker = new Thread(new 
+			Runnable()
+			{
+				public void run()
+				{
+					deliverOnTime() ;
+				}
+			}, "delivery-scheduler") ;
+		worker.setDaemon(true) ;
+		worker.start() ;
+	}
+	
+	/**
+	 * Stops the delivery thread. Scheduled deliveries stay on disk, including those it hadn't written yet.
+	 */
+	public void stop()
+	{
+		Thread t ;
+		synchronized (this)
+		{
+			t = worker ;
+			worker = null ;
+		}
+		if (t != null)
+			t.interrupt() ;
+		synchronized (this)
+		{
+			appendIncoming() ;
+		}
+	}
+	
+	/**
+	 * Schedules a message to be delivered once to a mailbox or distribution list.
+	 * @param extension the extension number of the mailbox or distribution list
+	 * @param body the body of the message
+	 * @param callerId the line the caller called from, or Message.UNKNOWN_CALLER
+	 * @param priority Message.NORMAL or Message.URGENT
+	 * @param dueAt the time the message is to be delivered, in milliseconds
+	 * @return the id of the scheduled delivery
+	 */
+	public long schedule(String extension, MessageBody body, long callerId, int priority, long dueAt)
+	{
+		return schedule(extension, body, callerId, priority, dueAt, 0);
+	}
+	
+	/**
+	 * Schedules an announcement to be delivered to a mailbox or distribution list again and again until cancelled.
+	 * Occurrences missed while the system was down are skipped, not delivered in a burst.
+	 * @param extension the extension number of the mailbox or distribution list
+	 * @param body the body of the announcement
+	 * @param firstAt the time of the first delivery, in milliseconds
+	 * @param everyMillis the time between two deliveries
+	 * @return the id of the scheduled delivery
+	 * @precondition everyMillis > 0
+	 */
+	public long scheduleRecurring(String extension, MessageBody body, long firstAt, long everyMillis)
+	{
+		assert(everyMillis > 0) : "Interval must be bigger than 0!" ;
+		return schedule(extension, body, Message.UNKNOWN_CALLER, Message.NORMAL, firstAt, everyMillis);
+	}
+	
+	/**
+	 * Hands a new delivery to the delivery thread, which appends it to the log.
+	 * @param extension the extension number of the mailbox or distribution list
+	 * @param body the body of the message
+	 * @param callerId the line the caller called from
+	 * @param priority the priority of the message
+	 * @param dueAt the time of the delivery
+	 * @param everyMillis the time between two deliveries, or 0 to deliver once
+	 * @return the id of the delivery
+	 */
+	private long schedule(String extension, MessageBody body, long callerId, int priority, long dueAt, long everyMillis)
+	{
+		synchronized (incoming)
+		{
+			nextId = Math.max(nextId + 1, System.currentTimeMillis() * 1000) ;
+			incoming.add(new Delivery(nextId, dueAt, everyMillis, extension, body.getContent(), body.getAudio(), callerId, priority)) ;
+			incoming.notifyAll() ;
+			return nextId;
+		}
+	}
+	
+	/**
+	 * Cancels a scheduled delivery, including every later occurrence of a recurring one and every
+	 * retry for a full mailbox. The id is kept until no delivery is left in the log, since several
+	 * records may carry it.
+	 * @param id the id of the delivery
+	 */
+	public synchronized void cancel(long id)
+	{
+		if (!cancelled.add(id))
+			return;
+		try (DataOutputStream out = new DataOutputStream(new FileOutputStream(fileOf(CANCELLED_FILE), true)))
+		{
+			out.writeLong(id) ;
+		}
+		catch (IOException e)
+		{
+			throw new UncheckedIOException("Can't record cancelled delivery " + id, e);
+		}
+	}
+	
+	/**
+	 * Gets the number of minutes that have deliveries waiting.
+	 * @return the number of log files
+	 */
+	public synchronized int bucketCount()
+	{
+		appendIncoming() ;
+		return buckets.size();
+	}
+	
+	/**
+	 * Delivers every message that is due, a batch at a time.
+	 * @param now the current time in milliseconds
+	 * @return the number of messages stored into mailboxes
+	 */
+	public synchronized int deliverDue(long now)
+	{
+		int delivered = 0 ;
+		ArrayList<Delivery> batch = new ArrayList<Delivery>(MAXIMUM_BATCH) ;
+		ArrayList<Delivery> later = new ArrayList<Delivery>() ;
+		appendIncoming() ;
+		while ((!due.isEmpty() || loadNext(now)) && due.peek().dueAt <= now)
+		{
+			while (batch.size() < MAXIMUM_BATCH && !due.isEmpty() && due.peek().dueAt <= now)
+			{
+				Delivery d = due.poll() ;
+				if (!cancelled.contains(d.id))
+					batch.add(d) ;
+			}
+			
+			synchronized (center)
+			{
+				for (Delivery d: batch)
+					delivered += store(d, now, later) ;
+			}
+			for (Delivery d: batch)
+				if (d.everyMillis > 0)
+					later.add(d.next(now)) ;
+			for (Delivery d: later)
+				append(d) ;
+			batch.clear() ;
+			later.clear() ;
+			
+			if (due.isEmpty())
+				finishBucket() ;
+		}
+		return delivered;
+	}
+	
+	/**
+	 * Stores one delivery into every receiving mailbox that can still receive it. Mailboxes that
+	 * are full get it again later, under the same id; mailboxes that no longer exist are skipped.
+	 * @param d the delivery
+	 * @param now the current time in milliseconds
+	 * @param later the deliveries to be appended once the batch is stored
+	 * @return the number of mailboxes that received the message
+	 */
+	private int store(Delivery d, long now, List<Delivery> later)
+	{
+		String[] targets = center.isGroup(d.extension) ? center.getMembers(d.extension) : new String[] { d.extension } ;
+		MessageBody body = new MessageBody(d.text, d.audio) ;
+		int delivered = 0 ;
+		for (String t: targets)
+			if (!center.checkMailbox(t))
+				continue ;
+			else if (center.newSize(t) < Mailbox.MAXIMUM_MESSAGE)
+			{
+				center.recordNewMessage(t, body, d.callerId, d.priority) ;
+				delivered++ ;
+			}
+			else
+				later.add(new Delivery(d.id, now + RETRY_MILLIS, 0, t, d.text, d.audio, d.callerId, d.priority)) ;
+		return delivered;
+	}
+	
+	/**
+	 * Delivers messages as they fall due, and writes new ones as they are scheduled, until the thread is interrupted.
+	 */
+	private void deliverOnTime()
+	{
+		try
+		{
+			while (!Thread.currentThread().isInterrupted())
+			{
+				long wake ;
+				synchronized (this)
+				{
+					deliverDue(System.currentTimeMillis()) ;
+					wake = nextDue() ;
+				}
+				synchronized (incoming)
+				{
+					if (!incoming.isEmpty())
+						continue ;
+					if (wake == Long.MAX_VALUE)
+						incoming.wait() ;
+					else if (wake > System.currentTimeMillis())
+						incoming.wait(wake - System.currentTimeMillis()) ;
+				}
+			}
+		}
+		catch (InterruptedException e)
+		{
+			return;
+		}
+	}
+	
+	/**
+	 * Gets the earliest time something may be due: the first delivery in memory, or the start of the first minute on disk.
+	 * @return the time in milliseconds, or Long.MAX_VALUE if nothing is scheduled
+	 */
+	private long nextDue()
+	{
+		if (!due.isEmpty())
+			return due.peek().dueAt;
+		return buckets.isEmpty() ? Long.MAX_VALUE : buckets.first();
+	}
+	
+	/**
+	 * Reads the earliest minute's deliveries into memory if that minute has started.
+	 * Minutes whose deliveries have all been cancelled are dropped on the way.
+	 * @param now the current time in milliseconds
+	 * @return true if deliveries have been read
+	 */
+	private boolean loadNext(long now)
+	{
+		while (!buckets.isEmpty() && buckets.first() <= now)
+		{
+			loadedBucket = buckets.first() ;
+			try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(bucketFile(loadedBucket)))))
+			{
+				while (true)
+				{
+					byte[] record = new byte[in.readInt()] ;
+					in.readFully(record) ;
+					Delivery d = Delivery.fromBytes(record) ;
+					if (!cancelled.contains(d.id))
+						due.add(d) ;
+				}
+			}
+			catch (EOFException e)
+			{
+				// the end of the log, or a record cut short by a crash
+			}
+			catch (IOException e)
+			{
+				throw new UncheckedIOException("Can't read deliveries due at " + loadedBucket, e);
+			}
+			
+			if (!due.isEmpty())
+				return true;
+			finishBucket() ;
+		}
+		return false;
+	}
+	
+	/**
+	 * Deletes the log of the minute in memory once all of its deliveries are done. Forgets the
+	 * cancelled ids once no delivery is left that could carry one.
+	 */
+	private void finishBucket()
+	{
+		bucketFile(loadedBucket).delete() ;
+		buckets.remove(loadedBucket) ;
+		loadedBucket = -1 ;
+		synchronized (incoming)
+		{
+			if (!buckets.isEmpty() || !incoming.isEmpty() || cancelled.isEmpty())
+				return;
+		}
+		cancelled.clear() ;
+		writeCancelled() ;
+	}
+	
+	/**
+	 * Appends the deliveries scheduled since the last call to the log.
+	 */
+	private void appendIncoming()
+	{
+		ArrayList<Delivery> scheduled ;
+		synchronized (incoming)
+		{
+			scheduled = new ArrayList<Delivery>(incoming) ;
+			incoming.clear() ;
+		}
+		for (Delivery d: scheduled)
+			append(d) ;
+	}
+	
+	/**
+	 * Appends a delivery to the log of its minute, or of the minute in memory if its own has already passed.
+	 * @param d the delivery
+	 */
+	private void append(Delivery d)
+	{
+		long bucket = d.dueAt - Math.floorMod(d.dueAt, BUCKET_MILLIS) ;
+		if (loadedBucket >= 0 && bucket <= loadedBucket)
+		{
+			bucket = loadedBucket ;
+			due.add(d) ;
+		}
+		
+		byte[] record = d.toBytes() ;
+		File f = bucketFile(bucket) ;
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f, true))))
+		{
+			out.writeInt(record.length) ;
+			out.write(record) ;
+		}
+		catch (IOException e)
+		{
+			throw new UncheckedIOException("Can't write delivery " + d.id, e);
+		}
+		buckets.add(bucket) ;
+	}
+	
+	/**
+	 * Reads back the ids of cancelled deliveries that haven't been forgotten yet.
+	 */
+	private void readCancelled()
+	{
+		File f = new File(directory, CANCELLED_FILE) ;
+		if (!f.exists())
+			return;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f))))
+		{
+			while (true)
+				cancelled.add(in.readLong()) ;
+		}
+		catch (EOFException e)
+		{
+			// the end of the file
+		}
+		catch (IOException e)
+		{
+			throw new UncheckedIOException("Can't read cancelled deliveries", e);
+		}
+	}
+	
+	/**
+	 * Rewrites the file of cancelled ids after they have been forgotten.
+	 */
+	private void writeCancelled()
+	{
+		File f = fileOf(CANCELLED_FILE) ;
+		File temp = new File(f.getPath() + ".tmp") ;
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp))))
+		{
+			for (long id: cancelled)
+				out.writeLong(id) ;
+		}
+		catch (IOException e)
+		{
+			throw new UncheckedIOException("Can't record cancelled deliveries", e);
+		}
+		if (!temp.renameTo(f) && !(f.delete() && temp.renameTo(f)))
+			throw new UncheckedIOException(new IOException("Can't replace " + f));
+	}
+	
+	/**
+	 * Gets the log file of a minute.
+	 * @param bucket the start of the minute in milliseconds
+	 * @return the file
+	 */
+	private File bucketFile(long bucket)
+	{
+		return fileOf(BUCKET_PREFIX + bucket + BUCKET_SUFFIX);
+	}
+	
+	/**
+	 * Gets a file of the log, creating the temporary directory if needed.
+	 * @param name the name of the file
+	 * @return the file
+	 */
+	private File fileOf(String name)
+	{
+		if (directory == null)
+		{
+			try
+			{
+				directory = java.nio.file.Files.createTempDirectory("deliveries").toFile() ;
+				directory.deleteOnExit() ;
+			}
+			catch (IOException e)
+			{
+				throw new UncheckedIOException("Can't create delivery directory", e);
+			}
+		}
+		File f = new File(directory, name) ;
+		if (temporary)
+			f.deleteOnExit() ;
+		return f;
+	}
+	
+	/**
+	 * A message waiting to be delivered.
+	 */
+	private static class Delivery implements Serializable, Comparable<Delivery>
+	{
+		private final long id ;
+		private final long dueAt ;
+		private final long everyMillis ;
+		private final String extension ;
+		private final String text ;
+		private final AudioClip audio ;
+		private final long callerId ;
+		private final int priority ;
+		
+		private static final long serialVersionUID = 1L ;
+		
+		private Delivery(long id, long dueAt, long everyMillis, String extension, String text,
+				AudioClip audio, long callerId, int priority)
+		{
+			this.id = id ;
+			this.dueAt = dueAt ;
+			this.everyMillis = everyMillis ;
+			this.extension = extension ;
+			this.text = text ;
+			this.audio = audio ;
+			this.callerId = callerId ;
+			this.priority = priority ;
+		}
+		
+		/**
+		 * Gets the next occurrence of a recurring delivery, skipping those already missed.
+		 * @param now the current time in milliseconds
+		 * @return the next occurrence, with the same id
+		 */
+		private Delivery next(long now)
+		{
+			long at = dueAt + everyMillis ;
+			if (at <= now)
+				at = now + everyMillis ;
+			return new Delivery(id, at, everyMillis, extension, text, audio, callerId, priority);
+		}
+		
+		private byte[] toBytes()
+		{
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream() ;
+			try (ObjectOutputStream out = new ObjectOutputStream(bytes))
+			{
+				out.writeObject(this) ;
+			}
+			catch (IOException e)
+			{
+				throw new UncheckedIOException(e);
+			}
+			return bytes.toByteArray();
+		}
+		
+		private static Delivery fromBytes(byte[] record) throws IOException
+		{
+			try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(record)))
+			{
+				return (Delivery) in.readObject();
+			}
+			catch (ClassNotFoundException e)
+			{
+				throw new IOException(e);
+			}
+		}
+		
+		public int compareTo(Delivery other)
+		{
+			return Long.compare(dueAt, other.dueAt);
+		}
+	}
+}
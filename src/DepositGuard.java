@@ -0,0 +1,261 @@
+import java.util.Arrays ;
+
+/**
+ * Limits how many messages can be left per mailbox and per phone line within a sliding window.
+ * Counts are kept in count-min sketches, so memory stays the same however many callers there are;
+ * a sketch can only overestimate a count, never underestimate it. Each sketch keeps the counts of
+ * the current window and of the previous one, and the previous counts are weighed by how much of
+ * the previous window the sliding window still covers.
+ * A message reserves its place when the caller starts leaving it, so callers on many lines can't all
+ * get past the limit of one mailbox at once. The reservation becomes a count once the message has been
+ * stored, and is given back if it isn't, so a caller who hangs up without leaving anything uses up nothing.
+ */
+public class DepositGuard
+{
+	private final Sketch mailboxes ;
+	private final Sketch lines ;
+	private final Sketch reservedMailboxes ;
+	private final Sketch reservedLines ;
+	private final int mailboxLimit ;
+	private final int lineLimit ;
+	private final long windowMillis ;
+	private long windowStart ;
+	private long rejectedCount ;
+	
+	public static final int DEFAULT_MAILBOX_DEPOSITS = 6 ;
+	public static final int DEFAULT_LINE_DEPOSITS = 20 ;
+	public static final long DEFAULT_WINDOW_MILLIS = 60000 ;
+	public static final int SKETCH_DEPTH = 4 ;
+	public static final int SKETCH_WIDTH = 256 ;
+	
+	/**
+	 * Constructs a guard with the default limits: 6 messages per mailbox and 20 per line in any minute,
+	 * more than anyone can record by hand on a single line.
+	 */
+	public DepositGuard()
+	{
+		this(DEFAULT_MAILBOX_DEPOSITS, DEFAULT_LINE_DEPOSITS, DEFAULT_WINDOW_MILLIS) ;
+	}
+	
+	/**
+	 * Constructs a guard with supplied limits.
+	 * @param mailboxDeposits the messages allowed per mailbox within a window
+	 * @param lineDeposits the messages allowed per line within a window
+	 * @param windowMillis the length of the window
+	 * @precondition mailboxDeposits > 0 && lineDeposits > 0 && windowMillis > 0
+	 */
+	public DepositGuard(int mailboxDeposits, int lineDeposits, long windowMillis)
+	{
+		assert(mailboxDeposits > 0 && lineDeposits > 0) : "Deposits must be bigger than 0!" ;
+		assert(windowMillis > 0) : "Window must be bigger than 0!" ;
+		mailboxes = new Sketch() ;
+		lines = new Sketch() ;
+		reservedMailboxes = new Sketch() ;
+		reservedLines = new Sketch() ;
+		mailboxLimit = mailboxDeposits ;
+		lineLimit = lineDeposits ;
+		this.windowMillis = windowMillis ;
+		windowStart = 0 ;
+		rejectedCount = 0 ;
+	}
+	
+	/**
+	 * Checks whether a message may be left in a mailbox from a line, i.e. neither has reached its limit
+	 * counting the messages being left right now, and if so reserves a place for it. The reservation
+	 * must be ended by recordDeposit once the message is stored, or by releaseDeposit if it isn't.
+	 * @param extension the extension number of the mailbox or distribution list
+	 * @param line the number of the phone line the caller calls from
+	 * @return true if the message is allowed
+	 */
+	public boolean allowDeposit(String extension, int line)
+	{
+		return allowDeposit(extension, line, System.currentTimeMillis());
+	}
+	
+	/**
+	 * Checks whether a message may be left at a given time, e.g. the time recorded in a session trace,
+	 * and if so reserves a place for it.
+	 * @param extension the extension number of the mailbox or distribution list
+	 * @param line the number of the phone line the caller calls from
+	 * @param now the time in milliseconds
+	 * @return true if the message is allowed
+	 */
+	public synchronized boolean allowDeposit(String extension, int line, long now)
+	{
+		slide(now) ;
+		double weight = 1 - (double) (now - windowStart) / windowMillis ;
+		int key = extension.hashCode() ;
+		if (mailboxes.estimate(key, weight) + reservedMailboxes.estimate(key, 0) >= mailboxLimit
+				|| lines.estimate(line, weight) + reservedLines.estimate(line, 0) >= lineLimit)
+		{
+			rejectedCount++ ;
+			return false;
+		}
+		reservedMailboxes.add(key) ;
+		reservedLines.add(line) ;
+		return true;
+	}
+	
+	/**
+	 * Counts a message that has been stored in a mailbox or distribution list from a line, in place of its reservation.
+	 * @param extension the extension number of the mailbox or distribution list
+	 * @param line the number of the phone line the caller called from
+	 * @precondition allowDeposit(extension, line) reserved a place not yet counted or released
+	 */
+	public void recordDeposit(String extension, int line)
+	{
+		recordDeposit(extension, line, System.currentTimeMillis()) ;
+	}
+	
+	/**
+	 * Counts a message stored at a given time, e.g. the time recorded in a session trace, in place of its reservation.
+	 * @param extension the extension number of the mailbox or distribution list
+	 * @param line the number of the phone line the caller called from
+	 * @param now the time in milliseconds
+	 * @precondition allowDeposit(extension, line) reserved a place not yet counted or released
+	 */
+	public synchronized void recordDeposit(String extension, int line, long now)
+	{
+		slide(now) ;
+		reservedMailboxes.remove(extension.hashCode()) ;
+		reservedLines.remove(line) ;
+		mailboxes.add(extension.hashCode()) ;
+		lines.add(line) ;
+	}
+	
+	/**
+	 * Gives back the place reserved for a message that hasn't been stored, e.g. because the caller hung up.
+	 * @param extension the extension number of the mailbox or distribution list
+	 * @param line the number of the phone line the caller called from
+	 * @precondition allowDeposit(extension, line) reserved a place not yet counted or released
+	 */
+	public synchronized void releaseDeposit(String extension, int line)
+	{
+		reservedMailboxes.remove(extension.hashCode()) ;
+		reservedLines.remove(line) ;
+	}
+	
+	/**
+	 * Gets the number of messages rejected so far.
+	 * @return the number of rejected messages
+	 */
+	public synchronized long getRejectedCount()
+	{
+		return rejectedCount;
+	}
+	
+	/**
+	 * Moves the window forward to the one holding the current time.
+	 * @param now the current time in milliseconds
+	 */
+	private void slide(long now)
+	{
+		if (now < windowStart + windowMillis)
+			return;
+		long start = now - now % windowMillis ;
+		if (start == windowStart + windowMillis)
+		{
+			mailboxes.rotate() ;
+			lines.rotate() ;
+		}
+		else
+		{
+			mailboxes.clear() ;
+			lines.clear() ;
+		}
+		windowStart = start ;
+	}
+	
+	/**
+	 * A count-min sketch for the current window and another for the previous one.
+	 */
+	private static class Sketch
+	{
+		private int[][] current ;
+		private int[][] previous ;
+		
+		private Sketch()
+		{
+			current = new int[SKETCH_DEPTH][SKETCH_WIDTH] ;
+			previous = new int[SKETCH_DEPTH][SKETCH_WIDTH] ;
+		}
+		
+		/**
+		 * Gets the column of a key in a row. Each row mixes the key with its own seed.
+		 * @param key the key
+		 * @param row the row
+		 * @return the column
+		 */
+		private static int column(int key, int row)
+		{
+			int h = key * 0x9E3779B9 + row * 0x85EBCA6B ;
+			h ^= h >>> 16 ;
+			h *= 0x7FEB352D ;
+			h ^= h >>> 15 ;
+			return (h & 0x7FFFFFFF) % SKETCH_WIDTH;
+		}
+		
+		/**
+		 * Estimates the count of a key over the sliding window.
+		 * @param key the key
+		 * @param weight the share of the previous window still covered
+		 * @return the estimated count
+		 */
+		private double estimate(int key, double weight)
+		{
+			int now = Integer.MAX_VALUE ;
+			int before = Integer.MAX_VALUE ;
+			for (int row = 0; row < SKETCH_DEPTH; row++)
+			{
+				int c = column(key, row) ;
+				now = Math.min(now, current[row][c]) ;
+				before = Math.min(before, previous[row][c]) ;
+			}
+			return now + before * weight;
+		}
+		
+		/**
+		 * Counts one more occurrence of a key in the current window.
+		 * @param key the key
+		 */
+		private void add(int key)
+		{
+			for (int row = 0; row < SKETCH_DEPTH; row++)
+				current[row][column(key, row)]++ ;
+		}
+		
+		/**
+		 * Counts one occurrence of a key less in the current window.
+		 * @param key the key, counted before
+		 */
+		private void remove(int key)
+		{
+			for (int row = 0; row < SKETCH_DEPTH; row++)
+				current[row][column(key, row)]-- ;
+		}
+		
+		/**
+		 * Makes the current window the previous one and starts an empty current window.
+		 */
+		private void rotate()
+		{
+			int[][] t = previous ;
+			previous = current ;
+			current = t ;
+			for (int[] row: current)
+				Arrays.fill(row, 0) ;
+		}
+		
+		/**
+		 * Empties both windows.
+		 */
+		private void clear()
+		{
+			for (int row = 0; row < SKETCH_DEPTH; row++)
+			{
+				Arrays.fill(current[row], 0) ;
+				Arrays.fill(previous[row], 0) ;
+			}
+		}
+	}
+}
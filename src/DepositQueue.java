@@ -0,0 +1,341 @@
+import java.util.* ;
+import java.util.concurrent.* ;
+import java.util.function.Function ;
+
+/**
+ * A bounded queue of finished recordings. A dedicated writer thread takes them off the queue
+ * and stores them into the mail center in batches, so the caller never waits for storage.
+ */
+public class DepositQueue
+{
+	private final MailCenter center ;
+	private final BlockingQueue<Deposit> deposits ;
+	private final Thread writer ;
+	
+	public static final int DEFAULT_CAPACITY = 64 ;
+	public static final int MAXIMUM_BATCH = 16 ;
+	public static final int MAXIMUM_FANOUT = 64 ;
+	
+	/**
+	 * Constructs a deposit queue with the default capacity and starts its writer.
+	 * @param c the mail center receiving the recordings
+	 */
+	public DepositQueue(MailCenter c)
+	{
+		this(c, DEFAULT_CAPACITY) ;
+	}
+	
+	/**
+	 * Constructs a deposit queue with supplied capacity and starts its writer.
+	 * @param c the mail center receiving the recordings
+	 * @param capacity the maximum number of recordings waiting to be stored
+	 * @precondition capacity > 0
+	 */
+	public DepositQueue(MailCenter c, int capacity)
+	{
+		assert(capacity > 0) : "Capacity of the queue must be bigger than 0!" ;
+		center = c ;
+		deposits = new ArrayBlockingQueue<Deposit>(capacity) ;
+		writer = new Thread(new 
+			Runnable()
+			{
+				public void run()
+				{
+					writeBatches() ;
+				}
+			}, "deposit-writer") ;
+		writer.setDaemon(true) ;
+		writer.start() ;
+	}
+	
+	/**
+	 * Queues a recording from an unknown caller for the mailbox with provided extension.
+	 * Blocks only if the queue is full, until the writer makes room.
+	 * @param extension the extension number of the mailbox
+	 * @param content the content of the new message
+	 * @return a future completed with true once the message is stored,
+	 * or false if the mailbox no longer exists or is already full
+	 * @precondition content.length() > 0
+	 */
+	public CompletableFuture<Boolean> submit(String extension, String content)
+	{
+		return submit(extension, content, Message.UNKNOWN_CALLER);
+	}
+	
+	/**
+	 * Queues a recording for the mailbox with provided extension.
+	 * Blocks only if the queue is full, until the writer makes room.
+	 * @param extension the extension number of the mailbox
+	 * @param content the content of the new message
+	 * @param callerId the line the caller called from, or Message.UNKNOWN_CALLER
+	 * @return a future completed with true once the message is stored,
+	 * or false if the mailbox no longer exists or is already full
+	 * @precondition content.length() > 0
+	 */
+	public CompletableFuture<Boolean> submit(String extension, String content, long callerId)
+	{
+		assert(content.length() > 0) : "Message can't be empty!" ;
+		return submit(extension, new MessageBody(content), callerId);
+	}
+	
+	/**
+	 * Queues a recorded body for the mailbox with provided extension.
+	 * Blocks only if the queue is full, until the writer makes room.
+	 * @param extension the extension number of the mailbox
+	 * @param body the body of the new message
+	 * @param callerId the line the caller called from, or Message.UNKNOWN_CALLER
+	 * @return a future completed with true once the message is stored,
+	 * or false if the mailbox no longer exists or is already full
+	 */
+	public CompletableFuture<Boolean> submit(String extension, MessageBody body, long callerId)
+	{
+		return submit(extension, body, callerId, Message.NORMAL);
+	}
+	
+	/**
+	 * Queues a recorded body with supplied priority for the mailbox with provided extension.
+	 * Blocks only if the queue is full, until the writer makes room.
+	 * @param extension the extension number of the mailbox
+	 * @param body the body of the new message
+	 * @param callerId the line the caller called from, or Message.UNKNOWN_CALLER
+	 * @param priority Message.NORMAL or Message.URGENT
+	 * @return a future completed with true once the message is stored,
+	 * or false if the mailbox no longer exists or is already full
+	 */
+	public CompletableFuture<Boolean> submit(String extension, MessageBody body, long callerId, int priority)
+	{
+		return enqueue(new String[] { extension }, body, callerId, priority).thenApply(new 
+			Function<Integer, Boolean>()
+			{
+				public Boolean apply(Integer delivered)
+				{
+					return delivered == 1;
+				}
+			});
+	}
+	
+	/**
+	 * Queues one recording for every member of a distribution list. The body is stored once and
+	 * shared by all the members' messages. Blocks only if the queue is full, until the writer makes room.
+	 * @param extensions the extension numbers of the member mailboxes
+	 * @param content the content of the new message
+	 * @param callerId the line the caller called from, or Message.UNKNOWN_CALLER
+	 * @return a future completed with the number of mailboxes that received the message
+	 * @precondition content.length() > 0
+	 */
+	public CompletableFuture<Integer> submitBroadcast(String[] extensions, String content, long callerId)
+	{
+		assert(content.length() > 0) : "Message can't be empty!" ;
+		return submitBroadcast(extensions, new MessageBody(content), callerId);
+	}
+	
+	/**
+	 * Queues one recorded body for every member of a distribution list.
+	 * Blocks only if the queue is full, until the writer makes room.
+	 * @param extensions the extension numbers of the member mailboxes
+	 * @param body the body shared by all the members' messages
+	 * @param callerId the line the caller called from, or Message.UNKNOWN_CALLER
+	 * @return a future completed with the number of mailboxes that received the message
+	 */
+	public CompletableFuture<Integer> submitBroadcast(String[] extensions, MessageBody body, long callerId)
+	{
+		return submitBroadcast(extensions, body, callerId, Message.NORMAL);
+	}
+	
+	/**
+	 * Queues one recorded body with supplied priority for every member of a distribution list.
+	 * Blocks only if the queue is full, until the writer makes room.
+	 * @param extensions the extension numbers of the member mailboxes
+	 * @param body the body shared by all the members' messages
+	 * @param callerId the line the caller called from, or Message.UNKNOWN_CALLER
+	 * @param priority Message.NORMAL or Message.URGENT
+	 * @return a future completed with the number of mailboxes that received the message
+	 */
+	public CompletableFuture<Integer> submitBroadcast(String[] extensions, MessageBody body, long callerId, int priority)
+	{
+		return enqueue(extensions.clone(), body, callerId, priority);
+	}
+	
+	/**
+	 * Queues a recorded body with supplied priority for the mailbox with provided extension without ever blocking,
+	 * e.g. from the event dispatch thread.
+	 * @param extension the extension number of the mailbox
+	 * @param body the body of the new message
+	 * @param callerId the line the caller called from, or Message.UNKNOWN_CALLER
+	 * @param priority Message.NORMAL or Message.URGENT
+	 * @return a future completed with true once the message is stored, false if the mailbox no longer exists
+	 * or is already full, or failed with a RejectedExecutionException if the queue is full
+	 */
+	public CompletableFuture<Boolean> offer(String extension, MessageBody body, long callerId, int priority)
+	{
+		return offerBroadcast(new String[] { extension }, body, callerId, priority).thenApply(new 
+			Function<Integer, Boolean>()
+			{
+				public Boolean apply(Integer delivered)
+				{
+					return delivered == 1;
+				}
+			});
+	}
+	
+	/**
+	 * Queues one recorded body with supplied priority for every member of a distribution list without ever blocking.
+	 * @param extensions the extension numbers of the member mailboxes
+	 * @param body the body shared by all the members' messages
+	 * @param callerId the line the caller called from, or Message.UNKNOWN_CALLER
+	 * @param priority Message.NORMAL or Message.URGENT
+	 * @return a future completed with the number of mailboxes that received the message,
+	 * or failed with a RejectedExecutionException if the queue is full
+	 */
+	public CompletableFuture<Integer> offerBroadcast(String[] extensions, MessageBody body, long callerId, int priority)
+	{
+		Deposit d = new Deposit(extensions.clone(), body, callerId, priority) ;
+		if (!deposits.offer(d))
+			d.result.completeExceptionally(new RejectedExecutionException("The deposit queue is full")) ;
+		return d.result;
+	}
+	
+	/**
+	 * Puts a deposit on the queue.
+	 * @param extensions the extension numbers of the receiving mailboxes
+	 * @param body the body of the new message
+	 * @param callerId the line the caller called from
+	 * @param priority the priority of the new message
+	 * @return a future completed with the number of mailboxes that received the message
+	 */
+	private CompletableFuture<Integer> enqueue(String[] extensions, MessageBody body, long callerId, int priority)
+	{
+		Deposit d = new Deposit(extensions, body, callerId, priority) ;
+		try
+		{
+			deposits.put(d) ;
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt() ;
+			d.result.complete(0) ;
+		}
+		return d.result;
+	}
+	
+	/**
+	 * Waits until every recording queued so far has been stored, e.g. to replay calls deterministically.
+	 */
+	public void awaitStored()
+	{
+		enqueue(new String[0], null, Message.UNKNOWN_CALLER, Message.NORMAL).join() ;
+	}
+	
+	/**
+	 * Gets the number of recordings waiting to be stored.
+	 * @return the number of pending deposits
+	 */
+	public int pending()
+	{
+		return deposits.size();
+	}
+	
+	/**
+	 * Takes recordings off the queue and stores each batch, taking the lock of the mail center once
+	 * for every MAXIMUM_FANOUT mailboxes, so a message for a long distribution list doesn't keep
+	 * callers waiting for the lock until it reaches every member. The futures are completed only once the lock is released, so whatever waits on them never
+	 * runs while holding it. A recording that can't be stored fails its own future, not the writer.
+	 */
+	private void writeBatches()
+	{
+		ArrayList<Deposit> batch = new ArrayList<Deposit>(MAXIMUM_BATCH) ;
+		int[] delivered = new int[MAXIMUM_BATCH] ;
+		Throwable[] failures = new Throwable[MAXIMUM_BATCH] ;
+		try
+		{
+			while (true)
+			{
+				batch.add(deposits.take()) ;
+				deposits.drainTo(batch, MAXIMUM_BATCH - 1) ;
+				int next = 0 ;
+				int from = 0 ;
+				while (next < batch.size())
+					synchronized (center)
+					{
+						int budget = MAXIMUM_FANOUT ;
+						while (next < batch.size() && budget > 0)
+						{
+							Deposit d = batch.get(next) ;
+							int to = Math.min(d.extensions.length, from + budget) ;
+							try
+							{
+								delivered[next] += store(d, from, to) ;
+							}
+							catch (RuntimeException | AssertionError e)
+							{
+								failures[next] = e ;
+								to = d.extensions.length ;
+							}
+							budget -= Math.max(1, to - from) ;
+							from = to ;
+							if (from == d.extensions.length)
+							{
+								next++ ;
+								from = 0 ;
+							}
+						}
+					}
+				for (int i = 0; i < batch.size(); i++)
+				{
+					if (failures[i] == null)
+						batch.get(i).result.complete(delivered[i]) ;
+					else
+						batch.get(i).result.completeExceptionally(failures[i]) ;
+					delivered[i] = 0 ;
+					failures[i] = null ;
+				}
+				batch.clear() ;
+			}
+		}
+		catch (InterruptedException e)
+		{
+			for (Deposit d: batch)
+				d.result.complete(0) ;
+		}
+	}
+	
+	/**
+	 * Stores one recording into some of its receiving mailboxes, those that can still receive it.
+	 * @param d the recording to be stored
+	 * @param from the position of the first receiving mailbox
+	 * @param to the position after the last receiving mailbox
+	 * @return the number of mailboxes that received the message
+	 */
+	private int store(Deposit d, int from, int to)
+	{
+		int delivered = 0 ;
+		for (int i = from; i < to; i++)
+			if (center.checkMailbox(d.extensions[i]) && center.newSize(d.extensions[i]) < Mailbox.MAXIMUM_MESSAGE)
+			{
+				center.recordNewMessage(d.extensions[i], d.body, d.callerId, d.priority) ;
+				delivered++ ;
+			}
+		return delivered;
+	}
+	
+	/**
+	 * A finished recording waiting to be stored.
+	 */
+	private static class Deposit
+	{
+		private final String[] extensions ;
+		private final MessageBody body ;
+		private final long callerId ;
+		private final int priority ;
+		private final CompletableFuture<Integer> result ;
+		
+		private Deposit(String[] extensions, MessageBody body, long callerId, int priority)
+		{
+			this.priority = priority ;
+			this.extensions = extensions ;
+			this.body = body ;
+			this.callerId = callerId ;
+			result = new CompletableFuture<Integer>() ;
+		}
+	}
+}
@@ -0,0 +1,222 @@
+import java.util.* ;
+
+/**
+ * A digit trie of extension numbers. Looking up an extension or checking whether a dialed prefix
+ * can still lead to one costs time proportional to the length of the extension, whatever the size
+ * of the directory. Extensions are listed in the same order as sorted strings.
+ */
+public class ExtensionTrie
+{
+	private final Node root ;
+	
+	/**
+	 * The keys an extension can be made of, in string order.
+	 */
+	public static final String KEYS = "*0123456789" ;
+	
+	/**
+	 * Constructs an empty trie.
+	 */
+	public ExtensionTrie()
+	{
+		root = new Node() ;
+	}
+	
+	/**
+	 * Checks if a string can be stored as an extension.
+	 * @param extension the string
+	 * @return true if it is nonempty and made only of KEYS
+	 */
+	public static boolean isValid(String extension)
+	{
+		if (extension.length() == 0)
+			return false;
+		for (int i = 0; i < extension.length(); i++)
+			if (KEYS.indexOf(extension.charAt(i)) < 0)
+				return false;
+		return true;
+	}
+	
+	/**
+	 * Gets the number of extensions in the trie.
+	 * @return the number of extensions
+	 */
+	public int size()
+	{
+		return root.count;
+	}
+	
+	/**
+	 * Adds an extension.
+	 * @param extension the extension number
+	 * @return true if it wasn't in the trie yet
+	 * @throws IllegalArgumentException if the extension isn't valid, even when assertions are disabled
+	 * @precondition isValid(extension)
+	 */
+	public boolean add(String extension)
+	{
+		if (!isValid(extension))
+			throw new IllegalArgumentException("Extension can only have digits and *: " + extension);
+		if (contains(extension))
+			return false;
+		Node n = root ;
+		n.count++ ;
+		for (int i = 0; i < extension.length(); i++)
+		{
+			int k = KEYS.indexOf(extension.charAt(i)) ;
+			if (n.children[k] == null)
+				n.children[k] = new Node() ;
+			n = n.children[k] ;
+			n.count++ ;
+		}
+		n.terminal = true ;
+		return true;
+	}
+	
+	/**
+	 * Removes an extension, dropping the nodes no other extension uses.
+	 * @param extension the extension number
+	 * @return true if it was in the trie
+	 */
+	public boolean remove(String extension)
+	{
+		if (!contains(extension))
+			return false;
+		Node n = root ;
+		n.count-- ;
+		for (int i = 0; i < extension.length(); i++)
+		{
+			int k = KEYS.indexOf(extension.charAt(i)) ;
+			if (--n.children[k].count == 0)
+			{
+				n.children[k] = null ;
+				return true;
+			}
+			n = n.children[k] ;
+		}
+		n.terminal = false ;
+		return true;
+	}
+	
+	/**
+	 * Checks if an extension is in the trie.
+	 * @param extension the extension number
+	 * @return true if it is in the trie
+	 */
+	public boolean contains(String extension)
+	{
+		Node n = find(extension) ;
+		return n != null && n.terminal;
+	}
+	
+	/**
+	 * Checks if some extension starts with the supplied prefix, i.e. if a caller who has dialed
+	 * the prefix can still reach an extension.
+	 * @param prefix the dialed digits
+	 * @return true if at least one extension starts with the prefix
+	 */
+	public boolean hasPrefix(String prefix)
+	{
+		return find(prefix) != null;
+	}
+	
+	/**
+	 * Counts the extensions starting with the supplied prefix.
+	 * @param prefix the leading digits, e.g. "41" for 41xx
+	 * @return the number of extensions
+	 */
+	public int countWithPrefix(String prefix)
+	{
+		Node n = find(prefix) ;
+		return n == null ? 0 : n.count;
+	}
+	
+	/**
+	 * Gets the extensions starting with the supplied prefix.
+	 * @param prefix the leading digits, e.g. "41" for 41xx
+	 * @return the sorted list of extensions
+	 */
+	public List<String> withPrefix(String prefix)
+	{
+		ArrayList<String> list = new ArrayList<String>() ;
+		Node n = find(prefix) ;
+		if (n != null)
+			collect(n, new StringBuilder(prefix), null, null, list) ;
+		return list;
+	}
+	
+	/**
+	 * Gets the extensions in a range, in string order.
+	 * @param from the lowest extension, inclusive
+	 * @param to the highest extension, exclusive
+	 * @return the sorted list of extensions
+	 */
+	public List<String> range(String from, String to)
+	{
+		ArrayList<String> list = new ArrayList<String>() ;
+		if (from.compareTo(to) < 0)
+			collect(root, new StringBuilder(), from, to, list) ;
+		return list;
+	}
+	
+	/**
+	 * Gets every extension in the trie.
+	 * @return the sorted list of extensions
+	 */
+	public List<String> toList()
+	{
+		return withPrefix("");
+	}
+	
+	/**
+	 * Walks down the trie along the supplied digits.
+	 * @param prefix the digits
+	 * @return the node reached, or null if no extension starts with the digits
+	 */
+	private Node find(String prefix)
+	{
+		Node n = root ;
+		for (int i = 0; i < prefix.length() && n != null; i++)
+		{
+			int k = KEYS.indexOf(prefix.charAt(i)) ;
+			n = k < 0 ? null : n.children[k] ;
+		}
+		return n;
+	}
+	
+	/**
+	 * Adds the extensions below a node to a list in string order, skipping subtrees entirely outside the range.
+	 * @param n the node
+	 * @param path the digits leading to the node
+	 * @param from the lowest extension, inclusive, or null for no bound
+	 * @param to the highest extension, exclusive, or null for no bound
+	 * @param list the list receiving the extensions
+	 */
+	private static void collect(Node n, StringBuilder path, String from, String to, List<String> list)
+	{
+		String p = path.toString() ;
+		if (to != null && p.compareTo(to) >= 0)
+			return;
+		if (from != null && p.compareTo(from) < 0 && !from.startsWith(p))
+			return;
+		if (n.terminal && (from == null || p.compareTo(from) >= 0))
+			list.add(p) ;
+		for (int k = 0; k < n.children.length; k++)
+			if (n.children[k] != null)
+			{
+				path.append(KEYS.charAt(k)) ;
+				collect(n.children[k], path, from, to, list) ;
+				path.setLength(path.length() - 1) ;
+			}
+	}
+	
+	/**
+	 * A digit of one or more extensions, counting the extensions below it.
+	 */
+	private static class Node
+	{
+		private final Node[] children = new Node[KEYS.length()] ;
+		private int count ;
+		private boolean terminal ;
+	}
+}
@@ -0,0 +1,113 @@
+import java.nio.charset.StandardCharsets ;
+import java.util.* ;
+
+/**
+ * A consistent hash ring assigning keys to named nodes. Each node is placed on the ring many times,
+ * so keys spread evenly, and adding or removing a node only moves the keys next to its places.
+ */
+public class HashRing
+{
+	private final TreeMap<Long, String> ring ;
+	private final TreeSet<String> nodes ;
+	private final int replicas ;
+	
+	public static final int DEFAULT_REPLICAS = 64 ;
+	
+	/**
+	 * Constructs an empty ring placing every node the default number of times.
+	 */
+	public HashRing()
+	{
+		this(DEFAULT_REPLICAS) ;
+	}
+	
+	/**
+	 * Constructs an empty ring.
+	 * @param replicas the number of places each node takes on the ring
+	 * @precondition replicas > 0
+	 */
+	public HashRing(int replicas)
+	{
+		assert(replicas > 0) : "Replicas must be bigger than 0!" ;
+		this.replicas = replicas ;
+		ring = new TreeMap<Long, String>() ;
+		nodes = new TreeSet<String>() ;
+	}
+	
+	/**
+	 * Adds a node to the ring.
+	 * @param node the name of the node
+	 * @precondition !contains(node)
+	 */
+	public void add(String node)
+	{
+		assert(!contains(node)) : "Node already exists!" ;
+		nodes.add(node) ;
+		for (int i = 0; i < replicas; i++)
+			ring.put(hash(node + "#" + i), node) ;
+	}
+	
+	/**
+	 * Removes a node from the ring.
+	 * @param node the name of the node
+	 * @precondition contains(node)
+	 */
+	public void remove(String node)
+	{
+		assert(contains(node)) : "Node doesn't exist!" ;
+		nodes.remove(node) ;
+		for (int i = 0; i < replicas; i++)
+			ring.remove(hash(node + "#" + i), node) ;
+	}
+	
+	/**
+	 * Checks if a node is on the ring.
+	 * @param node the name of the node
+	 * @return true if the node is on the ring
+	 */
+	public boolean contains(String node)
+	{
+		return nodes.contains(node);
+	}
+	
+	/**
+	 * Gets the number of nodes on the ring.
+	 * @return the number of nodes
+	 */
+	public int size()
+	{
+		return nodes.size();
+	}
+	
+	/**
+	 * Finds the node owning a key: the first node place at or after the key's hash, wrapping around.
+	 * @param key the key
+	 * @return the name of the owning node
+	 * @precondition size() > 0
+	 */
+	public String nodeFor(String key)
+	{
+		assert(size() > 0) : "There is no node on the ring!" ;
+		Map.Entry<Long, String> e = ring.ceilingEntry(hash(key)) ;
+		return e != null ? e.getValue() : ring.firstEntry().getValue();
+	}
+	
+	/**
+	 * Hashes a string with 64-bit FNV-1a followed by a bit mixer, so similar keys land far apart.
+	 * @param s the string
+	 * @return the hash
+	 */
+	private static long hash(String s)
+	{
+		long h = 0xcbf29ce484222325L ;
+		for (byte b: s.getBytes(StandardCharsets.UTF_8))
+		{
+			h ^= b & 0xff ;
+			h *= 0x100000001b3L ;
+		}
+		h ^= h >>> 33 ;
+		h *= 0xff51afd7ed558ccdL ;
+		h ^= h >>> 33 ;
+		return h;
+	}
+}
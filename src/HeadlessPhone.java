@@ -0,0 +1,50 @@
+import java.util.* ;
+
+/**
+ * A phone without a window or sound, keeping what the hub says so it can be checked,
+ * e.g. while replaying a session trace.
+ */
+public class HeadlessPhone implements Phone
+{
+	private final ArrayList<String> spoken ;
+	private int playCount ;
+	
+	/**
+	 * Constructs a phone that hasn't heard anything yet.
+	 */
+	public HeadlessPhone()
+	{
+		spoken = new ArrayList<String>() ;
+		playCount = 0 ;
+	}
+	
+	public synchronized void speak(String output)
+	{
+		spoken.add(output) ;
+	}
+	
+	public synchronized void play(AudioClip clip)
+	{
+		playCount++ ;
+	}
+	
+	/**
+	 * Takes everything spoken since the last call.
+	 * @return the outputs, in order
+	 */
+	public synchronized List<String> takeSpoken()
+	{
+		ArrayList<String> list = new ArrayList<String>(spoken) ;
+		spoken.clear() ;
+		return list;
+	}
+	
+	/**
+	 * Gets the number of audio clips played so far.
+	 * @return the number of clips
+	 */
+	public synchronized int getPlayCount()
+	{
+		return playCount;
+	}
+}
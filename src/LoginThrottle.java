@@ -0,0 +1,174 @@
+import java.util.Iterator ;
+import java.util.concurrent.* ;
+import java.util.concurrent.atomic.* ;
+
+/**
+ * Limits password and access code attempts per extension and per phone line with token buckets.
+ * Each bucket is a single number, the time at which it will be full again, so refilling is computed
+ * lazily from the clock and taking a token is one compare-and-set. A rejected attempt changes nothing:
+ * if the extension's bucket runs out after the line's token was taken, that token is given back.
+ */
+public class LoginThrottle
+{
+	private final ConcurrentHashMap<String, AtomicLong> extensions ;
+	private final ConcurrentHashMap<Integer, AtomicLong> lines ;
+	private final long extensionInterval ;
+	private final long extensionTolerance ;
+	private final long lineInterval ;
+	private final long lineTolerance ;
+	private final LongAdder rejectedCount ;
+	
+	public static final int DEFAULT_EXTENSION_ATTEMPTS = 5 ;
+	public static final long DEFAULT_EXTENSION_REFILL_MILLIS = 60000 ;
+	public static final int DEFAULT_LINE_ATTEMPTS = 10 ;
+	public static final long DEFAULT_LINE_REFILL_MILLIS = 10000 ;
+	
+	/**
+	 * Constructs a throttle with the default limits: 5 attempts per extension, refilled one per minute,
+	 * and 10 attempts per line, refilled one every 10 seconds.
+	 */
+	public LoginThrottle()
+	{
+		this(DEFAULT_EXTENSION_ATTEMPTS, DEFAULT_EXTENSION_REFILL_MILLIS, DEFAULT_LINE_ATTEMPTS, DEFAULT_LINE_REFILL_MILLIS) ;
+	}
+	
+	/**
+	 * Constructs a throttle with supplied limits.
+	 * @param extensionAttempts the attempts allowed in a burst on one extension
+	 * @param extensionRefillMillis the time to get back one attempt on an extension
+	 * @param lineAttempts the attempts allowed in a burst on one line
+	 * @param lineRefillMillis the time to get back one attempt on a line
+	 * @precondition extensionAttempts > 0 && lineAttempts > 0
+	 * @precondition extensionRefillMillis > 0 && lineRefillMillis > 0
+	 */
+	public LoginThrottle(int extensionAttempts, long extensionRefillMillis, int lineAttempts, long lineRefillMillis)
+	{
+		assert(extensionAttempts > 0 && lineAttempts > 0) : "Attempts must be bigger than 0!" ;
+		assert(extensionRefillMillis > 0 && lineRefillMillis > 0) : "Refill time must be bigger than 0!" ;
+		extensions = new ConcurrentHashMap<String, AtomicLong>() ;
+		lines = new ConcurrentHashMap<Integer, AtomicLong>() ;
+		extensionInterval = extensionRefillMillis ;
+		extensionTolerance = (extensionAttempts - 1) * extensionRefillMillis ;
+		lineInterval = lineRefillMillis ;
+		lineTolerance = (lineAttempts - 1) * lineRefillMillis ;
+		rejectedCount = new LongAdder() ;
+	}
+	
+	/**
+	 * Takes one attempt from the line's bucket and, if supplied, from the extension's bucket.
+	 * @param extension the extension or access code being tried, or null to only count against the line
+	 * @param line the number of the phone line the attempt comes from
+	 * @return true if the attempt is allowed, false if one of the buckets is empty
+	 */
+	public boolean tryAttempt(String extension, int line)
+	{
+		return tryAttempt(extension, line, System.currentTimeMillis());
+	}
+	
+	/**
+	 * Takes one attempt at a given time, e.g. the time recorded in a session trace.
+	 * @param extension the extension or access code being tried, or null to only count against the line
+	 * @param line the number of the phone line the attempt comes from
+	 * @param now the time of the attempt in milliseconds
+	 * @return true if the attempt is allowed, false if one of the buckets is empty
+	 */
+	public boolean tryAttempt(String extension, int line, long now)
+	{
+		AtomicLong lineBucket = bucket(lines, line) ;
+		AtomicLong extensionBucket = extension == null ? null : bucket(extensions, extension) ;
+		if (!hasToken(lineBucket, now, lineTolerance)
+				|| (extensionBucket != null && !hasToken(extensionBucket, now, extensionTolerance)))
+		{
+			rejectedCount.increment() ;
+			return false;
+		}
+		
+		if (!take(lineBucket, now, lineInterval, lineTolerance))
+		{
+			rejectedCount.increment() ;
+			return false;
+		}
+		if (extensionBucket != null && !take(extensionBucket, now, extensionInterval, extensionTolerance))
+		{
+			lineBucket.addAndGet(-lineInterval) ;
+			rejectedCount.increment() ;
+			return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Gets the number of attempts rejected so far.
+	 * @return the number of rejected attempts
+	 */
+	public long getRejectedCount()
+	{
+		return rejectedCount.sum();
+	}
+	
+	/**
+	 * Forgets the buckets that have refilled completely, since they hold nothing worth keeping.
+	 */
+	public void purge()
+	{
+		long now = System.currentTimeMillis() ;
+		for (Iterator<AtomicLong> i = extensions.values().iterator(); i.hasNext(); )
+			if (i.next().get() <= now)
+				i.remove() ;
+		for (Iterator<AtomicLong> i = lines.values().iterator(); i.hasNext(); )
+			if (i.next().get() <= now)
+				i.remove() ;
+	}
+	
+	/**
+	 * Gets the bucket of a key, creating a full one if there is none.
+	 * @param map the buckets
+	 * @param key the key
+	 * @return the bucket
+	 */
+	private static <K> AtomicLong bucket(ConcurrentHashMap<K, AtomicLong> map, K key)
+	{
+		AtomicLong b = map.get(key) ;
+		if (b == null)
+		{
+			AtomicLong created = new AtomicLong() ;
+			b = map.putIfAbsent(key, created) ;
+			if (b == null)
+				b = created ;
+		}
+		return b;
+	}
+	
+	/**
+	 * Checks if a bucket has a token left.
+	 * @param b the bucket, holding the time it will be full again
+	 * @param now the current time in milliseconds
+	 * @param tolerance how far ahead of now that time may be while a token is left
+	 * @return true if a token is left
+	 */
+	private static boolean hasToken(AtomicLong b, long now, long tolerance)
+	{
+		return b.get() - now <= tolerance;
+	}
+	
+	/**
+	 * Takes a token from a bucket, retrying if another thread takes one at the same time.
+	 * @param b the bucket, holding the time it will be full again
+	 * @param now the current time in milliseconds
+	 * @param interval the time one token is worth
+	 * @param tolerance how far ahead of now that time may be while a token is left
+	 * @return true if a token has been taken, false if the bucket is empty
+	 */
+	private static boolean take(AtomicLong b, long now, long interval, long tolerance)
+	{
+		while (true)
+		{
+			long full = b.get() ;
+			long from = Math.max(full, now) ;
+			if (from - now > tolerance)
+				return false;
+			if (b.compareAndSet(full, from + interval))
+				return true;
+		}
+	}
+}
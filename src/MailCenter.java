@@ -1,53 +1,346 @@
+import java.io.IOException ;
 import java.util.* ;
+import java.util.concurrent.CompletableFuture ;
+import java.util.function.BiConsumer ;
 
 /**
- * A center holding a sorted list of mailboxes based on their extension number.
+ * A center holding a directory of mailboxes, indexed by a digit trie of their extension numbers.
+ * Only a bounded number of mailboxes stay in memory; the least recently used ones are written
+ * to a MailboxStore and loaded back on their next use.
+ * Every operation is synchronized, since recordings are stored by the deposit writer thread.
+ * Every change can be shipped to replicas through a ReplicationLog.
+ * The words of all messages and greetings are kept in inverted indexes, so they can be searched,
+ * and system-wide statistics are kept up to date on every change.
+ * Every deposit, save, and removal is published on a MessageEventBus.
+ * Passwords are stored hashed; hashing and checking them happens outside the lock.
  */
 public class MailCenter
 {
-	private final ArrayList<Mailbox> mailboxes ;
+	private final ExtensionTrie extensions ;
+	private final LinkedHashMap<String, Mailbox> resident ;
+	private final MailboxStore mailboxStore ;
+	private final int residentCapacity ;
+	private final HashSet<String> pinned ;
+	private final TreeMap<String, String[]> groups ;
+	private final RetentionEngine retention ;
+	private final TieredStore storage ;
+	private ReplicationLog replication ;
+	private boolean indexing ;
+	private final TextIndex messageText ;
+	private final TextIndex greetingText ;
+	private final MailboxStats stats ;
+	private final MessageEventBus events ;
+	private final PasswordVerifier verifier ;
+	private volatile int passwordWorkFactor ;
+	private long cacheHitCount ;
+	private long cacheMissCount ;
+	private long evictionCount ;
+	
+	public static final int RETENTION_BATCH = 64 ;
+	public static final int DEFAULT_RESIDENT_MAILBOXES = 1024 ;
 	
 	/**
-	 * Constructs a mail center with no mailbox inside.
+	 * Constructs a mail center with no mailbox inside, keeping saved messages within the default memory budget.
 	 */
 	public MailCenter()
 	{
-		mailboxes = new ArrayList<Mailbox>() ;
+		this(new TieredStore()) ;
+	}
+	
+	/**
+	 * Constructs a mail center with no mailbox inside, keeping the default number of mailboxes in memory.
+	 * @param s the TieredStore deciding which saved messages stay in memory
+	 */
+	public MailCenter(TieredStore s)
+	{
+		this(s, new MailboxStore(), DEFAULT_RESIDENT_MAILBOXES) ;
+	}
+	
+	/**
+	 * Constructs a mail center with no mailbox inside.
+	 * @param s the TieredStore deciding which saved messages stay in memory
+	 * @param ms the MailboxStore holding mailboxes that don't stay in memory
+	 * @param capacity the maximum number of mailboxes kept in memory
+	 * @precondition capacity > 0
+	 */
+	public MailCenter(TieredStore s, MailboxStore ms, int capacity)
+	{
+		assert(capacity > 0) : "Capacity must be bigger than 0!" ;
+		storage = s ;
+		mailboxStore = ms ;
+		residentCapacity = capacity ;
+		extensions = new ExtensionTrie() ;
+		resident = new LinkedHashMap<String, Mailbox>(16, 0.75f, true) ;
+		pinned = new HashSet<String>() ;
+		groups = new TreeMap<String, String[]>() ;
+		retention = new RetentionEngine(this) ;
+		messageText = new TextIndex() ;
+		greetingText = new TextIndex() ;
+		stats = new MailboxStats() ;
+		events = new MessageEventBus() ;
+		verifier = new PasswordVerifier() ;
+		passwordWorkFactor = Credential.DEFAULT_ITERATIONS ;
+		indexing = true ;
+	}
+	
+	/**
+	 * Sets the work factor used to hash passwords set from now on.
+	 * @param iterations the number of hashing iterations
+	 * @precondition iterations > 0
+	 */
+	public void setPasswordWorkFactor(int iterations)
+	{
+		assert(iterations > 0) : "Work factor must be bigger than 0!" ;
+		passwordWorkFactor = iterations ;
+	}
+	
+	/**
+	 * Gets the bus on which message-waiting events are published.
+	 * @return the event bus
+	 */
+	public MessageEventBus getEventBus()
+	{
+		return events;
 	}
 	
 	/**
-	 * Gets the total number of mailboxes in the list.
+	 * Sets the log receiving every change made to this mail center from now on.
+	 * @param log the ReplicationLog, or null to stop logging
+	 */
+	public synchronized void setReplicationLog(ReplicationLog log)
+	{
+		replication = log ;
+	}
+	
+	/**
+	 * Ships a change to the replicas, if there are any. Called while holding the lock,
+	 * so the changes are logged in the order they were made.
+	 * @param m the change
+	 */
+	private void log(Mutation m)
+	{
+		if (replication != null)
+			replication.append(m) ;
+	}
+	
+	/**
+	 * Gets the total number of mailboxes in the directory.
 	 * @return the number of mailboxes
 	 */
-	public int size()
+	public synchronized int size()
 	{
-		return mailboxes.size();
+		return extensions.size();
 	}
 	
 	/**
-	 * Adds a new mailbox to the list with its own extension, password, and default greeting,
-	 * then sorts the list based on extension number
+	 * Adds a new mailbox to the directory with its own extension, password, and default greeting.
+	 * The password is hashed before taking the lock.
 	 * @param extension
 	 * @param password
 	 */
 	public void add(String extension, String password)
+	{
+		add(extension, Credential.create(password, passwordWorkFactor)) ;
+	}
+	
+	/**
+	 * Adds a new mailbox to the directory with its own extension, hashed password, and default greeting.
+	 * @param extension the extension number of the mailbox
+	 * @param credential the hashed password
+	 */
+	public synchronized void add(String extension, Credential credential)
 	{
 		String greeting = "You have reached mailbox " + extension + ".\nPlease leave your message now.\n" ;
-		mailboxes.add(new Mailbox(extension, password, greeting)) ;
-		Collections.sort(mailboxes, Mailbox.comparatorByExtension()) ;
+		extensions.add(extension) ;
+		Mailbox m = new Mailbox(extension, credential, greeting) ;
+		resident.put(extension, m) ;
+		indexMailbox(m) ;
+		log(Mutation.addMailbox(extension, credential)) ;
+		evictOverCapacity(extension) ;
+	}
+	
+	/**
+	 * Adds an existing mailbox to the directory, e.g. one moved from another shard.
+	 * It counts as unsaved, since this center's store doesn't hold it yet.
+	 * @param m the mailbox
+	 * @precondition !checkMailbox(m.getExtension())
+	 */
+	public synchronized void add(Mailbox m)
+	{
+		assert(!checkMailbox(m.getExtension())) : "Mailbox already exists!" ;
+		extensions.add(m.getExtension()) ;
+		m.markDirty() ;
+		resident.put(m.getExtension(), m) ;
+		indexMailbox(m) ;
+		if (replication != null)
+			log(Mutation.putMailbox(m)) ;
+		evictOverCapacity(m.getExtension()) ;
+	}
+	
+	/**
+	 * Takes a mailbox out of the directory, e.g. to move it to another shard, and deletes its stored copy.
+	 * @param extension the extension number of the mailbox
+	 * @return the mailbox
+	 * @precondition checkMailbox(extension)
+	 */
+	public synchronized Mailbox remove(String extension)
+	{
+		Mailbox m = get(extension) ;
+		extensions.remove(extension) ;
+		resident.remove(extension) ;
+		mailboxStore.delete(extension) ;
+		unindexMailbox(extension) ;
+		verifier.forget(extension) ;
+		log(Mutation.removeMailbox(extension)) ;
+		return m;
 	}
 	
 	/**
-	 * Checks if the mailbox with supplied extension exists in the list.
+	 * Adds the messages and greetings of a mailbox to the text indexes and the statistics.
+	 * @param m the mailbox
+	 */
+	protected void indexMailbox(Mailbox m)
+	{
+		if (!indexing)
+			return;
+		stats.update(m) ;
+		for (Message message: m.messagesSince(Long.MIN_VALUE))
+			messageText.add(m.getExtension(), message.getId(), message.getContent()) ;
+		for (int i = 1; i <= Mailbox.MAXIMUM_GREETING; i++)
+			if (m.getSpecificGreeting(i) != null)
+				greetingText.add(m.getExtension(), i, m.getSpecificGreeting(i)) ;
+	}
+	
+	/**
+	 * Removes the messages and greetings of a mailbox from the text indexes and the statistics.
+	 * @param extension the extension number of the mailbox
+	 */
+	protected void unindexMailbox(String extension)
+	{
+		if (!indexing)
+			return;
+		stats.remove(extension) ;
+		messageText.removeAll(extension) ;
+		greetingText.removeAll(extension) ;
+	}
+	
+	/**
+	 * Stops indexing the mailboxes added from now on, for a shard whose front center keeps
+	 * the text indexes and statistics of all its shards.
+	 */
+	synchronized void stopIndexing()
+	{
+		indexing = false ;
+	}
+	
+	/**
+	 * Gets the extension numbers of all mailboxes in the directory.
+	 * @return the sorted list of extension numbers
+	 */
+	public synchronized List<String> getExtensions()
+	{
+		return extensions.toList();
+	}
+	
+	/**
+	 * Gets the extension numbers of the mailboxes starting with the supplied digits.
+	 * @param prefix the leading digits, e.g. "41" for all mailboxes 41xx
+	 * @return the sorted list of extension numbers
+	 */
+	public synchronized List<String> getExtensionsWithPrefix(String prefix)
+	{
+		return extensions.withPrefix(prefix);
+	}
+	
+	/**
+	 * Gets the extension numbers of the mailboxes in a range.
+	 * @param from the lowest extension number, inclusive
+	 * @param to the highest extension number, exclusive
+	 * @return the sorted list of extension numbers
+	 */
+	public synchronized List<String> getExtensionsBetween(String from, String to)
+	{
+		return extensions.range(from, to);
+	}
+	
+	/**
+	 * Checks if some mailbox's extension number starts with the supplied digits.
+	 * @param prefix the dialed digits
+	 * @return true if such a mailbox exists
+	 */
+	public synchronized boolean hasExtensionPrefix(String prefix)
+	{
+		return extensions.hasPrefix(prefix);
+	}
+	
+	/**
+	 * Checks if a caller who has dialed the supplied digits can still reach a mailbox or distribution list.
+	 * @param prefix the dialed digits
+	 * @return true if some mailbox or distribution list starts with the digits
+	 */
+	public synchronized boolean canReach(String prefix)
+	{
+		String group = groups.ceilingKey(prefix) ;
+		return hasExtensionPrefix(prefix) || (group != null && group.startsWith(prefix));
+	}
+	
+	/**
+	 * Checks if the mailbox with supplied extension exists in the directory.
 	 * @param extension the extension number needed to be checked
 	 * @return true if such a mailbox exists
 	 */
-	public boolean checkMailbox(String extension)
+	public synchronized boolean checkMailbox(String extension)
+	{
+		return extensions.contains(extension);
+	}
+	
+	/**
+	 * Adds a distribution list whose messages are delivered to every member mailbox.
+	 * @param extension the extension number of the list
+	 * @param members the extension numbers of the member mailboxes
+	 * @precondition !checkMailbox(extension) && !isGroup(extension)
+	 * @precondition members.size() > 0
+	 */
+	public synchronized void addGroup(String extension, List<String> members)
 	{
-		for (Mailbox m: mailboxes)
-			if (m.getExtension().equals(extension))
-				return true;
-		return false;
+		assert(!checkMailbox(extension) && !isGroup(extension)) : "Extension already exists!" ;
+		assert(members.size() > 0) : "Distribution list can't be empty!" ;
+		groups.put(extension, members.toArray(new String[members.size()])) ;
+		log(Mutation.addGroup(extension, groups.get(extension))) ;
+	}
+	
+	/**
+	 * Checks if the supplied extension is a distribution list.
+	 * @param extension the extension number needed to be checked
+	 * @return true if such a list exists
+	 */
+	public synchronized boolean isGroup(String extension)
+	{
+		return groups.containsKey(extension);
+	}
+	
+	/**
+	 * Gets the member mailboxes of a distribution list.
+	 * @param extension the extension number of the list
+	 * @return the extension numbers of the members
+	 * @precondition isGroup(extension)
+	 */
+	public synchronized String[] getMembers(String extension)
+	{
+		assert(isGroup(extension)) : "Distribution list doesn't exist!" ;
+		return groups.get(extension).clone();
+	}
+	
+	/**
+	 * Gets all distribution lists, e.g. to copy them to a replica.
+	 * @return a copy of the lists, by extension number
+	 */
+	public synchronized Map<String, String[]> getGroups()
+	{
+		TreeMap<String, String[]> copy = new TreeMap<String, String[]>() ;
+		for (Map.Entry<String, String[]> e: groups.entrySet())
+			copy.put(e.getKey(), e.getValue().clone()) ;
+		return copy;
 	}
 	
 	/**
@@ -56,28 +349,175 @@ public class MailCenter
 	 * @return the Mailbox object
 	 * @precondition checkMailbox(extension)
 	 */
-	public Mailbox get(String extension)
+	public synchronized Mailbox get(String extension)
 	{
 		assert(checkMailbox(extension)) : "Mailbox doesn't exist!" ;
-		for (Mailbox m: mailboxes)
-			if (m.getExtension().equals(extension))
-				return m;
-		return null;
+		Mailbox m = resident.get(extension) ;
+		if (m != null)
+		{
+			cacheHitCount++ ;
+			return m;
+		}
+		if (!checkMailbox(extension))
+			return null;
+		
+		cacheMissCount++ ;
+		m = mailboxStore.load(extension) ;
+		for (Message message: m.getOldMessages())
+			storage.admit(message.getBody()) ;
+		resident.put(extension, m) ;
+		evictOverCapacity(extension) ;
+		return m;
+	}
+	
+	/**
+	 * Copies some mailboxes for a replica's snapshot without loading them or changing which ones stay in memory:
+	 * mailboxes in memory are serialized, the others are read from the store as they were written.
+	 * @param wanted the extension numbers
+	 * @return the serialized mailboxes by extension number, leaving out those that no longer exist
+	 */
+	synchronized Map<String, byte[]> copyMailboxes(Collection<String> wanted)
+	{
+		HashMap<String, byte[]> copies = new HashMap<String, byte[]>() ;
+		HashSet<String> left = new HashSet<String>(wanted) ;
+		for (Mailbox m: resident.values())
+			if (left.remove(m.getExtension()))
+				copies.put(m.getExtension(), MailboxStore.serialize(m)) ;
+		for (String extension: left)
+			if (checkMailbox(extension))
+				copies.put(extension, mailboxStore.read(extension)) ;
+		return copies;
+	}
+	
+	/**
+	 * Gets the number of mailbox lookups answered from memory.
+	 * @return the number of cache hits
+	 */
+	public synchronized long getCacheHitCount()
+	{
+		return cacheHitCount;
+	}
+	
+	/**
+	 * Gets the number of mailbox lookups that had to load the mailbox from the store.
+	 * @return the number of cache misses
+	 */
+	public synchronized long getCacheMissCount()
+	{
+		return cacheMissCount;
+	}
+	
+	/**
+	 * Gets the number of mailboxes moved out of memory so far.
+	 * @return the number of evictions
+	 */
+	public synchronized long getEvictionCount()
+	{
+		return evictionCount;
+	}
+	
+	/**
+	 * Keeps a mailbox in memory until it is unpinned, because an operation still holds its messages.
+	 * @param extension the extension number of the mailbox
+	 */
+	protected void pin(String extension)
+	{
+		pinned.add(extension) ;
+	}
+	
+	/**
+	 * Lets a pinned mailbox be moved out of memory again, and meets the capacity if it was exceeded meanwhile.
+	 * @param extension the extension number of the mailbox
+	 */
+	protected void unpin(String extension)
+	{
+		pinned.remove(extension) ;
+		if (checkMailbox(extension))
+			evictOverCapacity(extension) ;
+	}
+	
+	/**
+	 * Moves the least recently used mailboxes out of memory until the capacity is met,
+	 * writing back those with unsaved changes. A mailbox that can't be written stays in memory,
+	 * and so do pinned mailboxes and the one just accessed, whose messages are still in use.
+	 * @param accessed the extension number of the mailbox just accessed
+	 */
+	private void evictOverCapacity(String accessed)
+	{
+		Iterator<Mailbox> i = resident.values().iterator() ;
+		while (resident.size() > residentCapacity && i.hasNext())
+		{
+			Mailbox m = i.next() ;
+			if (m.getExtension().equals(accessed) || pinned.contains(m.getExtension()))
+				continue;
+			if (m.isDirty())
+			{
+				try
+				{
+					mailboxStore.save(m) ;
+				}
+				catch (IOException e)
+				{
+					return;
+				}
+				m.markClean() ;
+			}
+			i.remove() ;
+			for (Message message: m.messagesSince(Long.MIN_VALUE))
+				message.discard() ;
+			evictionCount++ ;
+		}
 	}
 	
 	/**
 	 * Checks if the password of the mailbox with provided extension is correct.
+	 * Blocks the caller for the key stretching, though not the mail center; prefer verifyPassword.
 	 * @param extension the extension number of the mailbox
 	 * @param password the input password
 	 * @return true if the passwords match
 	 */
 	public boolean checkPassword(String extension, String password)
 	{
-		return get(extension).checkPassword(password);
+		return getCredential(extension).verify(password);
+	}
+	
+	/**
+	 * Checks the password of the mailbox with provided extension on the verifier's worker threads.
+	 * @param extension the extension number of the mailbox
+	 * @param password the input password
+	 * @return a future completed with true if the passwords match, or failed if the verifier is too busy
+	 */
+	public CompletableFuture<Boolean> verifyPassword(String extension, String password)
+	{
+		return verifier.verify(extension, getCredential(extension), password);
+	}
+	
+	/**
+	 * Hashes a new password on the verifier's worker threads, with the current work factor.
+	 * Apply the credential with add or setCredential once it is ready.
+	 * @param password the new password
+	 * @return a future completed with the credential, or failed if the verifier is too busy
+	 * @precondition password.length() > 0
+	 */
+	public CompletableFuture<Credential> hashPassword(String password)
+	{
+		assert(password.length() > 0) ;
+		return verifier.hash(password, passwordWorkFactor);
+	}
+	
+	/**
+	 * Gets the hashed password of the mailbox with provided extension.
+	 * @param extension the extension number of the mailbox
+	 * @return the credential
+	 */
+	public synchronized Credential getCredential(String extension)
+	{
+		return get(extension).getCredential();
 	}
 	
 	/**
 	 * Sets the password of the mailbox with provided extension to a new value.
+	 * The password is hashed before taking the lock, but on the caller's thread; prefer hashPassword.
 	 * @param extension the extension number of the mailbox
 	 * @param password the input password
 	 * @precondition password.length() > 0
@@ -85,18 +525,68 @@ public class MailCenter
 	public void setPassword(String extension, String password)
 	{
 		assert(password.length() > 0) ;
-		get(extension).setPassword(password) ;
+		setCredential(extension, Credential.create(password, passwordWorkFactor)) ;
+	}
+	
+	/**
+	 * Sets the password of the mailbox with provided extension to one already hashed.
+	 * @param extension the extension number of the mailbox
+	 * @param credential the new credential
+	 */
+	public synchronized void setCredential(String extension, Credential credential)
+	{
+		get(extension).setCredential(credential) ;
+		log(Mutation.setPassword(extension, credential)) ;
+	}
+	
+	/**
+	 * Resets all mailboxes password back to theirs default passwords, which are the same as their extension number.
+	 * The passwords are hashed one after another on the verifier's worker threads, so the reset takes
+	 * at most one of them at a time and the lock only while each credential is set.
+	 * @return a future completed with the number of passwords reset, or failed if the verifier was too busy,
+	 * in which case the passwords hashed so far stay reset
+	 * @precondition size() > 0
+	 */
+	public CompletableFuture<Integer> resetAllPassword()
+	{
+		assert (size() > 0) : "There is no mailbox in the system!" ;
+		CompletableFuture<Integer> done = new CompletableFuture<Integer>() ;
+		resetPasswordsFrom(getExtensions(), 0, done) ;
+		return done;
 	}
 	
 	/**
-	 * Resets all mailboxes password back to theirs default passwords, which are the same as their extension number
-	 * @precondition mailboxes.size() > 0
+	 * Resets the password of one mailbox of a list, then goes on with the next one once it is set.
+	 * @param list the extension numbers of the mailboxes
+	 * @param i the position of the mailbox in the list
+	 * @param done the future completed when the whole list is reset
 	 */
-	public void resetAllPassword()
+	private void resetPasswordsFrom(final List<String> list, final int i, final CompletableFuture<Integer> done)
 	{
-		assert (mailboxes.size() > 0) : "There is no mailbox in the system!" ;
-		for (Mailbox m: mailboxes)
-			m.setPassword(m.getExtension()) ;
+		if (i == list.size())
+		{
+			done.complete(i) ;
+			return;
+		}
+		final String extension = list.get(i) ;
+		verifier.hash(extension, passwordWorkFactor).whenComplete(new 
+			BiConsumer<Credential, Throwable>()
+			{
+				public void accept(Credential c, Throwable error)
+				{
+					if (error != null)
+					{
+						done.completeExceptionally(error) ;
+						return;
+					}
+					synchronized (MailCenter.this)
+					{
+						if (checkMailbox(extension))
+							setCredential(extension, c) ;
+					}
+					resetPasswordsFrom(list, i + 1, done) ;
+				}
+			}) ;
 	}
 	
 	/**
@@ -104,17 +594,27 @@ public class MailCenter
 	 * @param extension the extension number of the mailbox
 	 * @return the current greeting
 	 */
-	public String getCurrentGreeting(String extension)
+	public synchronized String getCurrentGreeting(String extension)
 	{
 		return get(extension).getCurrentGreeting();
 	}
 	
+	/**
+	 * Gets the recorded audio of the greeting currently being used of the mailbox with provided extension.
+	 * @param extension the extension number of the mailbox
+	 * @return the audio, or null if the greeting has none
+	 */
+	public synchronized AudioClip getCurrentGreetingAudio(String extension)
+	{
+		return get(extension).getCurrentGreetingAudio();
+	}
+	
 	/**
 	 * Gets the position number of the currently used greeting of the mailbox with provided extension.
 	 * @param extension the extension number of the mailbox
 	 * @return the greeting number
 	 */
-	public int getCurrentGreetingNumber(String extension)
+	public synchronized int getCurrentGreetingNumber(String extension)
 	{
 		return get(extension).getCurrentGreetingNumber();
 	}
@@ -124,7 +624,7 @@ public class MailCenter
 	 * @param extension the extension number of the mailbox
 	 * @return the total number of greetings
 	 */
-	public int getGreetingsCount(String extension)
+	public synchronized int getGreetingsCount(String extension)
 	{
 		return get(extension).getGreetingsCount() ;
 	}
@@ -136,7 +636,7 @@ public class MailCenter
 	 * @return the desired greeting
 	 * @precondition 1 <= greeting && greeting <= Mailbox.MAXIMUM_GREETING
 	 */
-	public String getSpecificGreeting(String extension, int greeting)
+	public synchronized String getSpecificGreeting(String extension, int greeting)
 	{
 		assert(1 <= greeting && greeting <= Mailbox.MAXIMUM_GREETING) ;
 		return get(extension).getSpecificGreeting(greeting);
@@ -148,10 +648,13 @@ public class MailCenter
 	 * @param greeting the number position of the new greeting
 	 * @precondition 1 <= greeting && greeting <= Mailbox.MAXIMUM_GREETING
 	 */
-	public void switchGreeting(String extension, int greeting)
+	public synchronized void switchGreeting(String extension, int greeting)
 	{
 		assert(1 <= greeting && greeting <= Mailbox.MAXIMUM_GREETING) ;
-		get(extension).switchGreeting(greeting) ;
+		Mailbox m = get(extension) ;
+		m.switchGreeting(greeting) ;
+		stats.update(m) ;
+		log(Mutation.switchGreeting(extension, greeting)) ;
 	}
 	
 	/**
@@ -160,10 +663,27 @@ public class MailCenter
 	 * @param greeting the content of the greeting to be added
 	 * @precondition greeting.length() > 0
 	 */
-	public void recordGreeting(String extension, String greeting)
+	public synchronized void recordGreeting(String extension, String greeting)
+	{
+		recordGreeting(extension, greeting, null) ;
+	}
+	
+	/**
+	 * Adds a new greeting with recorded audio to the mailbox with provided extension.
+	 * @param extension the extension number of the mailbox
+	 * @param greeting the content of the greeting to be added, or a description of the audio
+	 * @param audio the recorded audio, or null if there is none
+	 * @precondition greeting.length() > 0
+	 */
+	public synchronized void recordGreeting(String extension, String greeting, AudioClip audio)
 	{
 		assert(greeting.length() > 0) ;
-		get(extension).recordGreeting(greeting) ;
+		Mailbox m = get(extension) ;
+		int i = m.recordGreeting(greeting, audio) ;
+		if (i > 0)
+			greetingText.add(extension, i, greeting) ;
+		stats.update(m) ;
+		log(Mutation.recordGreeting(extension, greeting, audio)) ;
 	}
 	
 	/**
@@ -172,10 +692,14 @@ public class MailCenter
 	 * @param greeting the number position of the new greeting
 	 * @precondition 1 <= greeting && greeting <= Mailbox.MAXIMUM_GREETING && greeting != getCurrentGreetingNumber(extension)
 	 */
-	public void deleteGreeting(String extension, int greeting)
+	public synchronized void deleteGreeting(String extension, int greeting)
 	{
 		assert(1 <= greeting && greeting <= Mailbox.MAXIMUM_GREETING && greeting != getCurrentGreetingNumber(extension)) ;
-		get(extension).deleteGreeting(greeting) ;
+		Mailbox m = get(extension) ;
+		m.deleteGreeting(greeting) ;
+		greetingText.remove(extension, greeting) ;
+		stats.update(m) ;
+		log(Mutation.deleteGreeting(extension, greeting)) ;
 	}
 	
 	/**
@@ -183,7 +707,7 @@ public class MailCenter
 	 * @param extension the extension number of the mailbox
 	 * @return the new message queue size
 	 */
-	public int newSize(String extension)
+	public synchronized int newSize(String extension)
 	{
 		return get(extension).newSize();
 	}
@@ -193,7 +717,7 @@ public class MailCenter
 	 * @param extension the extension number of the mailbox
 	 * @return the old message queue size
 	 */
-	public int oldSize(String extension)
+	public synchronized int oldSize(String extension)
 	{
 		return get(extension).oldSize();
 	}
@@ -204,7 +728,7 @@ public class MailCenter
 	 * @return the first message in the new queue
 	 * @precondition newSize(extension) > 0
 	 */
-	public String newFront(String extension)
+	public synchronized String newFront(String extension)
 	{
 		assert(newSize(extension) > 0) ;
 		return get(extension).newFront();
@@ -216,24 +740,132 @@ public class MailCenter
 	 * @return the first message in the old queue
 	 * @precondition oldSize(extension) > 0
 	 */
-	public String oldFront(String extension)
+	public synchronized String oldFront(String extension)
 	{
 		assert(oldSize(extension) > 0) ;
 		return get(extension).oldFront() ;
 	}
 	
+	/**
+	 * Gets the recorded audio of the front message of the new queue, or the current message of the old queue,
+	 * in the mailbox with provided extension.
+	 * @param extension the extension number of the mailbox
+	 * @param old true for the old queue, false for the new queue
+	 * @return the audio, or null if the message has none
+	 * @precondition (old ? oldSize(extension) : newSize(extension)) > 0
+	 */
+	public synchronized AudioClip getAudio(String extension, boolean old)
+	{
+		return get(extension).getAudio(old);
+	}
+	
+	/**
+	 * Adds a new message from an unknown caller to the new message queue in the mailbox with provided extension.
+	 * @param extension the extension number of the mailbox
+	 * @param content the content of the new message
+	 * @precondition content.length() > 0
+	 * @precondition newSize(extension) <= Mailbox.MAXIMUM_MESSAGE
+	 */
+	public synchronized void recordNewMessage(String extension, String content)
+	{
+		recordNewMessage(extension, content, Message.UNKNOWN_CALLER) ;
+	}
+	
 	/**
 	 * Adds a new message to the new message queue in the mailbox with provided extension.
 	 * @param extension the extension number of the mailbox
 	 * @param content the content of the new message
+	 * @param callerId the line the caller called from, or Message.UNKNOWN_CALLER
 	 * @precondition content.length() > 0
 	 * @precondition newSize(extension) <= Mailbox.MAXIMUM_MESSAGE
 	 */
-	public void recordNewMessage(String extension, String content)
+	public synchronized void recordNewMessage(String extension, String content, long callerId)
 	{
 		assert(content.length() > 0) ;
+		recordNewMessage(extension, new MessageBody(content), callerId) ;
+	}
+	
+	/**
+	 * Adds a new message sharing an existing body to the new message queue in the mailbox with provided extension.
+	 * @param extension the extension number of the mailbox
+	 * @param body the body of the new message
+	 * @param callerId the line the caller called from, or Message.UNKNOWN_CALLER
+	 * @precondition newSize(extension) <= Mailbox.MAXIMUM_MESSAGE
+	 */
+	public synchronized void recordNewMessage(String extension, MessageBody body, long callerId)
+	{
+		recordNewMessage(extension, body, callerId, Message.NORMAL) ;
+	}
+	
+	/**
+	 * Adds a new message with supplied priority to the new message queue in the mailbox with provided extension.
+	 * Urgent messages are played before the others; messages of the same priority are played in arrival order.
+	 * @param extension the extension number of the mailbox
+	 * @param body the body of the new message
+	 * @param callerId the line the caller called from, or Message.UNKNOWN_CALLER
+	 * @param priority Message.NORMAL or Message.URGENT
+	 * @precondition newSize(extension) <= Mailbox.MAXIMUM_MESSAGE
+	 */
+	public synchronized void recordNewMessage(String extension, MessageBody body, long callerId, int priority)
+	{
+		addNewMessage(extension, new Message(body, callerId, priority)) ;
+	}
+	
+	/**
+	 * Adds an already built message to the new message queue in the mailbox with provided extension,
+	 * e.g. one copied from a primary mail center with its id and deposit time.
+	 * @param extension the extension number of the mailbox
+	 * @param message the new message
+	 * @precondition newSize(extension) <= Mailbox.MAXIMUM_MESSAGE
+	 */
+	public synchronized void addNewMessage(String extension, Message message)
+	{
 		assert(newSize(extension) <= Mailbox.MAXIMUM_MESSAGE) ;
-		get(extension).recordNewMessage(content) ;
+		Mailbox m = get(extension) ;
+		m.addNewMessage(message) ;
+		stats.update(m) ;
+		events.publish(MessageWaitingEvent.DEPOSITED, m, message.getId()) ;
+		messageText.add(extension, message.getId(), message.getContent()) ;
+		retention.track(m, message, false, message.getTimestamp()) ;
+		log(Mutation.deposit(extension, message)) ;
+	}
+	
+	/**
+	 * Forwards a message to other mailboxes. Each copy shares the original body, so the cost
+	 * doesn't depend on the message length. Distribution lists are expanded to their members,
+	 * and mailboxes that are full or already received the message are skipped.
+	 * @param extension the extension number of the mailbox holding the message
+	 * @param old true to forward the current message of the old queue, false for the front of the new queue
+	 * @param targets the extension numbers of the receiving mailboxes or distribution lists
+	 * @return the number of mailboxes that received the message
+	 * @precondition (old ? oldSize(extension) : newSize(extension)) > 0
+	 */
+	public synchronized int forwardMessage(String extension, boolean old, List<String> targets)
+	{
+		Message message = get(extension).getMessage(old) ;
+		TreeSet<String> receivers = new TreeSet<String>() ;
+		for (String t: targets)
+			if (isGroup(t))
+				receivers.addAll(Arrays.asList(groups.get(t))) ;
+			else if (checkMailbox(t))
+				receivers.add(t) ;
+		
+		int delivered = 0 ;
+		pin(extension) ;
+		try
+		{
+			for (String r: receivers)
+				if (newSize(r) < Mailbox.MAXIMUM_MESSAGE)
+				{
+					recordNewMessage(r, message.getBody(), message.getCallerId(), message.getPriority()) ;
+					delivered++ ;
+				}
+		}
+		finally
+		{
+			unpin(extension) ;
+		}
+		return delivered;
 	}
 	
 	/**
@@ -242,11 +874,84 @@ public class MailCenter
 	 * @precondition newSize(extension) > 0
 	 * @precondition oldSize(extension) <= Mailbox.MAXIMUM_MESSAGE
 	 */
-	public void saveNewMessage(String extension)
+	public synchronized void saveNewMessage(String extension)
 	{
 		assert(newSize(extension) > 0) ;
 		assert(oldSize(extension) <= Mailbox.MAXIMUM_MESSAGE) ;
-		get(extension).saveNewMessage();
+		Mailbox m = get(extension) ;
+		Message message = m.saveNewMessage() ;
+		stats.update(m) ;
+		events.publish(MessageWaitingEvent.SAVED, m, message.getId()) ;
+		storage.admit(message.getBody()) ;
+		retention.track(m, message, true, System.currentTimeMillis()) ;
+		log(Mutation.save(extension, message.getId())) ;
+	}
+	
+	/**
+	 * Saves as many new messages as fit into the old queue of the mailbox with provided extension,
+	 * in the order they would have been played, with a single lookup and a single log entry.
+	 * @param extension the extension number of the mailbox
+	 * @return the number of messages saved
+	 */
+	public synchronized int saveAllNewMessages(String extension)
+	{
+		Mailbox m = get(extension) ;
+		List<Message> moved = m.saveAllNewMessages() ;
+		if (moved.isEmpty())
+			return 0;
+		long now = System.currentTimeMillis() ;
+		for (Message message: moved)
+		{
+			storage.admit(message.getBody()) ;
+			retention.track(m, message, true, now) ;
+		}
+		stats.update(m) ;
+		events.publish(MessageWaitingEvent.SAVED, m, moved.get(moved.size() - 1).getId()) ;
+		log(Mutation.saveAll(extension, moved)) ;
+		return moved.size();
+	}
+	
+	/**
+	 * Deletes every message of the old queue in the mailbox with provided extension.
+	 * @param extension the extension number of the mailbox
+	 * @return the number of messages deleted
+	 */
+	public synchronized int removeAllOldMessages(String extension)
+	{
+		return removeOldMessages(extension, oldSize(extension));
+	}
+	
+	/**
+	 * Deletes the old messages the owner has heard so far, from the front of the old queue up to
+	 * the current message, in the mailbox with provided extension.
+	 * @param extension the extension number of the mailbox
+	 * @return the number of messages deleted
+	 */
+	public synchronized int removeHeardMessages(String extension)
+	{
+		return removeOldMessages(extension, get(extension).heardCount());
+	}
+	
+	/**
+	 * Deletes several messages at once from the front of the old queue in the mailbox with provided extension,
+	 * with a single log entry.
+	 * @param extension the extension number of the mailbox
+	 * @param count the number of messages to be deleted
+	 * @return the number of messages deleted
+	 * @precondition 0 <= count && count <= oldSize(extension)
+	 */
+	public synchronized int removeOldMessages(String extension, int count)
+	{
+		Mailbox m = get(extension) ;
+		List<Message> removed = m.removeOldMessages(count) ;
+		if (removed.isEmpty())
+			return 0;
+		for (Message message: removed)
+			messageText.remove(extension, message.getId()) ;
+		stats.update(m) ;
+		events.publish(MessageWaitingEvent.REMOVED, m, removed.get(removed.size() - 1).getId()) ;
+		log(Mutation.removeOld(extension, removed)) ;
+		return removed.size();
 	}
 	
 	/**
@@ -254,10 +959,16 @@ public class MailCenter
 	 * @param extension the extension number of the mailbox
 	 * @precondition newSize(extension) > 0
 	 */
-	public void removeNewMessage(String extension)
+	public synchronized void removeNewMessage(String extension)
 	{
 		assert(newSize(extension) > 0) ;
-		get(extension).removeNewMessage() ;
+		Mailbox m = get(extension) ;
+		long id = m.getMessage(false).getId() ;
+		m.removeNewMessage() ;
+		stats.update(m) ;
+		events.publish(MessageWaitingEvent.REMOVED, m, id) ;
+		messageText.remove(extension, id) ;
+		log(Mutation.removeMessage(extension, id, false)) ;
 	}
 	
 	/**
@@ -265,10 +976,35 @@ public class MailCenter
 	 * @param extension the extension number of the mailbox
 	 * @precondition oldSize(extension) > 0
 	 */
-	public void removeOldMessage(String extension)
+	public synchronized void removeOldMessage(String extension)
 	{
 		assert(oldSize(extension) > 0) ;
-		get(extension).removeOldMessage() ;
+		Mailbox m = get(extension) ;
+		long id = m.getMessage(true).getId() ;
+		m.removeOldMessage() ;
+		stats.update(m) ;
+		events.publish(MessageWaitingEvent.REMOVED, m, id) ;
+		messageText.remove(extension, id) ;
+		log(Mutation.removeMessage(extension, id, true)) ;
+	}
+	
+	/**
+	 * Deletes a message by id from the mailbox with provided extension, if it is still in the expected queue.
+	 * @param extension the extension number of the mailbox
+	 * @param id the id of the message
+	 * @param old true to look in the old queue, false to look in the new queue
+	 * @return true if the message has been deleted
+	 */
+	public synchronized boolean expireMessage(String extension, long id, boolean old)
+	{
+		if (!checkMailbox(extension) || !get(extension).expireMessage(id, old))
+			return false;
+		Mailbox m = get(extension) ;
+		stats.update(m) ;
+		events.publish(MessageWaitingEvent.REMOVED, m, id) ;
+		messageText.remove(extension, id) ;
+		log(Mutation.removeMessage(extension, id, old)) ;
+		return true;
 	}
 	
 	/**
@@ -277,7 +1013,7 @@ public class MailCenter
 	 * @return the message content
 	 * @precondition oldSize(extension) > 0
 	 */
-	public String currentMessage(String extension)
+	public synchronized String currentMessage(String extension)
 	{
 		assert(oldSize(extension) > 0) ;
 		return get(extension).currentMessage();
@@ -287,7 +1023,7 @@ public class MailCenter
 	 * Resets the current message pointer of the old queue back to the default position at head.
 	 * @param extension the extension number of the mailbox
 	 */
-	public void resetCurrent(String extension)
+	public synchronized void resetCurrent(String extension)
 	{
 		get(extension).resetCurrentMessage() ;
 	}
@@ -296,8 +1032,194 @@ public class MailCenter
 	 * Moves the current message pointer to the next message in the old queue.
 	 * @param extension the extension number of the mailbox
 	 */
-	public void advanceCurrent(String extension)
+	public synchronized void advanceCurrent(String extension)
 	{
 		get(extension).advanceCurrentMessage() ;
 	}
+	
+	/**
+	 * Gets the messages, new or old, deposited at or after a time in the mailbox with provided extension.
+	 * @param extension the extension number of the mailbox
+	 * @param from the time in milliseconds
+	 * @return the messages, oldest first
+	 */
+	public synchronized List<Message> messagesSince(String extension, long from)
+	{
+		return get(extension).messagesSince(from);
+	}
+	
+	/**
+	 * Counts the messages, new or old, deposited in a time range in the mailbox with provided extension.
+	 * @param extension the extension number of the mailbox
+	 * @param from the start of the range in milliseconds, inclusive
+	 * @param to the end of the range in milliseconds, exclusive
+	 * @return the number of messages in the range
+	 */
+	public synchronized int countMessagesBetween(String extension, long from, long to)
+	{
+		return get(extension).countMessagesBetween(from, to);
+	}
+	
+	/**
+	 * Gets the number of unheard messages in all mailboxes.
+	 * @return the number of new messages
+	 */
+	public synchronized long totalNewMessages()
+	{
+		return stats.getNewCount();
+	}
+	
+	/**
+	 * Gets the number of saved messages in all mailboxes.
+	 * @return the number of old messages
+	 */
+	public synchronized long totalOldMessages()
+	{
+		return stats.getOldCount();
+	}
+	
+	/**
+	 * Gets the number of mailboxes that can't receive any new message.
+	 * @return the number of full mailboxes
+	 */
+	public synchronized int fullMailboxCount()
+	{
+		return stats.getFullCount();
+	}
+	
+	/**
+	 * Gets the number of mailboxes whose owner hasn't recorded a greeting of their own.
+	 * @return the number of mailboxes
+	 */
+	public synchronized int defaultGreetingCount()
+	{
+		return stats.getDefaultGreetingCount();
+	}
+	
+	/**
+	 * Gets the mailboxes holding the most messages, new and old together.
+	 * @param n the maximum number of mailboxes
+	 * @return the extension numbers, fullest first
+	 */
+	public synchronized List<String> fullestMailboxes(int n)
+	{
+		return stats.fullest(n);
+	}
+	
+	/**
+	 * Finds the messages, in every mailbox, containing all the words of a query.
+	 * @param query the words
+	 * @return the matching messages, by extension and then oldest first
+	 */
+	public synchronized List<TextIndex.Hit> searchMessages(String query)
+	{
+		return messageText.search(null, query);
+	}
+	
+	/**
+	 * Finds the messages, in every mailbox, containing the words of a phrase next to each other.
+	 * @param phrase the words
+	 * @return the matching messages, by extension and then oldest first
+	 */
+	public synchronized List<TextIndex.Hit> searchMessagePhrase(String phrase)
+	{
+		return messageText.searchPhrase(null, phrase);
+	}
+	
+	/**
+	 * Finds the messages containing all the words of a query in the mailbox with provided extension.
+	 * @param extension the extension number of the mailbox
+	 * @param query the words
+	 * @return the matching messages, oldest first
+	 */
+	public synchronized List<Message> searchMessages(String extension, String query)
+	{
+		return resolve(extension, messageText.search(extension, query));
+	}
+	
+	/**
+	 * Finds the messages containing the words of a phrase next to each other in the mailbox with provided extension.
+	 * @param extension the extension number of the mailbox
+	 * @param phrase the words
+	 * @return the matching messages, oldest first
+	 */
+	public synchronized List<Message> searchMessagePhrase(String extension, String phrase)
+	{
+		return resolve(extension, messageText.searchPhrase(extension, phrase));
+	}
+	
+	/**
+	 * Finds the greetings, in every mailbox, containing all the words of a query.
+	 * @param query the words
+	 * @return the matching greetings, whose ids are their position numbers
+	 */
+	public synchronized List<TextIndex.Hit> searchGreetings(String query)
+	{
+		return greetingText.search(null, query);
+	}
+	
+	/**
+	 * Looks up the messages found by a search in one mailbox.
+	 * @param extension the extension number of the mailbox
+	 * @param hits the search results
+	 * @return the messages
+	 */
+	private List<Message> resolve(String extension, List<TextIndex.Hit> hits)
+	{
+		ArrayList<Message> list = new ArrayList<Message>(hits.size()) ;
+		if (!hits.isEmpty())
+		{
+			Mailbox m = get(extension) ;
+			for (TextIndex.Hit h: hits)
+				list.add(m.findMessage(h.getId())) ;
+		}
+		return list;
+	}
+	
+	/**
+	 * Sets the retention policy used by mailboxes that don't have their own.
+	 * @param policy the system-wide policy
+	 */
+	public synchronized void setRetentionPolicy(RetentionPolicy policy)
+	{
+		retention.setSystemPolicy(policy) ;
+	}
+	
+	/**
+	 * Sets the retention policy of the mailbox with provided extension.
+	 * @param extension the extension number of the mailbox
+	 * @param policy the policy, or null to follow the system-wide policy
+	 */
+	public synchronized void setRetentionPolicy(String extension, RetentionPolicy policy)
+	{
+		get(extension).setRetentionPolicy(policy) ;
+	}
+	
+	/**
+	 * Deletes some of the messages whose retention period has run out.
+	 * @param now the current time in milliseconds
+	 * @param budget the maximum number of expiry index entries to look at
+	 * @return the number of messages deleted
+	 */
+	public synchronized int expireMessages(long now, int budget)
+	{
+		return retention.expire(now, budget);
+	}
+	
+	/**
+	 * Expires messages in small batches once per tick of the supplied wheel, so no single pass is long.
+	 * @param w the TimingWheel driving the expiry
+	 */
+	public void startRetention(final TimingWheel w)
+	{
+		w.schedule(new 
+			Runnable()
+			{
+				public void run()
+				{
+					expireMessages(System.currentTimeMillis(), RETENTION_BATCH) ;
+					w.schedule(this, 0) ;
+				}
+			}, 0) ;
+	}
 }
@@ -1,37 +1,63 @@
+import java.io.Serializable ;
+import java.util.ArrayList ;
 import java.util.Comparator ;
+import java.util.List ;
 
 /**
- * A mailbox with its own extension number, password, list of maximum 3 greetings, an old and a new message list.
+ * A mailbox with its own extension number, hashed password, list of maximum 3 greetings, an old message list,
+ * and a new message list playing urgent messages first.
+ * Remembers whether it has changed since it was last written to a MailboxStore.
  */
-public class Mailbox
+public class Mailbox implements Serializable
 {
 	private final String extension ;
-	private String password ;
+	private Credential credential ;
 	private String[] greetings ;
+	private AudioClip[] greetingAudio ;
 	private int greetingsCount ;
 	private int currentGreeting ;
-	private final MessageQueue newMessages ;
+	private final PriorityMessageQueue newMessages ;
 	private final MessageQueue oldMessages ;
+	private final MessageIndex timeIndex ;
+	private RetentionPolicy retentionPolicy ;
+	private transient boolean dirty ;
+	
+	private static final long serialVersionUID = 1L ;
 	
 	public static final int MAXIMUM_GREETING = 3 ;
 	public static final int MAXIMUM_MESSAGE = 3 ;
 	
 	/**
-	 * Constructs a mailbox object.
+	 * Constructs a mailbox object, hashing its password with the default work factor.
 	 * @param extension the extension of the mailbox
 	 * @param password the password of the mailbox
 	 * @param greeting the default greeting of the mailbox
 	 */
 	public Mailbox(String extension, String password, String greeting)
+	{
+		this(extension, Credential.create(password, Credential.DEFAULT_ITERATIONS), greeting) ;
+	}
+	
+	/**
+	 * Constructs a mailbox object.
+	 * @param extension the extension of the mailbox
+	 * @param credential the hashed password of the mailbox
+	 * @param greeting the default greeting of the mailbox
+	 */
+	public Mailbox(String extension, Credential credential, String greeting)
 	{
 		this.extension = extension ;
-		this.password = password ;
+		this.credential = credential ;
 		greetings = new String[MAXIMUM_GREETING] ;
 		greetings[0] = greeting ;
+		greetingAudio = new AudioClip[MAXIMUM_GREETING] ;
 		currentGreeting = 0 ;
 		greetingsCount = 1 ;
-		newMessages = new MessageQueue(MAXIMUM_MESSAGE) ;
+		newMessages = new PriorityMessageQueue(MAXIMUM_MESSAGE) ;
 		oldMessages = new MessageQueue() ;
+		timeIndex = new MessageIndex() ;
+		retentionPolicy = null ;
+		dirty = true ;
 	}
 	
 	/**
@@ -59,24 +85,62 @@ public class Mailbox
 	}
 	
 	/**
-	 * Checks if the password is correct.
+	 * Checks if the password is correct. Takes as long as the key stretching of the credential.
 	 * @param password the input password
 	 * @return true if the passwords match
 	 */
 	public boolean checkPassword(String password)
 	{
-		return this.password.equals(password);
+		return credential.verify(password);
 	}
 	
 	/**
-	 * Sets the password to a new value.
+	 * Sets the password to a new value, hashing it with the work factor of the current credential.
 	 * @param password the new password
 	 * @precondition password.length() > 0
 	 */
 	public void setPassword(String password)
 	{
 		assert(password.length() > 0) : "Password can't be empty!" ;
-		this.password = password ;
+		setCredential(Credential.create(password, credential.getIterations())) ;
+	}
+	
+	/**
+	 * Gets the hashed password.
+	 * @return the credential
+	 */
+	public Credential getCredential()
+	{
+		return credential;
+	}
+	
+	/**
+	 * Sets the password to one already hashed.
+	 * @param c the new credential
+	 */
+	public void setCredential(Credential c)
+	{
+		dirty = true ;
+		credential = c ;
+	}
+	
+	/**
+	 * Gets the retention policy of this mailbox.
+	 * @return the policy, or null if the mailbox follows the system-wide policy
+	 */
+	public RetentionPolicy getRetentionPolicy()
+	{
+		return retentionPolicy;
+	}
+	
+	/**
+	 * Sets the retention policy of this mailbox. It applies to messages deposited or saved from now on.
+	 * @param policy the policy, or null to follow the system-wide policy
+	 */
+	public void setRetentionPolicy(RetentionPolicy policy)
+	{
+		dirty = true ;
+		retentionPolicy = policy ;
 	}
 	
 	/**
@@ -88,6 +152,15 @@ public class Mailbox
 		return greetings[currentGreeting];
 	}
 	
+	/**
+	 * Gets the recorded audio of the greeting currently being used.
+	 * @return the audio, or null if the greeting has none
+	 */
+	public AudioClip getCurrentGreetingAudio()
+	{
+		return greetingAudio[currentGreeting];
+	}
+	
 	/**
 	 * Gets the position number of the currently used greeting.
 	 * @return the greeting number
@@ -126,6 +199,7 @@ public class Mailbox
 	public void switchGreeting(int i)
 	{
 		assert(1 <= i && i <= MAXIMUM_GREETING) : "Greeting number invalid!" ;
+		dirty = true ;
 		currentGreeting = i - 1 ;
 	}
 	
@@ -135,15 +209,30 @@ public class Mailbox
 	 * @precondition greeting.length() > 0
 	 */
 	public void recordGreeting(String greeting)
+	{
+		recordGreeting(greeting, null) ;
+	}
+	
+	/**
+	 * Adds a new greeting with recorded audio to the mailbox.
+	 * @param greeting the content of the greeting to be added, or a description of the audio
+	 * @param audio the recorded audio, or null if there is none
+	 * @return the position number of the new greeting, or 0 if there was no room
+	 * @precondition greeting.length() > 0
+	 */
+	public int recordGreeting(String greeting, AudioClip audio)
 	{
 		assert(greeting.length() > 0) : "Greeting can't be empty!" ;
+		dirty = true ;
 		for (int i = 0; i < MAXIMUM_GREETING; i++)
 			if (greetings[i] == null)
 			{
 				greetings[i] = greeting ;
+				greetingAudio[i] = audio ;
 				greetingsCount++ ;
-				return;
+				return i + 1;
 			}
+		return 0;
 	}
 	
 	/**
@@ -154,7 +243,9 @@ public class Mailbox
 	public void deleteGreeting(int i)
 	{
 		assert(1 <= i && i <= MAXIMUM_GREETING && i != currentGreeting + 1) : "Greeting number invalid!" ;
+		dirty = true ;
 		greetings[i - 1] = null ;
+		greetingAudio[i - 1] = null ;
 		greetingsCount-- ;
 	}
 	
@@ -198,29 +289,149 @@ public class Mailbox
 		return oldMessages.front().getContent();
 	}
 	
+	/**
+	 * Gets the message at the front of the new queue, or the current message of the old queue.
+	 * @param old true for the old queue, false for the new queue
+	 * @return the message
+	 * @precondition (old ? oldSize() : newSize()) > 0
+	 */
+	public Message getMessage(boolean old)
+	{
+		assert((old ? oldSize() : newSize()) > 0) : "There is no message!" ;
+		return old ? oldMessages.current() : newMessages.front();
+	}
+	
+	/**
+	 * Gets the recorded audio of the front message of the new queue, or the current message of the old queue.
+	 * @param old true for the old queue, false for the new queue
+	 * @return the audio, or null if the message has none
+	 * @precondition (old ? oldSize() : newSize()) > 0
+	 */
+	public AudioClip getAudio(boolean old)
+	{
+		return getMessage(old).getBody().getAudio();
+	}
+	
+	/**
+	 * Adds a new message from an unknown caller to the new message queue.
+	 * @param content the content of the new message
+	 * @return the message that has been added
+	 * @precondition content.length() > 0
+	 * @precondition !newMessages.isFull()
+	 */
+	public Message recordNewMessage(String content)
+	{
+		return recordNewMessage(content, Message.UNKNOWN_CALLER);
+	}
+	
 	/**
 	 * Adds a new message to the new message queue.
 	 * @param content the content of the new message
+	 * @param callerId the line the caller called from, or Message.UNKNOWN_CALLER
+	 * @return the message that has been added
 	 * @precondition content.length() > 0
 	 * @precondition !newMessages.isFull()
 	 */
-	public void recordNewMessage(String content)
+	public Message recordNewMessage(String content, long callerId)
 	{
 		assert(content.length() > 0) ;
+		return recordNewMessage(new MessageBody(content), callerId);
+	}
+	
+	/**
+	 * Adds a new message sharing an existing body to the new message queue.
+	 * @param body the body of the new message
+	 * @param callerId the line the caller called from, or Message.UNKNOWN_CALLER
+	 * @return the message that has been added
+	 * @precondition !newMessages.isFull()
+	 */
+	public Message recordNewMessage(MessageBody body, long callerId)
+	{
+		return recordNewMessage(body, callerId, Message.NORMAL);
+	}
+	
+	/**
+	 * Adds a new message sharing an existing body to the new message queue, behind those of the same priority.
+	 * @param body the body of the new message
+	 * @param callerId the line the caller called from, or Message.UNKNOWN_CALLER
+	 * @param priority Message.NORMAL or Message.URGENT
+	 * @return the message that has been added
+	 * @precondition !newMessages.isFull()
+	 */
+	public Message recordNewMessage(MessageBody body, long callerId, int priority)
+	{
+		Message m = new Message(body, callerId, priority) ;
+		addNewMessage(m) ;
+		return m;
+	}
+	
+	/**
+	 * Adds an already built message to the new message queue.
+	 * @param m the new message
+	 * @precondition !newMessages.isFull()
+	 */
+	public void addNewMessage(Message m)
+	{
 		assert(!newMessages.isFull()) ;
-		newMessages.add(new Message(content)) ;
+		dirty = true ;
+		newMessages.add(m) ;
+		timeIndex.add(m) ;
 	}
 	
 	/**
 	 * Moves the front message of the new queue to the end of the old queue.
+	 * @return the message that has been moved
 	 * @precondition newMessages.size() > 0
 	 * @precondition !oldMessages.isFull()
 	 */
-	public void saveNewMessage()
+	public Message saveNewMessage()
 	{
 		assert(newMessages.size() > 0) ;
 		assert(!oldMessages.isFull()) ;
-		oldMessages.add(newMessages.remove());
+		dirty = true ;
+		Message m = newMessages.remove() ;
+		oldMessages.add(m) ;
+		return m;
+	}
+	
+	/**
+	 * Moves as many new messages as the old queue has room for to its end, in the order they would have been played.
+	 * @return the messages that have been moved
+	 */
+	public List<Message> saveAllNewMessages()
+	{
+		List<Message> moved = newMessages.removeFront(Math.min(newSize(), oldMessages.remaining())) ;
+		oldMessages.addAll(moved) ;
+		dirty = true ;
+		return moved;
+	}
+	
+	/**
+	 * Deletes several messages at once from the front of the old queue.
+	 * @param k the number of messages to be deleted
+	 * @return the messages that have been deleted
+	 * @precondition 0 <= k && k <= oldSize()
+	 */
+	public List<Message> removeOldMessages(int k)
+	{
+		assert(0 <= k && k <= oldSize()) ;
+		List<Message> removed = oldMessages.removeFront(k) ;
+		for (Message m: removed)
+		{
+			timeIndex.remove(m) ;
+			m.discard() ;
+		}
+		dirty = true ;
+		return removed;
+	}
+	
+	/**
+	 * Gets the number of old messages the owner has heard so far, from the front up to the current message.
+	 * @return the number of heard messages
+	 */
+	public int heardCount()
+	{
+		return oldSize() == 0 ? 0 : oldMessages.currentPosition() + 1;
 	}
 	
 	/**
@@ -230,7 +441,10 @@ public class Mailbox
 	public void removeNewMessage()
 	{
 		assert(newSize() > 0) ;
-		newMessages.remove() ;
+		dirty = true ;
+		Message m = newMessages.remove() ;
+		timeIndex.remove(m) ;
+		m.discard() ;
 	}
 	
 	/**
@@ -240,7 +454,100 @@ public class Mailbox
 	public void removeOldMessage()
 	{
 		assert(oldSize() > 0) ;
-		oldMessages.remove() ;
+		dirty = true ;
+		Message m = oldMessages.remove() ;
+		timeIndex.remove(m) ;
+		m.discard() ;
+	}
+	
+	/**
+	 * Deletes a message whose retention period has run out, if it is still in the expected queue.
+	 * @param id the id of the expired message
+	 * @param saved true to look in the old queue, false to look in the new queue
+	 * @return true if the message has been deleted
+	 */
+	public boolean expireMessage(long id, boolean saved)
+	{
+		Message m = saved ? oldMessages.find(id) : newMessages.find(id) ;
+		if (m == null)
+			return false;
+		dirty = true ;
+		if (saved)
+			oldMessages.remove(m) ;
+		else
+			newMessages.remove(m) ;
+		timeIndex.remove(m) ;
+		m.discard() ;
+		return true;
+	}
+	
+	/**
+	 * Finds a message, new or old, by id.
+	 * @param id the id of the message
+	 * @return the message, or null if it isn't in this mailbox
+	 */
+	public Message findMessage(long id)
+	{
+		Message m = newMessages.find(id) ;
+		return m != null ? m : oldMessages.find(id);
+	}
+	
+	/**
+	 * Gets the messages of the old queue, from the front.
+	 * @return the list of old messages
+	 */
+	public List<Message> getOldMessages()
+	{
+		ArrayList<Message> list = new ArrayList<Message>(oldSize()) ;
+		for (int i = 0; i < oldSize(); i++)
+			list.add(oldMessages.get(i)) ;
+		return list;
+	}
+	
+	/**
+	 * Checks whether the mailbox has changed since it was last written to a store.
+	 * @return true if the mailbox has unsaved changes
+	 */
+	public boolean isDirty()
+	{
+		return dirty;
+	}
+	
+	/**
+	 * Records that the mailbox has changes no store holds, e.g. because it has just been moved from another center.
+	 */
+	public void markDirty()
+	{
+		dirty = true ;
+	}
+	
+	/**
+	 * Records that the mailbox has just been written to a store.
+	 */
+	public void markClean()
+	{
+		dirty = false ;
+	}
+	
+	/**
+	 * Gets the messages, new or old, deposited at or after a time.
+	 * @param from the time in milliseconds
+	 * @return the messages, oldest first
+	 */
+	public List<Message> messagesSince(long from)
+	{
+		return timeIndex.since(from);
+	}
+	
+	/**
+	 * Counts the messages, new or old, deposited in a time range.
+	 * @param from the start of the range in milliseconds, inclusive
+	 * @param to the end of the range in milliseconds, exclusive
+	 * @return the number of messages in the range
+	 */
+	public int countMessagesBetween(long from, long to)
+	{
+		return timeIndex.countBetween(from, to);
 	}
 	
 	/**
@@ -259,6 +566,7 @@ public class Mailbox
 	 */
 	public void resetCurrentMessage()
 	{
+		dirty = true ;
 		oldMessages.resetCurrent() ;
 	}
 	
@@ -267,6 +575,7 @@ public class Mailbox
 	 */
 	public void advanceCurrentMessage()
 	{
+		dirty = true ;
 		oldMessages.advanceCurrent() ;
 	}
 }
@@ -0,0 +1,149 @@
+import java.util.* ;
+
+/**
+ * System-wide counters over all mailboxes, updated every time a mailbox changes instead of
+ * being recomputed, plus the mailboxes ordered by how many messages they hold.
+ * Each update costs O(log n) in the number of mailboxes.
+ */
+public class MailboxStats
+{
+	private final HashMap<String, Entry> entries ;
+	private final TreeSet<Entry> byFill ;
+	private long newCount ;
+	private long oldCount ;
+	private int fullCount ;
+	private int defaultGreetingCount ;
+	
+	/**
+	 * Constructs statistics of no mailbox.
+	 */
+	public MailboxStats()
+	{
+		entries = new HashMap<String, Entry>() ;
+		byFill = new TreeSet<Entry>() ;
+	}
+	
+	/**
+	 * Records the current state of a mailbox, replacing what was recorded before.
+	 * @param m the mailbox
+	 */
+	public void update(Mailbox m)
+	{
+		remove(m.getExtension()) ;
+		Entry e = new Entry(m.getExtension(), m.newSize(), m.oldSize(),
+				m.getGreetingsCount() == 1 && m.getCurrentGreetingNumber() == 1) ;
+		entries.put(e.extension, e) ;
+		byFill.add(e) ;
+		newCount += e.newSize ;
+		oldCount += e.oldSize ;
+		if (e.newSize >= Mailbox.MAXIMUM_MESSAGE)
+			fullCount++ ;
+		if (e.defaultGreeting)
+			defaultGreetingCount++ ;
+	}
+	
+	/**
+	 * Forgets a mailbox that has left the directory.
+	 * @param extension the extension number of the mailbox
+	 */
+	public void remove(String extension)
+	{
+		Entry e = entries.remove(extension) ;
+		if (e == null)
+			return;
+		byFill.remove(e) ;
+		newCount -= e.newSize ;
+		oldCount -= e.oldSize ;
+		if (e.newSize >= Mailbox.MAXIMUM_MESSAGE)
+			fullCount-- ;
+		if (e.defaultGreeting)
+			defaultGreetingCount-- ;
+	}
+	
+	/**
+	 * Gets the number of mailboxes.
+	 * @return the number of mailboxes
+	 */
+	public int getMailboxCount()
+	{
+		return entries.size();
+	}
+	
+	/**
+	 * Gets the number of unheard messages in all mailboxes.
+	 * @return the number of new messages
+	 */
+	public long getNewCount()
+	{
+		return newCount;
+	}
+	
+	/**
+	 * Gets the number of saved messages in all mailboxes.
+	 * @return the number of old messages
+	 */
+	public long getOldCount()
+	{
+		return oldCount;
+	}
+	
+	/**
+	 * Gets the number of mailboxes that can't receive any new message.
+	 * @return the number of full mailboxes
+	 */
+	public int getFullCount()
+	{
+		return fullCount;
+	}
+	
+	/**
+	 * Gets the number of mailboxes that still only have their default greeting.
+	 * @return the number of mailboxes
+	 */
+	public int getDefaultGreetingCount()
+	{
+		return defaultGreetingCount;
+	}
+	
+	/**
+	 * Gets the mailboxes holding the most messages, new and old together.
+	 * @param n the maximum number of mailboxes
+	 * @return the extension numbers, fullest first
+	 */
+	public List<String> fullest(int n)
+	{
+		ArrayList<String> list = new ArrayList<String>(Math.min(n, entries.size())) ;
+		for (Entry e: byFill)
+		{
+			if (list.size() >= n)
+				break ;
+			list.add(e.extension) ;
+		}
+		return list;
+	}
+	
+	/**
+	 * What was last recorded of one mailbox. Ordered by number of messages, most first.
+	 */
+	private static class Entry implements Comparable<Entry>
+	{
+		private final String extension ;
+		private final int newSize ;
+		private final int oldSize ;
+		private final boolean defaultGreeting ;
+		
+		private Entry(String extension, int newSize, int oldSize, boolean defaultGreeting)
+		{
+			this.extension = extension ;
+			this.newSize = newSize ;
+			this.oldSize = oldSize ;
+			this.defaultGreeting = defaultGreeting ;
+		}
+		
+		public int compareTo(Entry other)
+		{
+			int c = Integer.compare(other.newSize + other.oldSize, newSize + oldSize) ;
+			return c != 0 ? c : extension.compareTo(other.extension);
+		}
+	}
+}
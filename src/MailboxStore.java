@@ -0,0 +1,153 @@
+import java.io.* ;
+
+/**
+ * A directory on disk holding one file per mailbox, for mailboxes that don't fit in memory.
+ */
+public class MailboxStore
+{
+	private File directory ;
+	private boolean temporary ;
+	
+	/**
+	 * Constructs a store in a temporary directory, created the first time a mailbox is written.
+	 */
+	public MailboxStore()
+	{
+		directory = null ;
+		temporary = true ;
+	}
+	
+	/**
+	 * Constructs a store in supplied directory.
+	 * @param dir the directory holding the mailbox files
+	 */
+	public MailboxStore(File dir)
+	{
+		directory = dir ;
+		temporary = false ;
+	}
+	
+	/**
+	 * Checks if a mailbox has been written to the store.
+	 * @param extension the extension number of the mailbox
+	 * @return true if the store holds the mailbox
+	 */
+	public synchronized boolean contains(String extension)
+	{
+		return directory != null && fileOf(extension).exists();
+	}
+	
+	/**
+	 * Writes a mailbox to the store, replacing any earlier copy.
+	 * @param m the mailbox to be written
+	 * @throws IOException if the mailbox can't be written
+	 */
+	public synchronized void save(Mailbox m) throws IOException
+	{
+		File f = fileOf(m.getExtension()) ;
+		File temp = new File(f.getPath() + ".tmp") ;
+		try (ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(temp))))
+		{
+			out.writeObject(m) ;
+		}
+		if (!temp.renameTo(f) && !(f.delete() && temp.renameTo(f)))
+			throw new IOException("Can't replace " + f);
+		if (temporary)
+			f.deleteOnExit() ;
+	}
+	
+	/**
+	 * Reads a mailbox back from the store.
+	 * @param extension the extension number of the mailbox
+	 * @return the mailbox, with no unsaved changes
+	 * @precondition contains(extension)
+	 */
+	public synchronized Mailbox load(String extension)
+	{
+		assert(contains(extension)) : "Mailbox isn't in the store!" ;
+		try (ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(fileOf(extension)))))
+		{
+			Mailbox m = (Mailbox) in.readObject() ;
+			m.markClean() ;
+			return m;
+		}
+		catch (IOException | ClassNotFoundException e)
+		{
+			throw new UncheckedIOException("Can't read mailbox " + extension, new IOException(e));
+		}
+	}
+	
+	/**
+	 * Reads the copy of a mailbox as it was written, without restoring it.
+	 * @param extension the extension number of the mailbox
+	 * @return the serialized mailbox
+	 * @precondition contains(extension)
+	 */
+	public synchronized byte[] read(String extension)
+	{
+		assert(contains(extension)) : "Mailbox isn't in the store!" ;
+		try
+		{
+			return java.nio.file.Files.readAllBytes(fileOf(extension).toPath());
+		}
+		catch (IOException e)
+		{
+			throw new UncheckedIOException("Can't read mailbox " + extension, e);
+		}
+	}
+	
+	/**
+	 * Serializes a mailbox the way it is written to a store.
+	 * @param m the mailbox
+	 * @return the serialized mailbox
+	 */
+	public static byte[] serialize(Mailbox m)
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream() ;
+		try (ObjectOutputStream out = new ObjectOutputStream(bytes))
+		{
+			out.writeObject(m) ;
+		}
+		catch (IOException e)
+		{
+			throw new UncheckedIOException("Can't copy mailbox " + m.getExtension(), e);
+		}
+		return bytes.toByteArray();
+	}
+	
+	/**
+	 * Deletes the copy of a mailbox, e.g. once the mailbox has moved to another center.
+	 * @param extension the extension number of the mailbox
+	 * @throws UncheckedIOException if the copy exists but can't be deleted
+	 */
+	public synchronized void delete(String extension)
+	{
+		if (!contains(extension))
+			return;
+		File f = fileOf(extension) ;
+		if (!f.delete())
+			throw new UncheckedIOException("Can't delete mailbox " + extension, new IOException(f.getPath()));
+	}
+	
+	/**
+	 * Gets the file of a mailbox, creating the temporary directory if needed.
+	 * @param extension the extension number of the mailbox
+	 * @return the file
+	 */
+	private File fileOf(String extension)
+	{
+		if (directory == null)
+		{
+			try
+			{
+				directory = java.nio.file.Files.createTempDirectory("mailboxes").toFile() ;
+				directory.deleteOnExit() ;
+			}
+			catch (IOException e)
+			{
+				throw new UncheckedIOException("Can't create mailbox directory", e);
+			}
+		}
+		return new File(directory, extension + ".mbx");
+	}
+}
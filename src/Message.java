@@ -1,19 +1,143 @@
+import java.io.* ;
+import java.util.concurrent.atomic.AtomicLong ;
+
 /**
- * A message from the caller for the mailbox owner.
+ * A message from the caller for the mailbox owner, with its deposit time, caller, length, priority, and a unique id.
+ * The content lives in a MessageBody that may be shared with the copies delivered to other mailboxes.
  */
-public class Message
+public class Message implements Serializable
 {
-	private final String content ;
+	private final MessageBody body ;
+	private final long id ;
+	private final long timestamp ;
+	private final long callerId ;
+	private final int length ;
+	private final int priority ;
+	
+	public static final long UNKNOWN_CALLER = 0 ;
+	public static final int NORMAL = 0 ;
+	public static final int URGENT = 1 ;
+	
+	private static final AtomicLong nextId = new AtomicLong(1) ;
+	private static final long serialVersionUID = 1L ;
 	
 	/**
-	 * Constructs a message with nonempty content.
+	 * Constructs a message with nonempty content from an unknown caller, deposited now.
 	 * @param content
 	 * @precondition content.length() > 0
 	 */
 	public Message(String content)
 	{
-		assert(content.length() > 0) : "Message can't be empty!" ;
-		this.content = content ;
+		this(content, UNKNOWN_CALLER) ;
+	}
+	
+	/**
+	 * Constructs a message with nonempty content, deposited now.
+	 * @param content the message content
+	 * @param callerId the line the caller called from, or UNKNOWN_CALLER
+	 * @precondition content.length() > 0
+	 */
+	public Message(String content, long callerId)
+	{
+		this(new MessageBody(content), callerId) ;
+	}
+	
+	/**
+	 * Constructs a message sharing an existing body, deposited now.
+	 * @param body the recorded body
+	 * @param callerId the line the caller called from, or UNKNOWN_CALLER
+	 */
+	public Message(MessageBody body, long callerId)
+	{
+		this(body, callerId, NORMAL) ;
+	}
+	
+	/**
+	 * Constructs a message sharing an existing body with supplied priority, deposited now.
+	 * @param body the recorded body
+	 * @param callerId the line the caller called from, or UNKNOWN_CALLER
+	 * @param priority NORMAL or URGENT
+	 */
+	public Message(MessageBody body, long callerId, int priority)
+	{
+		this(body, callerId, nextId.getAndIncrement(), System.currentTimeMillis(), priority) ;
+	}
+	
+	/**
+	 * Constructs a copy of a message deposited elsewhere, keeping its id and deposit time.
+	 * Ids given out afterwards are bigger than the supplied one.
+	 * @param body the recorded body
+	 * @param callerId the line the caller called from, or UNKNOWN_CALLER
+	 * @param id the unique id of the message
+	 * @param timestamp the deposit time in milliseconds
+	 * @param priority NORMAL or URGENT
+	 * @precondition priority == NORMAL || priority == URGENT
+	 */
+	public Message(MessageBody body, long callerId, long id, long timestamp, int priority)
+	{
+		assert(priority == NORMAL || priority == URGENT) : "Priority invalid!" ;
+		this.priority = priority ;
+		this.body = body ;
+		this.callerId = callerId ;
+		this.id = id ;
+		this.timestamp = timestamp ;
+		length = body.length() ;
+		body.retain() ;
+		reserveId(id) ;
+	}
+	
+	/**
+	 * Gets the unique id of the message.
+	 * @return the message id
+	 */
+	public long getId()
+	{
+		return id;
+	}
+	
+	/**
+	 * Gets the time the message was deposited.
+	 * @return the deposit time in milliseconds
+	 */
+	public long getTimestamp()
+	{
+		return timestamp;
+	}
+	
+	/**
+	 * Gets the line the caller called from.
+	 * @return the caller id, or UNKNOWN_CALLER
+	 */
+	public long getCallerId()
+	{
+		return callerId;
+	}
+	
+	/**
+	 * Gets the priority of the message.
+	 * @return NORMAL or URGENT
+	 */
+	public int getPriority()
+	{
+		return priority;
+	}
+	
+	/**
+	 * Checks whether the caller marked the message urgent.
+	 * @return true if the message is urgent
+	 */
+	public boolean isUrgent()
+	{
+		return priority == URGENT;
+	}
+	
+	/**
+	 * Gets the length of the message.
+	 * @return the message length
+	 */
+	public int getLength()
+	{
+		return length;
 	}
 	
 	/**
@@ -22,6 +146,46 @@ public class Message
 	 */
 	public String getContent()
 	{
-		return content;
+		return body.getContent();
+	}
+	
+	/**
+	 * Gets the body holding the content of the message.
+	 * @return the message body
+	 */
+	public MessageBody getBody()
+	{
+		return body;
+	}
+	
+	/**
+	 * Gives up this message's reference to its body. Called once, when the message is deleted.
+	 */
+	public void discard()
+	{
+		body.release() ;
+	}
+	
+	/**
+	 * Restores a message read from a MailboxStore, taking back its reference to the body.
+	 * @param in the stream the message is read from
+	 */
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException
+	{
+		in.defaultReadObject() ;
+		body.retain() ;
+		reserveId(id) ;
+	}
+	
+	/**
+	 * Makes sure no id given out from now on clashes with an id that already exists.
+	 * @param id the existing id
+	 */
+	private static void reserveId(long id)
+	{
+		long n ;
+		do
+			n = nextId.get() ;
+		while (n <= id && !nextId.compareAndSet(n, id + 1)) ;
 	}
 }
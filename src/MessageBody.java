@@ -0,0 +1,249 @@
+import java.io.* ;
+import java.util.concurrent.atomic.AtomicInteger ;
+
+/**
+ * The recorded content of a message, stored once and shared by every mailbox that received it.
+ * Counts how many messages still refer to it. Once handed to a TieredStore, the content may be
+ * compressed in memory or moved to disk, and is then read back through the store.
+ */
+public class MessageBody implements Serializable
+{
+	private transient String content ;
+	private transient byte[] compressed ;
+	private final int length ;
+	private final AudioClip audio ;
+	private transient AtomicInteger references ;
+	private transient TieredStore store ;
+	private transient long offset ;
+	private transient int storedBytes ;
+	private transient boolean storedCompressed ;
+	
+	private static final long serialVersionUID = 1L ;
+	
+	/**
+	 * Constructs a body with nonempty content that no message refers to yet.
+	 * @param content the recorded content
+	 * @precondition content.length() > 0
+	 */
+	public MessageBody(String content)
+	{
+		this(content, null) ;
+	}
+	
+	/**
+	 * Constructs a body with nonempty content and recorded audio that no message refers to yet.
+	 * @param content the recorded content, or a description of the audio
+	 * @param audio the recorded audio, or null if there is none
+	 * @precondition content.length() > 0
+	 */
+	public MessageBody(String content, AudioClip audio)
+	{
+		assert(content.length() > 0) : "Message can't be empty!" ;
+		this.content = content ;
+		this.audio = audio ;
+		length = content.length() ;
+		references = new AtomicInteger() ;
+		store = null ;
+		offset = -1 ;
+	}
+	
+	/**
+	 * Gets the recorded content, reading it back from disk if it has been moved there.
+	 * @return the content
+	 */
+	public String getContent()
+	{
+		TieredStore s = store ;
+		return s == null ? content : s.read(this);
+	}
+	
+	/**
+	 * Gets the recorded audio. Audio always stays in memory, whatever happens to the content.
+	 * @return the audio, or null if there is none
+	 */
+	public AudioClip getAudio()
+	{
+		return audio;
+	}
+	
+	/**
+	 * Gets the length of the recorded content.
+	 * @return the content length
+	 */
+	public int length()
+	{
+		return length;
+	}
+	
+	/**
+	 * Gets the number of messages referring to this body.
+	 * @return the reference count
+	 */
+	public int getReferences()
+	{
+		return references.get();
+	}
+	
+	/**
+	 * Records that one more message refers to this body.
+	 */
+	public void retain()
+	{
+		references.incrementAndGet() ;
+	}
+	
+	/**
+	 * Records that a message referring to this body has been deleted.
+	 * When no message refers to it anymore, its store forgets it.
+	 * @return the number of messages still referring to it
+	 * @precondition getReferences() > 0
+	 */
+	public int release()
+	{
+		int n = references.decrementAndGet() ;
+		assert(n >= 0) : "Body released too many times!" ;
+		if (n == 0 && store != null)
+			store.forget(this) ;
+		return n;
+	}
+	
+	/**
+	 * Checks whether the content has been moved to disk.
+	 * @return true if the content is only on disk
+	 */
+	public boolean isCold()
+	{
+		return content == null && compressed == null;
+	}
+	
+	/**
+	 * Checks whether the content is kept compressed, in memory or on disk.
+	 * @return true if the content is compressed
+	 */
+	public boolean isCompressed()
+	{
+		return compressed != null || (isCold() && storedCompressed);
+	}
+	
+	/**
+	 * Gets the store managing this body.
+	 * @return the store, or null if the body always stays in memory
+	 */
+	TieredStore getStore()
+	{
+		return store;
+	}
+	
+	/**
+	 * Hands this body to a store, which may move it to disk later.
+	 * @param s the store
+	 */
+	void attach(TieredStore s)
+	{
+		store = s ;
+	}
+	
+	/**
+	 * Gets the content if it is in memory and not compressed.
+	 * @return the content, or null if it has been compressed or moved to disk
+	 */
+	String getHotContent()
+	{
+		return content;
+	}
+	
+	/**
+	 * Gets the compressed content if it is in memory.
+	 * @return the compressed bytes, or null if the content isn't compressed in memory
+	 */
+	byte[] getCompressed()
+	{
+		return compressed;
+	}
+	
+	/**
+	 * Replaces the in-memory content with its compressed form.
+	 * @param bytes the compressed content
+	 */
+	void compress(byte[] bytes)
+	{
+		compressed = bytes ;
+		content = null ;
+	}
+	
+	/**
+	 * Drops the in-memory content after it has been written to disk.
+	 * @param offset the position of the content in the segment file
+	 * @param bytes the number of bytes written
+	 * @param wasCompressed true if the bytes written are compressed
+	 */
+	void spill(long offset, int bytes, boolean wasCompressed)
+	{
+		this.offset = offset ;
+		storedBytes = bytes ;
+		storedCompressed = wasCompressed ;
+		content = null ;
+		compressed = null ;
+	}
+	
+	/**
+	 * Checks whether the bytes in the segment file are compressed.
+	 * @return true if they are compressed
+	 */
+	boolean isStoredCompressed()
+	{
+		return storedCompressed;
+	}
+	
+	/**
+	 * Estimates the memory the content takes while the body is in memory.
+	 * @return the number of bytes, or 0 if the content is on disk
+	 */
+	long residentBytes()
+	{
+		if (content != null)
+			return 2L * length;
+		return compressed != null ? compressed.length : 0;
+	}
+	
+	/**
+	 * Gets the position of the content in the segment file.
+	 * @return the offset, or -1 if the content has never been written
+	 */
+	long getOffset()
+	{
+		return offset;
+	}
+	
+	/**
+	 * Gets the number of bytes the content takes in the segment file.
+	 * @return the stored size
+	 */
+	int getStoredBytes()
+	{
+		return storedBytes;
+	}
+	
+	/**
+	 * Writes the body to a MailboxStore with its content, wherever the content currently is.
+	 * @param out the stream the body is written to
+	 */
+	private void writeObject(ObjectOutputStream out) throws IOException
+	{
+		out.defaultWriteObject() ;
+		out.writeObject(getContent()) ;
+	}
+	
+	/**
+	 * Reads a body back from a MailboxStore. It is in memory and no message refers to it yet.
+	 * @param in the stream the body is read from
+	 */
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException
+	{
+		in.defaultReadObject() ;
+		content = (String) in.readObject() ;
+		references = new AtomicInteger() ;
+		store = null ;
+		offset = -1 ;
+	}
+}
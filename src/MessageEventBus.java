@@ -0,0 +1,156 @@
+import java.util.concurrent.CopyOnWriteArrayList ;
+import java.util.concurrent.atomic.AtomicLong ;
+import java.util.concurrent.atomic.AtomicReferenceArray ;
+import java.util.concurrent.locks.LockSupport ;
+
+/**
+ * A stream of message-waiting events kept in a fixed-size ring. Publishing takes a sequence number
+ * and stores the event in its slot without any lock, and never waits for subscribers.
+ * Each subscriber follows the ring on its own thread at its own pace; one that falls a whole ring
+ * behind skips to the oldest event still there and is told how many it missed.
+ */
+public class MessageEventBus
+{
+	private final AtomicReferenceArray<MessageWaitingEvent> ring ;
+	private final int mask ;
+	private final AtomicLong cursor ;
+	private final CopyOnWriteArrayList<Subscriber> subscribers ;
+	
+	public static final int DEFAULT_CAPACITY = 1024 ;
+	private static final long IDLE_PARK_NANOS = 1000000 ;
+	private static final int SPINS = 100 ;
+	
+	/**
+	 * Constructs a bus with the default ring size.
+	 */
+	public MessageEventBus()
+	{
+		this(DEFAULT_CAPACITY) ;
+	}
+	
+	/**
+	 * Constructs a bus with supplied ring size.
+	 * @param capacity the number of events kept for slow subscribers
+	 * @precondition capacity > 0 && (capacity & (capacity - 1)) == 0
+	 */
+	public MessageEventBus(int capacity)
+	{
+		assert(capacity > 0 && (capacity & (capacity - 1)) == 0) : "Capacity must be a power of 2!" ;
+		ring = new AtomicReferenceArray<MessageWaitingEvent>(capacity) ;
+		mask = capacity - 1 ;
+		cursor = new AtomicLong() ;
+		subscribers = new CopyOnWriteArrayList<Subscriber>() ;
+	}
+	
+	/**
+	 * Publishes an event about a mailbox.
+	 * @param type MessageWaitingEvent.DEPOSITED, SAVED, or REMOVED
+	 * @param m the mailbox after the change
+	 * @param messageId the id of the message that changed
+	 */
+	public void publish(int type, Mailbox m, long messageId)
+	{
+		long sequence = cursor.getAndIncrement() ;
+		ring.lazySet((int) sequence & mask,
+				new MessageWaitingEvent(sequence, type, m.getExtension(), messageId, m.newSize(), m.oldSize())) ;
+	}
+	
+	/**
+	 * Gets the number of events published so far.
+	 * @return the number of events
+	 */
+	public long published()
+	{
+		return cursor.get();
+	}
+	
+	/**
+	 * Starts delivering the events published from now on to a listener, on a new thread.
+	 * @param name the name of the subscriber's thread
+	 * @param l the listener
+	 * @return a handle used to stop the subscription
+	 */
+	public Subscriber subscribe(String name, MessageWaitingListener l)
+	{
+		Subscriber s = new Subscriber(l, cursor.get()) ;
+		Thread t = new Thread(s, name) ;
+		t.setDaemon(true) ;
+		subscribers.add(s) ;
+		t.start() ;
+		return s;
+	}
+	
+	/**
+	 * Gets the number of active subscribers.
+	 * @return the number of subscribers
+	 */
+	public int subscriberCount()
+	{
+		return subscribers.size();
+	}
+	
+	/**
+	 * A listener following the ring on its own thread.
+	 */
+	public class Subscriber implements Runnable
+	{
+		private final MessageWaitingListener listener ;
+		private long next ;
+		private volatile boolean running ;
+		private final AtomicLong missed ;
+		
+		private Subscriber(MessageWaitingListener listener, long next)
+		{
+			this.listener = listener ;
+			this.next = next ;
+			running = true ;
+			missed = new AtomicLong() ;
+		}
+		
+		/**
+		 * Stops delivering events. The listener gets no event after the current one.
+		 */
+		public void cancel()
+		{
+			running = false ;
+			subscribers.remove(this) ;
+		}
+		
+		/**
+		 * Gets the number of events this subscriber was too slow to read.
+		 * @return the number of missed events
+		 */
+		public long getMissedCount()
+		{
+			return missed.get();
+		}
+		
+		public void run()
+		{
+			int idle = 0 ;
+			while (running)
+			{
+				MessageWaitingEvent e = ring.get((int) next & mask) ;
+				if (e == null || e.getSequence() < next)
+				{
+					if (++idle > SPINS)
+						LockSupport.parkNanos(IDLE_PARK_NANOS) ;
+					else
+						Thread.onSpinWait() ;
+					continue ;
+				}
+				idle = 0 ;
+				if (e.getSequence() > next)
+				{
+					long oldest = Math.max(next, cursor.get() - mask) ;
+					missed.addAndGet(oldest - next) ;
+					listener.eventsMissed(oldest - next) ;
+					next = oldest ;
+					continue ;
+				}
+				next++ ;
+				listener.messageWaiting(e) ;
+			}
+		}
+	}
+}
@@ -0,0 +1,124 @@
+import java.util.* ;
+
+/**
+ * A list of messages sorted by deposit time, answering time range questions by binary search.
+ */
+public class MessageIndex implements java.io.Serializable
+{
+	private long[] times ;
+	private Message[] messages ;
+	private int count ;
+	
+	private static final int INITIAL_CAPACITY = 16 ;
+	private static final long serialVersionUID = 1L ;
+	
+	/**
+	 * Constructs an empty index.
+	 */
+	public MessageIndex()
+	{
+		times = new long[INITIAL_CAPACITY] ;
+		messages = new Message[INITIAL_CAPACITY] ;
+		count = 0 ;
+	}
+	
+	/**
+	 * Gets the number of messages in the index.
+	 * @return the number of messages
+	 */
+	public int size()
+	{
+		return count;
+	}
+	
+	/**
+	 * Adds a message in deposit time order. Messages arriving in time order are appended at the end.
+	 * @param m the message to be added
+	 */
+	public void add(Message m)
+	{
+		if (count == times.length)
+		{
+			times = Arrays.copyOf(times, count * 2) ;
+			messages = Arrays.copyOf(messages, count * 2) ;
+		}
+		int i = firstAfter(m.getTimestamp()) ;
+		System.arraycopy(times, i, times, i + 1, count - i) ;
+		System.arraycopy(messages, i, messages, i + 1, count - i) ;
+		times[i] = m.getTimestamp() ;
+		messages[i] = m ;
+		count++ ;
+	}
+	
+	/**
+	 * Removes a message from the index.
+	 * @param m the message to be removed
+	 * @return true if the message was in the index and has been removed
+	 */
+	public boolean remove(Message m)
+	{
+		for (int i = firstAtOrAfter(m.getTimestamp()); i < count && times[i] == m.getTimestamp(); i++)
+			if (messages[i] == m)
+			{
+				System.arraycopy(times, i + 1, times, i, count - i - 1) ;
+				System.arraycopy(messages, i + 1, messages, i, count - i - 1) ;
+				messages[--count] = null ;
+				return true;
+			}
+		return false;
+	}
+	
+	/**
+	 * Gets the messages deposited at or after a time, oldest first.
+	 * @param from the time in milliseconds
+	 * @return the list of messages
+	 */
+	public List<Message> since(long from)
+	{
+		int i = firstAtOrAfter(from) ;
+		return new ArrayList<Message>(Arrays.asList(messages).subList(i, count));
+	}
+	
+	/**
+	 * Counts the messages deposited in a time range.
+	 * @param from the start of the range in milliseconds, inclusive
+	 * @param to the end of the range in milliseconds, exclusive
+	 * @return the number of messages in the range
+	 */
+	public int countBetween(long from, long to)
+	{
+		if (to <= from)
+			return 0;
+		return firstAtOrAfter(to) - firstAtOrAfter(from);
+	}
+	
+	/**
+	 * Finds the position of the first message deposited at or after a time.
+	 * @param t the time in milliseconds
+	 * @return the position, or size() if there is none
+	 */
+	private int firstAtOrAfter(long t)
+	{
+		int low = 0 ;
+		int high = count ;
+		while (low < high)
+		{
+			int mid = (low + high) >>> 1 ;
+			if (times[mid] < t)
+				low = mid + 1 ;
+			else
+				high = mid ;
+		}
+		return low;
+	}
+	
+	/**
+	 * Finds the position of the first message deposited after a time.
+	 * @param t the time in milliseconds
+	 * @return the position, or size() if there is none
+	 */
+	private int firstAfter(long t)
+	{
+		return t == Long.MAX_VALUE ? count : firstAtOrAfter(t + 1);
+	}
+}
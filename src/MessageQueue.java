@@ -1,7 +1,11 @@
+import java.io.Serializable ;
+import java.util.ArrayList ;
+import java.util.List ;
+
 /**
  * A circular array collection of messages.
  */
-public class MessageQueue
+public class MessageQueue implements Serializable
 {
 	private final Message[] messageList ;
 	private int count ;
@@ -10,6 +14,7 @@ public class MessageQueue
 	private int current ;
 	
 	private static final int OLD_QUEUE_CAPACITY = 10 ;
+	private static final long serialVersionUID = 1L ;
 	
 	/**
 	 * Constructs an empty message queue with assumably really long capacity.
@@ -50,6 +55,26 @@ public class MessageQueue
 		return count == messageList.length;
 	}
 	
+	/**
+	 * Gets the number of messages that can still be added.
+	 * @return the free room in the queue
+	 */
+	public int remaining()
+	{
+		return messageList.length - count;
+	}
+	
+	/**
+	 * Gets the position of the current message from the front of the queue.
+	 * @return the position, 0 being the front
+	 * @precondition size() > 0
+	 */
+	public int currentPosition()
+	{
+		assert(size() > 0) : "There is no message!" ;
+		return (current - head + messageList.length) % messageList.length;
+	}
+	
 	/**
 	 * Gets the message at the front of the queue.
 	 * @return the first message in the queue
@@ -61,6 +86,31 @@ public class MessageQueue
 		return messageList[head];
 	}
 	
+	/**
+	 * Gets a message by its position from the front of the queue.
+	 * @param i the position, 0 being the front
+	 * @return the message at that position
+	 * @precondition 0 <= i && i < size()
+	 */
+	public Message get(int i)
+	{
+		assert(0 <= i && i < size()) : "Message position invalid!" ;
+		return messageList[(head + i) % messageList.length];
+	}
+	
+	/**
+	 * Finds a message in the queue by its id.
+	 * @param id the message id
+	 * @return the message, or null if it isn't in the queue
+	 */
+	public Message find(long id)
+	{
+		for (int i = 0; i < count; i++)
+			if (get(i).getId() == id)
+				return get(i);
+		return null;
+	}
+	
 	/**
 	 * Gets the current message of the queue.
 	 * @return the current message
@@ -109,6 +159,46 @@ public class MessageQueue
 		tail = (tail + 1) % messageList.length ;
 	}
 	
+	/**
+	 * Appends several messages at the end of the queue, in order.
+	 * @param messages the messages to be added
+	 * @precondition messages.size() <= remaining()
+	 */
+	public void addAll(List<Message> messages)
+	{
+		assert(messages.size() <= remaining()) : "The message queue doesn't have enough room!" ;
+		for (Message m: messages)
+		{
+			messageList[tail] = m ;
+			tail = (tail + 1) % messageList.length ;
+		}
+		count += messages.size() ;
+	}
+	
+	/**
+	 * Removes several messages at once from the front of the queue by moving the head past them.
+	 * The current message pointer stays on the same message, or moves to the new front if it was removed.
+	 * @param k the number of messages to be removed
+	 * @return the messages that have been removed, from the front
+	 * @precondition 0 <= k && k <= size()
+	 */
+	public List<Message> removeFront(int k)
+	{
+		assert(0 <= k && k <= size()) : "Not that many messages to be removed!" ;
+		boolean currentRemoved = count > 0 && currentPosition() < k ;
+		ArrayList<Message> removed = new ArrayList<Message>(k) ;
+		for (int i = 0; i < k; i++)
+		{
+			removed.add(messageList[head]) ;
+			messageList[head] = null ;
+			head = (head + 1) % messageList.length ;
+		}
+		count -= k ;
+		if (currentRemoved)
+			current = head ;
+		return removed;
+	}
+	
 	/**
 	 * Removes the message at the front of the queue.
 	 * @return the message that has been removed from the queue
@@ -132,4 +222,33 @@ public class MessageQueue
 		advanceCurrent() ;
 		return m;
 	}
+	
+	/**
+	 * Removes a specific message from the queue, keeping the order of the others.
+	 * The current message pointer stays on the same message, or moves to the next one if it was removed.
+	 * @param message the message to be removed
+	 * @return true if the message was in the queue and has been removed
+	 */
+	public boolean remove(Message message)
+	{
+		int i = 0 ;
+		while (i < count && messageList[(head + i) % messageList.length] != message)
+			i++ ;
+		if (i == count)
+			return false;
+		
+		int c = (current - head + messageList.length) % messageList.length ;
+		for (int j = i; j < count - 1; j++)
+			messageList[(head + j) % messageList.length] = messageList[(head + j + 1) % messageList.length] ;
+		count-- ;
+		tail = (head + count) % messageList.length ;
+		messageList[tail] = null ;
+		
+		if (c > i)
+			c-- ;
+		if (c >= count)
+			c = 0 ;
+		current = (head + c) % messageList.length ;
+		return true;
+	}
 }
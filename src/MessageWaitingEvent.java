@@ -0,0 +1,100 @@
+/**
+ * Tells subscribers that the messages waiting in a mailbox have changed.
+ */
+public class MessageWaitingEvent
+{
+	private final long sequence ;
+	private final int type ;
+	private final String extension ;
+	private final long messageId ;
+	private final int newCount ;
+	private final int oldCount ;
+	private final long timestamp ;
+	
+	public static final int DEPOSITED	= 1 ;
+	public static final int SAVED		= 2 ;
+	public static final int REMOVED		= 3 ;
+	
+	/**
+	 * Constructs an event.
+	 * @param sequence the position of the event in the stream
+	 * @param type DEPOSITED, SAVED, or REMOVED
+	 * @param extension the extension number of the mailbox
+	 * @param messageId the id of the message that changed
+	 * @param newCount the number of new messages in the mailbox afterwards
+	 * @param oldCount the number of old messages in the mailbox afterwards
+	 */
+	public MessageWaitingEvent(long sequence, int type, String extension, long messageId, int newCount, int oldCount)
+	{
+		this.sequence = sequence ;
+		this.type = type ;
+		this.extension = extension ;
+		this.messageId = messageId ;
+		this.newCount = newCount ;
+		this.oldCount = oldCount ;
+		timestamp = System.currentTimeMillis() ;
+	}
+	
+	/**
+	 * Gets the position of the event in the stream.
+	 * @return the sequence number
+	 */
+	public long getSequence()
+	{
+		return sequence;
+	}
+	
+	/**
+	 * Gets what happened to the message.
+	 * @return DEPOSITED, SAVED, or REMOVED
+	 */
+	public int getType()
+	{
+		return type;
+	}
+	
+	/**
+	 * Gets the extension number of the mailbox.
+	 * @return the extension number
+	 */
+	public String getExtension()
+	{
+		return extension;
+	}
+	
+	/**
+	 * Gets the id of the message that changed.
+	 * @return the message id
+	 */
+	public long getMessageId()
+	{
+		return messageId;
+	}
+	
+	/**
+	 * Gets the number of new messages waiting in the mailbox after the change.
+	 * @return the new message count
+	 */
+	public int getNewCount()
+	{
+		return newCount;
+	}
+	
+	/**
+	 * Gets the number of old messages in the mailbox after the change.
+	 * @return the old message count
+	 */
+	public int getOldCount()
+	{
+		return oldCount;
+	}
+	
+	/**
+	 * Gets the time of the change.
+	 * @return the time in milliseconds
+	 */
+	public long getTimestamp()
+	{
+		return timestamp;
+	}
+}
@@ -0,0 +1,17 @@
+/**
+ * Receives message-waiting events from a MessageEventBus, on the subscriber's own thread.
+ */
+public interface MessageWaitingListener
+{
+	/**
+	 * Handles one event.
+	 * @param e the event
+	 */
+	void messageWaiting(MessageWaitingEvent e) ;
+	
+	/**
+	 * Tells the listener it was too slow and some events were overwritten before it could read them.
+	 * @param count the number of events lost
+	 */
+	void eventsMissed(long count) ;
+}
@@ -0,0 +1,336 @@
+import java.io.* ;
+import java.util.List ;
+
+/**
+ * One change to a mail center, as shipped from a primary to its replicas by a ReplicationLog.
+ */
+public class Mutation implements Serializable
+{
+	private long sequence ;
+	private final int type ;
+	private final String extension ;
+	private final String text ;
+	private final AudioClip audio ;
+	private final long number ;
+	private final long callerId ;
+	private final long timestamp ;
+	private final boolean old ;
+	private final String[] members ;
+	private final byte[] data ;
+	private final long[] ids ;
+	private final Credential credential ;
+	private final int priority ;
+	
+	public static final int HEARTBEAT			= 0 ;
+	public static final int ADD_MAILBOX			= 1 ;
+	public static final int PUT_MAILBOX			= 2 ;
+	public static final int REMOVE_MAILBOX		= 3 ;
+	public static final int SET_PASSWORD		= 4 ;
+	public static final int SWITCH_GREETING		= 6 ;
+	public static final int RECORD_GREETING		= 7 ;
+	public static final int DELETE_GREETING		= 8 ;
+	public static final int DEPOSIT				= 9 ;
+	public static final int SAVE				= 10 ;
+	public static final int REMOVE_MESSAGE		= 11 ;
+	public static final int ADD_GROUP			= 12 ;
+	public static final int SAVE_ALL			= 13 ;
+	public static final int REMOVE_OLD			= 14 ;
+	
+	private static final long serialVersionUID = 1L ;
+	
+	private Mutation(int type, String extension, String text, AudioClip audio, long number,
+			long callerId, long timestamp, boolean old, String[] members, byte[] data)
+	{
+		this(type, extension, text, audio, number, callerId, timestamp, old, members, data, null, Message.NORMAL, null) ;
+	}
+	
+	private Mutation(int type, String extension, String text, AudioClip audio, long number,
+			long callerId, long timestamp, boolean old, String[] members, byte[] data, Credential credential, int priority, long[] ids)
+	{
+		this.ids = ids ;
+		this.credential = credential ;
+		this.priority = priority ;
+		this.type = type ;
+		this.extension = extension ;
+		this.text = text ;
+		this.audio = audio ;
+		this.number = number ;
+		this.callerId = callerId ;
+		this.timestamp = timestamp ;
+		this.old = old ;
+		this.members = members ;
+		this.data = data ;
+	}
+	
+	/**
+	 * Creates a mutation that changes nothing, used to wake up and check the connection to replicas.
+	 * @return the mutation
+	 */
+	public static Mutation heartbeat()
+	{
+		return new Mutation(HEARTBEAT, null, null, null, 0, 0, 0, false, null, null);
+	}
+	
+	/**
+	 * Creates a mutation adding a new mailbox with its default greeting.
+	 * @param extension the extension number of the mailbox
+	 * @param credential the hashed password of the mailbox
+	 * @return the mutation
+	 */
+	public static Mutation addMailbox(String extension, Credential credential)
+	{
+		return new Mutation(ADD_MAILBOX, extension, null, null, 0, 0, 0, false, null, null, credential, Message.NORMAL, null);
+	}
+	
+	/**
+	 * Creates a mutation adding an existing mailbox with all its messages and greetings.
+	 * @param m the mailbox, which is copied right away
+	 * @return the mutation
+	 */
+	public static Mutation putMailbox(Mailbox m)
+	{
+		return new Mutation(PUT_MAILBOX, m.getExtension(), null, null, 0, 0, 0, false, null, MailboxStore.serialize(m));
+	}
+	
+	/**
+	 * Creates a mutation removing a mailbox.
+	 * @param extension the extension number of the mailbox
+	 * @return the mutation
+	 */
+	public static Mutation removeMailbox(String extension)
+	{
+		return new Mutation(REMOVE_MAILBOX, extension, null, null, 0, 0, 0, false, null, null);
+	}
+	
+	/**
+	 * Creates a mutation setting the password of a mailbox.
+	 * @param extension the extension number of the mailbox
+	 * @param credential the new hashed password
+	 * @return the mutation
+	 */
+	public static Mutation setPassword(String extension, Credential credential)
+	{
+		return new Mutation(SET_PASSWORD, extension, null, null, 0, 0, 0, false, null, null, credential, Message.NORMAL, null);
+	}
+	
+	/**
+	 * Creates a mutation switching the greeting of a mailbox.
+	 * @param extension the extension number of the mailbox
+	 * @param greeting the number position of the new greeting
+	 * @return the mutation
+	 */
+	public static Mutation switchGreeting(String extension, int greeting)
+	{
+		return new Mutation(SWITCH_GREETING, extension, null, null, greeting, 0, 0, false, null, null);
+	}
+	
+	/**
+	 * Creates a mutation adding a greeting to a mailbox.
+	 * @param extension the extension number of the mailbox
+	 * @param greeting the content of the greeting
+	 * @param audio the recorded audio of the greeting, or null
+	 * @return the mutation
+	 */
+	public static Mutation recordGreeting(String extension, String greeting, AudioClip audio)
+	{
+		return new Mutation(RECORD_GREETING, extension, greeting, audio, 0, 0, 0, false, null, null);
+	}
+	
+	/**
+	 * Creates a mutation deleting a greeting of a mailbox.
+	 * @param extension the extension number of the mailbox
+	 * @param greeting the number position of the greeting
+	 * @return the mutation
+	 */
+	public static Mutation deleteGreeting(String extension, int greeting)
+	{
+		return new Mutation(DELETE_GREETING, extension, null, null, greeting, 0, 0, false, null, null);
+	}
+	
+	/**
+	 * Creates a mutation depositing a message, keeping its id, deposit time, and priority.
+	 * @param extension the extension number of the mailbox
+	 * @param m the message
+	 * @return the mutation
+	 */
+	public static Mutation deposit(String extension, Message m)
+	{
+		return new Mutation(DEPOSIT, extension, m.getContent(), m.getBody().getAudio(), m.getId(),
+				m.getCallerId(), m.getTimestamp(), false, null, null, null, m.getPriority(), null);
+	}
+	
+	/**
+	 * Creates a mutation saving the front message of a mailbox's new queue.
+	 * @param extension the extension number of the mailbox
+	 * @param id the id of the message
+	 * @return the mutation
+	 */
+	public static Mutation save(String extension, long id)
+	{
+		return new Mutation(SAVE, extension, null, null, id, 0, 0, false, null, null);
+	}
+	
+	/**
+	 * Creates a mutation saving several messages at once from the front of a mailbox's new queue.
+	 * @param extension the extension number of the mailbox
+	 * @param saved the messages saved, in the order they were saved
+	 * @return the mutation
+	 */
+	public static Mutation saveAll(String extension, List<Message> saved)
+	{
+		return new Mutation(SAVE_ALL, extension, null, null, saved.size(), 0, 0, false, null, null, null, Message.NORMAL, idsOf(saved));
+	}
+	
+	/**
+	 * Creates a mutation deleting several messages at once from a mailbox's old queue.
+	 * @param extension the extension number of the mailbox
+	 * @param removed the messages deleted
+	 * @return the mutation
+	 */
+	public static Mutation removeOld(String extension, List<Message> removed)
+	{
+		return new Mutation(REMOVE_OLD, extension, null, null, removed.size(), 0, 0, false, null, null, null, Message.NORMAL, idsOf(removed));
+	}
+	
+	/**
+	 * Gets the ids of some messages.
+	 * @param messages the messages
+	 * @return their ids, in the same order
+	 */
+	private static long[] idsOf(List<Message> messages)
+	{
+		long[] result = new long[messages.size()] ;
+		for (int i = 0; i < result.length; i++)
+			result[i] = messages.get(i).getId() ;
+		return result;
+	}
+	
+	/**
+	 * Creates a mutation deleting a message.
+	 * @param extension the extension number of the mailbox
+	 * @param id the id of the message
+	 * @param old true if the message is in the old queue, false if in the new queue
+	 * @return the mutation
+	 */
+	public static Mutation removeMessage(String extension, long id, boolean old)
+	{
+		return new Mutation(REMOVE_MESSAGE, extension, null, null, id, 0, 0, old, null, null);
+	}
+	
+	/**
+	 * Creates a mutation adding a distribution list.
+	 * @param extension the extension number of the list
+	 * @param members the extension numbers of the members
+	 * @return the mutation
+	 */
+	public static Mutation addGroup(String extension, String[] members)
+	{
+		return new Mutation(ADD_GROUP, extension, null, null, 0, 0, 0, false, members.clone(), null);
+	}
+	
+	/**
+	 * Applies this mutation to a mail center.
+	 * @param c the mail center
+	 */
+	public void applyTo(MailCenter c)
+	{
+		switch (type)
+		{
+			case ADD_MAILBOX:
+				c.add(extension, credential) ;
+				break ;
+			case PUT_MAILBOX:
+				try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(data)))
+				{
+					c.add((Mailbox) in.readObject()) ;
+				}
+				catch (IOException | ClassNotFoundException e)
+				{
+					throw new UncheckedIOException("Can't read mailbox " + extension, new IOException(e));
+				}
+				break ;
+			case REMOVE_MAILBOX:
+				c.remove(extension) ;
+				break ;
+			case SET_PASSWORD:
+				c.setCredential(extension, credential) ;
+				break ;
+			case SWITCH_GREETING:
+				c.switchGreeting(extension, (int) number) ;
+				break ;
+			case RECORD_GREETING:
+				c.recordGreeting(extension, text, audio) ;
+				break ;
+			case DELETE_GREETING:
+				c.deleteGreeting(extension, (int) number) ;
+				break ;
+			case DEPOSIT:
+				c.addNewMessage(extension, new Message(new MessageBody(text, audio), callerId, number, timestamp, priority)) ;
+				break ;
+			case SAVE:
+				synchronized (c)
+				{
+					if (c.newSize(extension) > 0 && c.get(extension).getMessage(false).getId() == number)
+						c.saveNewMessage(extension) ;
+				}
+				break ;
+			case REMOVE_MESSAGE:
+				c.expireMessage(extension, number, old) ;
+				break ;
+			case ADD_GROUP:
+				c.addGroup(extension, java.util.Arrays.asList(members)) ;
+				break ;
+			case SAVE_ALL:
+				synchronized (c)
+				{
+					for (long id: ids)
+						if (c.newSize(extension) > 0 && c.get(extension).getMessage(false).getId() == id)
+							c.saveNewMessage(extension) ;
+				}
+				break ;
+			case REMOVE_OLD:
+				synchronized (c)
+				{
+					for (long id: ids)
+						c.expireMessage(extension, id, true) ;
+				}
+				break ;
+		}
+	}
+	
+	/**
+	 * Gets the position of this mutation in the primary's log.
+	 * @return the sequence number
+	 */
+	public long getSequence()
+	{
+		return sequence;
+	}
+	
+	/**
+	 * Sets the position of this mutation in the primary's log.
+	 * @param s the sequence number
+	 */
+	void setSequence(long s)
+	{
+		sequence = s ;
+	}
+	
+	/**
+	 * Gets the extension number of the mailbox or distribution list changed.
+	 * @return the extension number, or null for a heartbeat
+	 */
+	public String getExtension()
+	{
+		return extension;
+	}
+	
+	/**
+	 * Gets the kind of change.
+	 * @return one of the type constants
+	 */
+	public int getType()
+	{
+		return type;
+	}
+}
@@ -0,0 +1,161 @@
+import java.security.SecureRandom ;
+import java.util.concurrent.* ;
+
+/**
+ * Checks and hashes passwords on a small pool of worker threads, so the key stretching never holds up
+ * the thread handling the phone. Only a bounded number of tasks may wait; beyond that a task fails
+ * right away as busy. A password verified moments ago is recognized from a quick fingerprint
+ * for a short while, so logging in again doesn't pay for the stretching again. Fingerprints are keyed
+ * with a random secret made for this verifier, so they are worthless outside the process.
+ */
+public class PasswordVerifier
+{
+	private final ThreadPoolExecutor pool ;
+	private final ConcurrentHashMap<String, Session> sessions ;
+	private final long sessionMillis ;
+	private final byte[] secret ;
+	
+	public static final int DEFAULT_WORKERS = Math.max(1, Runtime.getRuntime().availableProcessors() / 2) ;
+	public static final int DEFAULT_QUEUE = 64 ;
+	public static final long DEFAULT_SESSION_MILLIS = 300000 ;
+	private static final int SECRET_BYTES = 32 ;
+	
+	/**
+	 * Constructs a verifier with the default pool size and session length.
+	 */
+	public PasswordVerifier()
+	{
+		this(DEFAULT_WORKERS, DEFAULT_QUEUE, DEFAULT_SESSION_MILLIS) ;
+	}
+	
+	/**
+	 * Constructs a verifier.
+	 * @param workers the number of worker threads
+	 * @param queue the maximum number of checks and hashes waiting for a worker
+	 * @param sessionMillis how long a verified password is remembered, or 0 to not remember it
+	 * @precondition workers > 0 && queue > 0 && sessionMillis >= 0
+	 */
+	public PasswordVerifier(int workers, int queue, long sessionMillis)
+	{
+		assert(workers > 0 && queue > 0 && sessionMillis >= 0) : "Invalid verifier settings!" ;
+		pool = new ThreadPoolExecutor(workers, workers, 60, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(queue), new 
+				ThreadFactory()
+				{
+					public Thread newThread(Runnable r)
+					{
+						Thread t = new Thread(r, "password-verifier") ;
+						t.setDaemon(true) ;
+						return t;
+					}
+				}) ;
+		pool.allowCoreThreadTimeOut(true) ;
+		sessions = new ConcurrentHashMap<String, Session>() ;
+		this.sessionMillis = sessionMillis ;
+		secret = new byte[SECRET_BYTES] ;
+		new SecureRandom().nextBytes(secret) ;
+	}
+	
+	/**
+	 * Checks a password against the credential of a mailbox.
+	 * @param extension the extension number of the mailbox
+	 * @param credential the current credential of the mailbox
+	 * @param password the input password
+	 * @return a future completed with true if the password is correct, false if not, or failed
+	 * with a RejectedExecutionException if too many checks are waiting
+	 */
+	public CompletableFuture<Boolean> verify(final String extension, final Credential credential, final String password)
+	{
+		Session s = sessions.get(extension) ;
+		if (s != null && s.credential == credential && System.currentTimeMillis() < s.expiresAt
+				&& java.security.MessageDigest.isEqual(s.fingerprint, credential.fingerprint(secret, password)))
+			return CompletableFuture.completedFuture(true);
+		
+		final CompletableFuture<Boolean> result = new CompletableFuture<Boolean>() ;
+		try
+		{
+			pool.execute(new 
+				Runnable()
+				{
+					public void run()
+					{
+						boolean correct = credential.verify(password) ;
+						if (correct && sessionMillis > 0)
+							sessions.put(extension, new Session(credential, credential.fingerprint(secret, password),
+									System.currentTimeMillis() + sessionMillis)) ;
+						result.complete(correct) ;
+					}
+				}) ;
+		}
+		catch (RejectedExecutionException e)
+		{
+			result.completeExceptionally(e) ;
+		}
+		return result;
+	}
+	
+	/**
+	 * Hashes a new password with a new random salt.
+	 * @param password the password
+	 * @param iterations the work factor
+	 * @return a future completed with the credential, or failed with a RejectedExecutionException
+	 * if too many tasks are waiting
+	 * @precondition password.length() > 0 && iterations > 0
+	 */
+	public CompletableFuture<Credential> hash(final String password, final int iterations)
+	{
+		final CompletableFuture<Credential> result = new CompletableFuture<Credential>() ;
+		try
+		{
+			pool.execute(new 
+				Runnable()
+				{
+					public void run()
+					{
+						result.complete(Credential.create(password, iterations)) ;
+					}
+				}) ;
+		}
+		catch (RejectedExecutionException e)
+		{
+			result.completeExceptionally(e) ;
+		}
+		return result;
+	}
+	
+	/**
+	 * Forgets the verified password of a mailbox, e.g. because the mailbox is gone.
+	 * A password change needs no call, since the remembered password belongs to the old credential.
+	 * @param extension the extension number of the mailbox
+	 */
+	public void forget(String extension)
+	{
+		sessions.remove(extension) ;
+	}
+	
+	/**
+	 * Gets the number of checks and hashes waiting for a worker.
+	 * @return the number of waiting tasks
+	 */
+	public int pending()
+	{
+		return pool.getQueue().size();
+	}
+	
+	/**
+	 * A password verified recently.
+	 */
+	private static class Session
+	{
+		private final Credential credential ;
+		private final byte[] fingerprint ;
+		private final long expiresAt ;
+		
+		private Session(Credential credential, byte[] fingerprint, long expiresAt)
+		{
+			this.credential = credential ;
+			this.fingerprint = fingerprint ;
+			this.expiresAt = expiresAt ;
+		}
+	}
+}
@@ -0,0 +1,17 @@
+/**
+ * The speaker side of a phone, through which the ControlHub talks to the user.
+ */
+public interface Phone
+{
+	/**
+	 * Speak to the user.
+	 * @param output the voice output
+	 */
+	void speak(String output) ;
+	
+	/**
+	 * Plays recorded audio to the user.
+	 * @param clip the audio to be played
+	 */
+	void play(AudioClip clip) ;
+}
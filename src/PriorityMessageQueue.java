@@ -0,0 +1,216 @@
+import java.io.Serializable ;
+import java.util.ArrayList ;
+import java.util.List ;
+
+/**
+ * A bounded binary heap of messages ordered by priority, urgent messages first, then by arrival.
+ * The front is always at the root, so reading it takes constant time, while adding a message or
+ * removing one takes logarithmic time.
+ */
+public class PriorityMessageQueue implements Serializable
+{
+	private final Message[] heap ;
+	private final long[] arrival ;
+	private int count ;
+	private long nextArrival ;
+	
+	private static final long serialVersionUID = 1L ;
+	
+	/**
+	 * Constructs an empty priority message queue with supplied capacity.
+	 * @param capacity the maximum capacity of the queue
+	 * @precondition capacity > 0
+	 */
+	public PriorityMessageQueue(int capacity)
+	{
+		assert(capacity > 0) : "Capacity of the queue must be bigger than 0!" ;
+		heap = new Message[capacity] ;
+		arrival = new long[capacity] ;
+		count = 0 ;
+		nextArrival = 0 ;
+	}
+	
+	/**
+	 * Gets the total number of messages in the queue.
+	 * @return the number of messages
+	 */
+	public int size()
+	{
+		return count;
+	}
+	
+	/**
+	 * Checks whether the queue is full
+	 * @return true if the queue is full
+	 */
+	public boolean isFull()
+	{
+		return count == heap.length;
+	}
+	
+	/**
+	 * Gets the message to be played first: the earliest urgent message, or the earliest message if none is urgent.
+	 * @return the first message in the queue
+	 * @precondition size() > 0
+	 */
+	public Message front()
+	{
+		assert(size() > 0) : "There is no message!" ;
+		return heap[0];
+	}
+	
+	/**
+	 * Finds a message in the queue by its id.
+	 * @param id the message id
+	 * @return the message, or null if it isn't in the queue
+	 */
+	public Message find(long id)
+	{
+		for (int i = 0; i < count; i++)
+			if (heap[i].getId() == id)
+				return heap[i];
+		return null;
+	}
+	
+	/**
+	 * Adds a message behind the messages of the same priority already in the queue.
+	 * @param message the message to be added
+	 * @precondition !isFull()
+	 */
+	public void add(Message message)
+	{
+		assert(!isFull()) : "The message queue is already full!" ;
+		heap[count] = message ;
+		arrival[count] = nextArrival++ ;
+		count++ ;
+		siftUp(count - 1) ;
+	}
+	
+	/**
+	 * Removes the message at the front of the queue.
+	 * @return the message that has been removed from the queue
+	 * @precondition size() > 0
+	 */
+	public Message remove()
+	{
+		assert(size() > 0) : "There is no message to be removed!" ;
+		Message m = heap[0] ;
+		removeAt(0) ;
+		return m;
+	}
+	
+	/**
+	 * Removes several messages at once from the front of the queue.
+	 * @param k the number of messages to be removed
+	 * @return the messages that have been removed, in the order they would have been played
+	 * @precondition 0 <= k && k <= size()
+	 */
+	public List<Message> removeFront(int k)
+	{
+		assert(0 <= k && k <= size()) : "Not that many messages to be removed!" ;
+		ArrayList<Message> removed = new ArrayList<Message>(k) ;
+		for (int i = 0; i < k; i++)
+		{
+			removed.add(heap[0]) ;
+			removeAt(0) ;
+		}
+		return removed;
+	}
+	
+	/**
+	 * Removes a specific message from the queue, keeping the order of the others.
+	 * @param message the message to be removed
+	 * @return true if the message was in the queue and has been removed
+	 */
+	public boolean remove(Message message)
+	{
+		for (int i = 0; i < count; i++)
+			if (heap[i] == message)
+			{
+				removeAt(i) ;
+				return true;
+			}
+		return false;
+	}
+	
+	/**
+	 * Removes the message at a position of the heap by moving the last message into its place.
+	 * @param i the position
+	 */
+	private void removeAt(int i)
+	{
+		count-- ;
+		if (i < count)
+		{
+			heap[i] = heap[count] ;
+			arrival[i] = arrival[count] ;
+			heap[count] = null ;
+			siftDown(i) ;
+			siftUp(i) ;
+		}
+		else
+			heap[count] = null ;
+	}
+	
+	/**
+	 * Checks whether the message at one position must be played before the message at another.
+	 * @param i the first position
+	 * @param j the second position
+	 * @return true if the first message comes first
+	 */
+	private boolean before(int i, int j)
+	{
+		if (heap[i].getPriority() != heap[j].getPriority())
+			return heap[i].getPriority() > heap[j].getPriority();
+		return arrival[i] < arrival[j];
+	}
+	
+	/**
+	 * Moves a message up the heap until its parent comes before it.
+	 * @param i the position of the message
+	 */
+	private void siftUp(int i)
+	{
+		while (i > 0 && before(i, (i - 1) / 2))
+		{
+			swap(i, (i - 1) / 2) ;
+			i = (i - 1) / 2 ;
+		}
+	}
+	
+	/**
+	 * Moves a message down the heap until it comes before both its children.
+	 * @param i the position of the message
+	 */
+	private void siftDown(int i)
+	{
+		while (true)
+		{
+			int first = i ;
+			int left = 2 * i + 1 ;
+			if (left < count && before(left, first))
+				first = left ;
+			if (left + 1 < count && before(left + 1, first))
+				first = left + 1 ;
+			if (first == i)
+				return;
+			swap(i, first) ;
+			i = first ;
+		}
+	}
+	
+	/**
+	 * Swaps the messages at two positions of the heap.
+	 * @param i the first position
+	 * @param j the second position
+	 */
+	private void swap(int i, int j)
+	{
+		Message m = heap[i] ;
+		heap[i] = heap[j] ;
+		heap[j] = m ;
+		long a = arrival[i] ;
+		arrival[i] = arrival[j] ;
+		arrival[j] = a ;
+	}
+}
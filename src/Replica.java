@@ -0,0 +1,256 @@
+import java.io.* ;
+import java.net.* ;
+import java.util.* ;
+
+/**
+ * A copy of a primary mail center kept up to date from its ReplicationLog. Serves queries that
+ * don't change anything, and can be promoted to take over when the primary fails.
+ * When the connection breaks, the replica keeps reconnecting and catches up from where it stopped.
+ */
+public class Replica
+{
+	private final MailCenter center ;
+	private final String host ;
+	private final int port ;
+	private final HashMap<String, Long> copiedAt ;
+	private final Thread reader ;
+	private volatile Socket socket ;
+	private ObjectInputStream in ;
+	private long logId ;
+	private long copiedUntil ;
+	private volatile long appliedSequence ;
+	private volatile boolean connected ;
+	private volatile boolean promoted ;
+	
+	public static final int RECONNECT_MILLIS = 1000 ;
+	
+	/**
+	 * Connects to a primary and copies its mail center into a new one.
+	 * @param host the host of the primary
+	 * @param port the port of the primary's ReplicationLog
+	 * @throws IOException if the primary can't be reached or the snapshot can't be read
+	 */
+	public Replica(String host, int port) throws IOException
+	{
+		this(host, port, new MailCenter()) ;
+	}
+	
+	/**
+	 * Connects to a primary and copies its mail center into the supplied one.
+	 * @param host the host of the primary
+	 * @param port the port of the primary's ReplicationLog
+	 * @param c the empty mail center receiving the copy
+	 * @throws IOException if the primary can't be reached or the snapshot can't be read
+	 * @precondition c.size() == 0
+	 */
+	public Replica(String host, int port, MailCenter c) throws IOException
+	{
+		assert(c.size() == 0) : "Mail center of a replica must be empty!" ;
+		center = c ;
+		this.host = host ;
+		this.port = port ;
+		copiedAt = new HashMap<String, Long>() ;
+		logId = 0 ;
+		appliedSequence = 0 ;
+		connect() ;
+		reader = new Thread(new 
+			Runnable()
+			{
+				public void run()
+				{
+					follow() ;
+				}
+			}, "replica-reader") ;
+		reader.setDaemon(true) ;
+		reader.start() ;
+	}
+	
+	/**
+	 * Gets the mail center kept up to date. Use it only for queries until the replica is promoted.
+	 * @return the mail center
+	 */
+	public MailCenter getCenter()
+	{
+		return center;
+	}
+	
+	/**
+	 * Gets the sequence number of the last change applied.
+	 * @return the sequence number
+	 */
+	public long getAppliedSequence()
+	{
+		return appliedSequence;
+	}
+	
+	/**
+	 * Checks if the replica still receives changes from the primary.
+	 * @return true if the connection is alive
+	 */
+	public boolean isConnected()
+	{
+		return connected;
+	}
+	
+	/**
+	 * Stops following the primary, so the mail center can take its place.
+	 * @return the mail center, now free to be changed
+	 */
+	public MailCenter promote()
+	{
+		promoted = true ;
+		reader.interrupt() ;
+		try
+		{
+			socket.close() ;
+		}
+		catch (IOException e)
+		{
+		}
+		try
+		{
+			reader.join() ;
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt() ;
+		}
+		return center;
+	}
+	
+	/**
+	 * Connects to the primary, telling it which log this replica followed and the last change applied,
+	 * and reads the snapshot if the primary can't just send the missed changes.
+	 * @throws IOException if the primary can't be reached or the snapshot can't be read
+	 */
+	private void connect() throws IOException
+	{
+		Socket s = new Socket(host, port) ;
+		try
+		{
+			ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(s.getOutputStream())) ;
+			out.writeLong(logId) ;
+			out.writeLong(appliedSequence) ;
+			out.flush() ;
+			ObjectInputStream i = new ObjectInputStream(new BufferedInputStream(s.getInputStream())) ;
+			byte[] snapshot = (byte[]) i.readObject() ;
+			if (snapshot != null)
+				restore(snapshot) ;
+			in = i ;
+			socket = s ;
+			connected = true ;
+		}
+		catch (ClassNotFoundException | ClassCastException e)
+		{
+			s.close() ;
+			throw new IOException("Snapshot of the primary can't be read!", e);
+		}
+		catch (IOException e)
+		{
+			s.close() ;
+			throw e;
+		}
+	}
+	
+	/**
+	 * Fills the mail center from a snapshot of the primary, replacing whatever it held.
+	 * Distribution lists are never changed once added, so those already there are kept.
+	 * @param snapshot the snapshot
+	 * @throws IOException if the snapshot is broken
+	 * @throws ClassNotFoundException if the snapshot holds an unknown class
+	 */
+	@SuppressWarnings("unchecked")
+	private void restore(byte[] snapshot) throws IOException, ClassNotFoundException
+	{
+		try (ObjectInputStream s = new ObjectInputStream(new ByteArrayInputStream(snapshot)))
+		{
+			long id = s.readLong() ;
+			long sequence = s.readLong() ;
+			for (String extension: center.getExtensions())
+				center.remove(extension) ;
+			for (Map.Entry<String, String[]> e: ((Map<String, String[]>) s.readObject()).entrySet())
+				if (!center.isGroup(e.getKey()))
+					center.addGroup(e.getKey(), Arrays.asList(e.getValue())) ;
+			copiedAt.clear() ;
+			copiedUntil = sequence ;
+			int count = s.readInt() ;
+			for (int i = 0; i < count; i++)
+			{
+				String extension = (String) s.readObject() ;
+				long at = s.readLong() ;
+				byte[] copy = (byte[]) s.readObject() ;
+				if (copy != null)
+					try (ObjectInputStream m = new ObjectInputStream(new ByteArrayInputStream(copy)))
+					{
+						center.add((Mailbox) m.readObject()) ;
+					}
+				copiedAt.put(extension, at) ;
+				copiedUntil = Math.max(copiedUntil, at) ;
+			}
+			logId = id ;
+			appliedSequence = sequence ;
+		}
+	}
+	
+	/**
+	 * Applies changes from the primary, reconnecting whenever the connection ends, until the replica is promoted.
+	 */
+	private void follow()
+	{
+		while (!promoted)
+		{
+			applyChanges() ;
+			connected = false ;
+			while (!promoted)
+			{
+				try
+				{
+					Thread.sleep(RECONNECT_MILLIS) ;
+					connect() ;
+					break ;
+				}
+				catch (InterruptedException e)
+				{
+					return;
+				}
+				catch (IOException e)
+				{
+				}
+			}
+		}
+		try
+		{
+			socket.close() ;
+		}
+		catch (IOException e)
+		{
+		}
+	}
+	
+	/**
+	 * Reads changes from the primary and applies those made after the snapshot, until the connection ends.
+	 * A change to a mailbox that was copied after the change was made is already in the copy, so it is skipped.
+	 */
+	private void applyChanges()
+	{
+		try
+		{
+			while (true)
+			{
+				Mutation m = (Mutation) in.readObject() ;
+				if (m.getType() != Mutation.HEARTBEAT && m.getSequence() > appliedSequence)
+				{
+					Long at = copiedAt.get(m.getExtension()) ;
+					if (at == null || m.getSequence() > at)
+						m.applyTo(center) ;
+					appliedSequence = m.getSequence() ;
+					if (appliedSequence >= copiedUntil)
+						copiedAt.clear() ;
+				}
+			}
+		}
+		catch (IOException | ClassNotFoundException e)
+		{
+		}
+	}
+}
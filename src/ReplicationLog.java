@@ -0,0 +1,383 @@
+import java.io.* ;
+import java.net.* ;
+import java.util.* ;
+import java.util.concurrent.* ;
+
+/**
+ * Ships every change made to a primary mail center to any number of replicas over sockets.
+ * A replica that connects first receives a snapshot of the whole mail center, then every change
+ * made after the snapshot, in order. Changes are queued and shipped by a separate thread,
+ * so the primary never waits for a replica. Meant for an unsharded mail center, or one log per shard.
+ * The snapshot is copied a few mailboxes at a time, each chunk under the lock, and each mailbox is
+ * marked with the sequence number it was copied at, so the replica skips the changes it already holds.
+ * The latest changes are kept in a history, so a replica that reconnects after missing some of them
+ * only receives those, and a full snapshot only when the history no longer reaches back far enough.
+ */
+public class ReplicationLog
+{
+	private final MailCenter center ;
+	private final ServerSocket server ;
+	private final BlockingQueue<Mutation> records ;
+	private final ArrayDeque<Mutation> history ;
+	private final int historyCapacity ;
+	private final long logId ;
+	private final CopyOnWriteArrayList<Connection> connections ;
+	private final Thread acceptor ;
+	private final Thread shipper ;
+	private long sequence ;
+	private long droppedCount ;
+	private volatile boolean overflowed ;
+	
+	public static final int DEFAULT_CAPACITY = 4096 ;
+	public static final int MAXIMUM_BATCH = 256 ;
+	public static final int HEARTBEAT_MILLIS = 1000 ;
+	public static final int HANDSHAKE_MILLIS = 5000 ;
+	public static final int SNAPSHOT_CHUNK = 64 ;
+	
+	/**
+	 * Constructs a log of the supplied mail center and starts listening for replicas on the local machine.
+	 * @param c the primary mail center
+	 * @param port the port to listen on, or 0 for any free port
+	 * @throws IOException if the port can't be opened
+	 */
+	public ReplicationLog(MailCenter c, int port) throws IOException
+	{
+		this(c, port, DEFAULT_CAPACITY) ;
+	}
+	
+	/**
+	 * Constructs a log of the supplied mail center and starts listening for replicas on the local machine.
+	 * @param c the primary mail center
+	 * @param port the port to listen on, or 0 for any free port
+	 * @param capacity the maximum number of changes waiting to be shipped, and of changes kept for reconnecting replicas
+	 * @throws IOException if the port can't be opened
+	 * @precondition capacity > 0
+	 */
+	public ReplicationLog(MailCenter c, int port, int capacity) throws IOException
+	{
+		assert(capacity > 0) : "Capacity of the log must be bigger than 0!" ;
+		center = c ;
+		server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress()) ;
+		records = new LinkedBlockingQueue<Mutation>(capacity) ;
+		history = new ArrayDeque<Mutation>(capacity) ;
+		historyCapacity = capacity ;
+		logId = new Random().nextLong() | 1 ;
+		connections = new CopyOnWriteArrayList<Connection>() ;
+		acceptor = new Thread(new 
+			Runnable()
+			{
+				public void run()
+				{
+					acceptReplicas() ;
+				}
+			}, "replication-acceptor") ;
+		shipper = new Thread(new 
+			Runnable()
+			{
+				public void run()
+				{
+					shipChanges() ;
+				}
+			}, "replication-shipper") ;
+		acceptor.setDaemon(true) ;
+		shipper.setDaemon(true) ;
+		center.setReplicationLog(this) ;
+		acceptor.start() ;
+		shipper.start() ;
+	}
+	
+	/**
+	 * Gets the port replicas connect to.
+	 * @return the port number
+	 */
+	public int getPort()
+	{
+		return server.getLocalPort();
+	}
+	
+	/**
+	 * Gets the number of replicas currently connected.
+	 * @return the number of replicas
+	 */
+	public int replicaCount()
+	{
+		return connections.size();
+	}
+	
+	/**
+	 * Gets the number of changes that didn't fit in the log. Replicas connected at the time
+	 * are disconnected, since they missed the change, and catch up when they reconnect.
+	 * @return the number of dropped changes
+	 */
+	public long getDroppedCount()
+	{
+		synchronized (center)
+		{
+			return droppedCount;
+		}
+	}
+	
+	/**
+	 * Numbers a change and queues it for shipping. Called by the mail center while holding its lock.
+	 * @param m the change
+	 */
+	void append(Mutation m)
+	{
+		m.setSequence(++sequence) ;
+		if (history.size() == historyCapacity)
+			history.removeFirst() ;
+		history.addLast(m) ;
+		if (!records.offer(m))
+		{
+			droppedCount++ ;
+			overflowed = true ;
+		}
+	}
+	
+	/**
+	 * Stops listening, disconnects every replica, and stops logging the mail center.
+	 */
+	public void close()
+	{
+		center.setReplicationLog(null) ;
+		try
+		{
+			server.close() ;
+		}
+		catch (IOException e)
+		{
+		}
+		shipper.interrupt() ;
+		for (Connection c: connections)
+			disconnect(c) ;
+	}
+	
+	/**
+	 * Accepts replicas one at a time. Each replica tells which log it followed and the last change it applied;
+	 * it receives the changes it missed if the history still holds them, or a snapshot otherwise.
+	 */
+	private void acceptReplicas()
+	{
+		while (!server.isClosed())
+		{
+			Socket s = null ;
+			Connection c = null ;
+			try
+			{
+				s = server.accept() ;
+				s.setTcpNoDelay(true) ;
+				s.setSoTimeout(HANDSHAKE_MILLIS) ;
+				ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(s.getOutputStream())) ;
+				ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(s.getInputStream())) ;
+				long followed = in.readLong() ;
+				long applied = in.readLong() ;
+				s.setSoTimeout(0) ;
+				c = new Connection(s, out) ;
+				List<String> extensions ;
+				TreeMap<String, String[]> groups ;
+				long start ;
+				synchronized (center)
+				{
+					connections.add(c) ;
+					if (canResume(followed, applied))
+					{
+						for (Mutation m: history)
+							if (m.getSequence() > applied)
+								c.backlog.add(m) ;
+						extensions = null ;
+						groups = null ;
+					}
+					else
+					{
+						extensions = center.getExtensions() ;
+						groups = new TreeMap<String, String[]>(center.getGroups()) ;
+					}
+					start = sequence ;
+				}
+				start(c, extensions == null ? null : snapshot(start, extensions, groups)) ;
+			}
+			catch (IOException e)
+			{
+				if (c != null)
+					connections.remove(c) ;
+				if (s != null)
+					close(s) ;
+			}
+		}
+	}
+	
+	/**
+	 * Checks whether a replica can catch up from the history alone. Called while holding the mail center's lock.
+	 * @param followed the id of the log the replica followed, or 0 if it never followed one
+	 * @param applied the sequence number of the last change it applied
+	 * @return true if the history holds every change the replica missed
+	 */
+	private boolean canResume(long followed, long applied)
+	{
+		if (followed != logId || applied > sequence)
+			return false;
+		return applied == sequence || (!history.isEmpty() && history.peekFirst().getSequence() <= applied + 1);
+	}
+	
+	/**
+	 * Copies the mail center for a replica: the id of this log, the sequence number the copy starts at,
+	 * every distribution list, and every mailbox with the sequence number it was copied at.
+	 * The mailboxes are copied a chunk at a time, so the lock is never held for long, and without being
+	 * loaded into memory. A mailbox removed before its chunk is written without a copy.
+	 * @param start the sequence number when the copy started
+	 * @param extensions the extension numbers of the mailboxes when the copy started
+	 * @param groups the distribution lists when the copy started
+	 * @return the snapshot
+	 * @throws IOException if a mailbox can't be written
+	 */
+	private byte[] snapshot(long start, List<String> extensions, TreeMap<String, String[]> groups) throws IOException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream() ;
+		try (ObjectOutputStream out = new ObjectOutputStream(bytes))
+		{
+			out.writeLong(logId) ;
+			out.writeLong(start) ;
+			out.writeObject(groups) ;
+			out.writeInt(extensions.size()) ;
+			for (int from = 0; from < extensions.size(); from += SNAPSHOT_CHUNK)
+			{
+				List<String> chunk = extensions.subList(from, Math.min(from + SNAPSHOT_CHUNK, extensions.size())) ;
+				Map<String, byte[]> copies ;
+				long copiedAt ;
+				synchronized (center)
+				{
+					copies = center.copyMailboxes(chunk) ;
+					copiedAt = sequence ;
+				}
+				for (String extension: chunk)
+				{
+					out.writeObject(extension) ;
+					out.writeLong(copiedAt) ;
+					out.writeObject(copies.get(extension)) ;
+				}
+			}
+		}
+		return bytes.toByteArray();
+	}
+	
+	/**
+	 * Sends a replica its snapshot, or null if it resumes, then the changes made meanwhile,
+	 * and lets the shipper write to it from now on.
+	 * @param c the connection to the replica
+	 * @param snapshot the snapshot, or null
+	 * @throws IOException if the replica can't be written to
+	 */
+	private void start(Connection c, byte[] snapshot) throws IOException
+	{
+		synchronized (c)
+		{
+			c.out.writeObject(snapshot) ;
+			for (Mutation m: c.backlog)
+				c.out.writeObject(m) ;
+			c.out.reset() ;
+			c.out.flush() ;
+			c.backlog = null ;
+		}
+	}
+	
+	/**
+	 * Takes changes off the log and writes each batch to every replica, sending a heartbeat
+	 * when there is nothing to ship, so broken connections are found.
+	 */
+	private void shipChanges()
+	{
+		ArrayList<Mutation> batch = new ArrayList<Mutation>(MAXIMUM_BATCH) ;
+		try
+		{
+			while (true)
+			{
+				Mutation first = records.poll(HEARTBEAT_MILLIS, TimeUnit.MILLISECONDS) ;
+				batch.add(first != null ? first : Mutation.heartbeat()) ;
+				records.drainTo(batch, MAXIMUM_BATCH - 1) ;
+				if (overflowed)
+				{
+					overflowed = false ;
+					for (Connection c: connections)
+						disconnect(c) ;
+				}
+				for (Connection c: connections)
+					ship(c, batch) ;
+				batch.clear() ;
+			}
+		}
+		catch (InterruptedException e)
+		{
+		}
+	}
+	
+	/**
+	 * Writes a batch of changes to one replica, or holds them back while its snapshot is being copied.
+	 * A replica that can't be written to is disconnected.
+	 * @param c the connection to the replica
+	 * @param batch the changes
+	 */
+	private void ship(Connection c, List<Mutation> batch)
+	{
+		synchronized (c)
+		{
+			if (c.backlog != null)
+			{
+				c.backlog.addAll(batch) ;
+				return;
+			}
+			try
+			{
+				for (Mutation m: batch)
+					c.out.writeObject(m) ;
+				c.out.reset() ;
+				c.out.flush() ;
+			}
+			catch (IOException e)
+			{
+				disconnect(c) ;
+			}
+		}
+	}
+	
+	/**
+	 * Closes the connection to a replica.
+	 * @param c the connection
+	 */
+	private void disconnect(Connection c)
+	{
+		connections.remove(c) ;
+		close(c.socket) ;
+	}
+	
+	/**
+	 * Closes a socket, ignoring failures.
+	 * @param s the socket
+	 */
+	private static void close(Socket s)
+	{
+		try
+		{
+			s.close() ;
+		}
+		catch (IOException e)
+		{
+		}
+	}
+	
+	/**
+	 * A connected replica, with the changes held back until it has been started.
+	 */
+	private static class Connection
+	{
+		private final Socket socket ;
+		private final ObjectOutputStream out ;
+		private ArrayList<Mutation> backlog ;
+		
+		private Connection(Socket socket, ObjectOutputStream out)
+		{
+			this.socket = socket ;
+			this.out = out ;
+			backlog = new ArrayList<Mutation>() ;
+		}
+	}
+}
@@ -0,0 +1,110 @@
+import java.util.* ;
+
+/**
+ * Deletes messages whose retention period has run out. Every message that can expire is
+ * kept in one index ordered by expiry time across all mailboxes, so expiring only looks at
+ * the messages that are due, never at the whole mail center.
+ */
+public class RetentionEngine
+{
+	private final MailCenter center ;
+	private final PriorityQueue<Entry> index ;
+	private RetentionPolicy systemPolicy ;
+	
+	/**
+	 * Constructs a retention engine that keeps every message forever until a policy is set.
+	 * @param c the mail center whose messages expire
+	 */
+	public RetentionEngine(MailCenter c)
+	{
+		center = c ;
+		index = new PriorityQueue<Entry>() ;
+		systemPolicy = RetentionPolicy.FOREVER ;
+	}
+	
+	/**
+	 * Gets the policy used by mailboxes that don't have their own.
+	 * @return the system-wide policy
+	 */
+	public RetentionPolicy getSystemPolicy()
+	{
+		return systemPolicy;
+	}
+	
+	/**
+	 * Sets the policy used by mailboxes that don't have their own.
+	 * It applies to messages deposited or saved from now on.
+	 * @param policy the system-wide policy
+	 */
+	public void setSystemPolicy(RetentionPolicy policy)
+	{
+		systemPolicy = policy ;
+	}
+	
+	/**
+	 * Gets the number of messages waiting in the expiry index.
+	 * @return the index size
+	 */
+	public int size()
+	{
+		return index.size();
+	}
+	
+	/**
+	 * Starts the retention clock of a message that has just been deposited or saved.
+	 * @param m the mailbox holding the message
+	 * @param message the message
+	 * @param saved true if the message is now in the old queue, false if in the new queue
+	 * @param since the time the message was deposited or saved, in milliseconds
+	 */
+	public void track(Mailbox m, Message message, boolean saved, long since)
+	{
+		RetentionPolicy policy = m.getRetentionPolicy() != null ? m.getRetentionPolicy() : systemPolicy ;
+		long period = saved ? policy.getSavedMillis() : policy.getUnheardMillis() ;
+		if (period != RetentionPolicy.KEEP_FOREVER)
+			index.add(new Entry(since + period, m.getExtension(), message.getId(), saved)) ;
+	}
+	
+	/**
+	 * Deletes messages that have expired, looking at no more than the supplied number of index entries.
+	 * Entries of messages already deleted or moved by their owner are dropped on the way.
+	 * @param now the current time in milliseconds
+	 * @param budget the maximum number of index entries to look at
+	 * @return the number of messages deleted
+	 */
+	public int expire(long now, int budget)
+	{
+		int deleted = 0 ;
+		while (budget-- > 0 && !index.isEmpty() && index.peek().expiresAt <= now)
+		{
+			Entry e = index.poll() ;
+			if (center.expireMessage(e.extension, e.messageId, e.saved))
+				deleted++ ;
+		}
+		return deleted;
+	}
+	
+	/**
+	 * A message waiting to expire.
+	 */
+	private static class Entry implements Comparable<Entry>
+	{
+		private final long expiresAt ;
+		private final String extension ;
+		private final long messageId ;
+		private final boolean saved ;
+		
+		private Entry(long expiresAt, String extension, long messageId, boolean saved)
+		{
+			this.expiresAt = expiresAt ;
+			this.extension = extension ;
+			this.messageId = messageId ;
+			this.saved = saved ;
+		}
+		
+		public int compareTo(Entry other)
+		{
+			return Long.compare(expiresAt, other.expiresAt);
+		}
+	}
+}
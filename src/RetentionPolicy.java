@@ -0,0 +1,56 @@
+/**
+ * How long messages are kept before they are deleted automatically.
+ */
+public class RetentionPolicy implements java.io.Serializable
+{
+	private final long savedMillis ;
+	private final long unheardMillis ;
+	
+	public static final long KEEP_FOREVER = 0 ;
+	public static final long DAY_MILLIS = 24L * 60 * 60 * 1000 ;
+	public static final RetentionPolicy FOREVER = new RetentionPolicy(KEEP_FOREVER, KEEP_FOREVER) ;
+	
+	private static final long serialVersionUID = 1L ;
+	
+	/**
+	 * Constructs a retention policy.
+	 * @param saved how long a saved message is kept after it was saved, or KEEP_FOREVER
+	 * @param unheard how long a new message is kept after it was deposited, or KEEP_FOREVER
+	 * @precondition saved >= 0 && unheard >= 0
+	 */
+	public RetentionPolicy(long saved, long unheard)
+	{
+		assert(saved >= 0 && unheard >= 0) : "Retention period can't be negative!" ;
+		savedMillis = saved ;
+		unheardMillis = unheard ;
+	}
+	
+	/**
+	 * Creates a retention policy measured in days.
+	 * @param savedDays how many days a saved message is kept, or 0 to keep it forever
+	 * @param unheardDays how many days a new message is kept, or 0 to keep it forever
+	 * @return the retention policy
+	 */
+	public static RetentionPolicy ofDays(int savedDays, int unheardDays)
+	{
+		return new RetentionPolicy(savedDays * DAY_MILLIS, unheardDays * DAY_MILLIS);
+	}
+	
+	/**
+	 * Gets how long a saved message is kept.
+	 * @return the period in milliseconds, or KEEP_FOREVER
+	 */
+	public long getSavedMillis()
+	{
+		return savedMillis;
+	}
+	
+	/**
+	 * Gets how long a new message is kept.
+	 * @return the period in milliseconds, or KEEP_FOREVER
+	 */
+	public long getUnheardMillis()
+	{
+		return unheardMillis;
+	}
+}
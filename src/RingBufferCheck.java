@@ -0,0 +1,237 @@
+import java.io.IOException ;
+import java.nio.file.* ;
+import java.util.Arrays ;
+import java.util.BitSet ;
+import java.util.HashSet ;
+import java.util.List ;
+import java.util.concurrent.CountDownLatch ;
+import java.util.concurrent.atomic.AtomicLong ;
+import java.util.concurrent.locks.LockSupport ;
+
+/**
+ * This program checks the lock-free rings while several threads publish into them at once.
+ * Every event or record must either be delivered exactly once, in order, or be counted as missed
+ * or dropped. Prints each failed check and exits with status 1 if there is any.
+ */
+public class RingBufferCheck
+{
+	private static int failures = 0 ;
+	
+	public static final int THREADS = 4 ;
+	public static final int PER_THREAD = 50000 ;
+	public static final long TIMEOUT_MILLIS = 30000 ;
+	
+	public static void main(String[] args) throws Exception
+	{
+		checkEventBus(1 << 18, false) ;
+		checkEventBus(64, true) ;
+		checkCallDetailLog(1 << 18, false) ;
+		checkCallDetailLog(64, true) ;
+		checkCallDetailLog(64, false) ;
+		if (failures > 0)
+		{
+			System.out.println(failures + " checks failed") ;
+			System.exit(1) ;
+		}
+		System.out.println("All checks passed") ;
+	}
+	
+	/**
+	 * Records a check, printing it if it failed.
+	 * @param passed true if the check passed
+	 * @param what what was checked
+	 */
+	private static void check(boolean passed, String what)
+	{
+		if (!passed)
+		{
+			failures++ ;
+			System.out.println("FAILED: " + what) ;
+		}
+	}
+	
+	/**
+	 * Starts threads that run the same task at once and waits for all of them.
+	 * @param task the task, given the number of its thread
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	private static void runConcurrently(final Task task) throws InterruptedException
+	{
+		final CountDownLatch start = new CountDownLatch(1) ;
+		Thread[] threads = new Thread[THREADS] ;
+		for (int t = 0; t < THREADS; t++)
+		{
+			final int number = t ;
+			threads[t] = new Thread(new 
+				Runnable()
+				{
+					public void run()
+					{
+						try
+						{
+							start.await() ;
+						}
+						catch (InterruptedException e)
+						{
+							return;
+						}
+						task.run(number) ;
+					}
+				}, "publisher-" + t) ;
+			threads[t].start() ;
+		}
+		start.countDown() ;
+		for (Thread t: threads)
+			t.join() ;
+	}
+	
+	/**
+	 * Publishes events from several threads to a bus with one subscriber. The subscriber must see
+	 * the events in sequence order, each at most once, and be told about every event it missed.
+	 * If the ring holds every event, it must miss none.
+	 * @param capacity the size of the ring
+	 * @param slow true to make the subscriber slower than the publishers
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	private static void checkEventBus(int capacity, final boolean slow) throws InterruptedException
+	{
+		final int total = THREADS * PER_THREAD ;
+		String name = "MessageEventBus(" + capacity + (slow ? ", slow subscriber)" : ")") ;
+		final MessageEventBus bus = new MessageEventBus(capacity) ;
+		final Mailbox[] boxes = new Mailbox[THREADS] ;
+		for (int t = 0; t < THREADS; t++)
+			boxes[t] = new Mailbox("" + t, Credential.create("0", 1), "greeting") ;
+		
+		final BitSet seen = new BitSet(total) ;
+		final AtomicLong delivered = new AtomicLong() ;
+		final AtomicLong missed = new AtomicLong() ;
+		final AtomicLong duplicates = new AtomicLong() ;
+		final AtomicLong outOfOrder = new AtomicLong() ;
+		MessageEventBus.Subscriber s = bus.subscribe("check-subscriber", new 
+			MessageWaitingListener()
+			{
+				private long last = -1 ;
+				
+				public void messageWaiting(MessageWaitingEvent e)
+				{
+					if (e.getSequence() <= last)
+						outOfOrder.incrementAndGet() ;
+					last = e.getSequence() ;
+					int id = (int) e.getMessageId() ;
+					if (seen.get(id))
+						duplicates.incrementAndGet() ;
+					seen.set(id) ;
+					if (slow && delivered.get() % 16 == 0)
+						LockSupport.parkNanos(1000) ;
+					delivered.incrementAndGet() ;
+				}
+				
+				public void eventsMissed(long count)
+				{
+					missed.addAndGet(count) ;
+				}
+			}) ;
+		
+		runConcurrently(new 
+			Task()
+			{
+				public void run(int thread)
+				{
+					for (int i = 0; i < PER_THREAD; i++)
+						bus.publish(MessageWaitingEvent.DEPOSITED, boxes[thread], thread * PER_THREAD + i) ;
+				}
+			}) ;
+		long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS ;
+		while (delivered.get() + missed.get() < total && System.currentTimeMillis() < deadline)
+			Thread.sleep(10) ;
+		s.cancel() ;
+		
+		check(bus.published() == total, name + ": published " + bus.published() + " of " + total) ;
+		check(delivered.get() + missed.get() == total,
+				name + ": delivered " + delivered.get() + " + missed " + missed.get() + " != " + total) ;
+		check(s.getMissedCount() == missed.get(), name + ": missed count " + s.getMissedCount() + " != " + missed.get()) ;
+		check(duplicates.get() == 0, name + ": " + duplicates.get() + " duplicated events") ;
+		check(outOfOrder.get() == 0, name + ": " + outOfOrder.get() + " events out of order") ;
+		if (!slow)
+		{
+			check(missed.get() == 0, name + ": missed " + missed.get() + " events the ring still held") ;
+			check(seen.cardinality() == total, name + ": saw " + seen.cardinality() + " distinct events") ;
+		}
+		System.out.println(name + ": delivered " + delivered.get() + ", missed " + missed.get()) ;
+	}
+	
+	/**
+	 * Logs calls from several threads and reads back the files. Every record logged must be written
+	 * exactly once, those of one thread in the order they were logged, and every other one counted as dropped.
+	 * A log that blocks when full, or whose ring holds every record, must drop none.
+	 * @param capacity the size of the ring
+	 * @param block true to make callers wait for room when the ring is full
+	 * @throws IOException if the files can't be read
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	private static void checkCallDetailLog(int capacity, boolean block) throws IOException, InterruptedException
+	{
+		final int total = THREADS * PER_THREAD ;
+		String name = "CallDetailLog(" + capacity + (block ? ", blocking)" : ")") ;
+		final CallDetailLog log = new CallDetailLog(Files.createTempDirectory("cdr-check"), capacity, 64 * 1024, block) ;
+		final AtomicLong logged = new AtomicLong() ;
+		final byte[] path = { 1, 2, 3 } ;
+		runConcurrently(new 
+			Task()
+			{
+				public void run(int thread)
+				{
+					for (int i = 0; i < PER_THREAD; i++)
+						if (log.log(i, i + 1, thread + "-" + i, CallDetailLog.HUNG_UP, 0, path, path.length))
+							logged.incrementAndGet() ;
+				}
+			}) ;
+		log.close() ;
+		
+		HashSet<String> seen = new HashSet<String>() ;
+		int[] last = new int[THREADS] ;
+		Arrays.fill(last, -1) ;
+		long lines = 0 ;
+		long duplicates = 0 ;
+		long outOfOrder = 0 ;
+		for (int n = 1; Files.exists(log.getDirectory().resolve("cdr-" + n + ".csv")); n++)
+		{
+			List<String> file = Files.readAllLines(log.getDirectory().resolve("cdr-" + n + ".csv")) ;
+			for (String line: file.subList(1, file.size()))
+			{
+				String extension = line.split(",")[2] ;
+				int dash = extension.indexOf('-') ;
+				int thread = Integer.parseInt(extension.substring(0, dash)) ;
+				int i = Integer.parseInt(extension.substring(dash + 1)) ;
+				if (!seen.add(extension))
+					duplicates++ ;
+				if (i <= last[thread])
+					outOfOrder++ ;
+				last[thread] = i ;
+				lines++ ;
+			}
+		}
+		
+		check(lines == logged.get(), name + ": wrote " + lines + " of " + logged.get() + " logged records") ;
+		check(lines + log.getDroppedCount() == total,
+				name + ": wrote " + lines + " + dropped " + log.getDroppedCount() + " != " + total) ;
+		check(log.getWrittenCount() == lines, name + ": written count " + log.getWrittenCount() + " != " + lines) ;
+		check(duplicates == 0, name + ": " + duplicates + " duplicated records") ;
+		check(outOfOrder == 0, name + ": " + outOfOrder + " records out of order") ;
+		if (block || capacity >= total)
+			check(log.getDroppedCount() == 0, name + ": dropped " + log.getDroppedCount() + " records") ;
+		System.out.println(name + ": wrote " + lines + ", dropped " + log.getDroppedCount()) ;
+	}
+	
+	/**
+	 * The work of one publishing thread.
+	 */
+	private interface Task
+	{
+		/**
+		 * Runs the work.
+		 * @param thread the number of the thread, from 0
+		 */
+		void run(int thread) ;
+	}
+}
@@ -0,0 +1,272 @@
+import java.io.* ;
+import java.nio.ByteBuffer ;
+import java.nio.charset.StandardCharsets ;
+import java.nio.file.* ;
+import java.util.* ;
+
+/**
+ * Captures every event of the calls to a ControlHub, and everything the hub says back, into a compact
+ * trace file that a SessionReplayer can feed to another hub. Each event is stored with the time since
+ * the previous one, so the trace can be replayed at its original speed. The trace starts with a copy of
+ * the mail center's mailboxes and distribution lists, so it is replayed against the same state.
+ */
+public class SessionRecorder
+{
+	private final DataOutputStream out ;
+	private long lastNanos ;
+	private boolean broken ;
+	
+	public static final int MAGIC = 0x564D5452 ;
+	public static final int VERSION = 2 ;
+	
+	public static final int DIAL		= 1 ;
+	public static final int SPEECH		= 2 ;
+	public static final int AUDIO		= 3 ;
+	public static final int HANG_UP		= 4 ;
+	public static final int TIME_OUT	= 5 ;
+	public static final int OUTPUT		= 6 ;
+	
+	/**
+	 * Constructs a recorder writing a new trace file of calls to a hub over an empty mail center.
+	 * @param file the trace file, replaced if it exists
+	 * @throws IOException if the file can't be created
+	 */
+	public SessionRecorder(Path file) throws IOException
+	{
+		this(file, null) ;
+	}
+	
+	/**
+	 * Constructs a recorder writing a new trace file, starting with a copy of the mail center the hub uses.
+	 * @param file the trace file, replaced if it exists
+	 * @param c the mail center, or null if it is empty
+	 * @throws IOException if the file can't be created
+	 */
+	public SessionRecorder(Path file, MailCenter c) throws IOException
+	{
+		byte[] state = captureState(c) ;
+		out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file))) ;
+		out.writeInt(MAGIC) ;
+		out.writeShort(VERSION) ;
+		out.writeLong(System.currentTimeMillis()) ;
+		writeVarLong(out, state.length) ;
+		out.write(state) ;
+		lastNanos = System.nanoTime() ;
+		broken = false ;
+	}
+	
+	/**
+	 * Copies the mailboxes and distribution lists of a mail center, without loading the mailboxes.
+	 * @param c the mail center, or null if it is empty
+	 * @return the distribution lists, the number of mailboxes, and every mailbox serialized
+	 * @throws IOException if the copy can't be written
+	 */
+	private static byte[] captureState(MailCenter c) throws IOException
+	{
+		List<String> extensions = new ArrayList<String>() ;
+		Map<String, byte[]> copies = new HashMap<String, byte[]>() ;
+		TreeMap<String, String[]> groups = new TreeMap<String, String[]>() ;
+		if (c != null)
+			synchronized (c)
+			{
+				extensions = c.getExtensions() ;
+				copies = c.copyMailboxes(extensions) ;
+				groups.putAll(c.getGroups()) ;
+			}
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream() ;
+		try (ObjectOutputStream s = new ObjectOutputStream(bytes))
+		{
+			s.writeObject(groups) ;
+			s.writeInt(extensions.size()) ;
+			for (String extension: extensions)
+				s.writeObject(copies.get(extension)) ;
+		}
+		return bytes.toByteArray();
+	}
+	
+	/**
+	 * Captures a key pressed by the user.
+	 * @param key the single key
+	 */
+	public synchronized void dial(String key)
+	{
+		if (begin(DIAL))
+			writeText(key) ;
+	}
+	
+	/**
+	 * Captures speech sent by the user.
+	 * @param voice the speech
+	 */
+	public synchronized void speech(String voice)
+	{
+		if (begin(SPEECH))
+			writeText(voice) ;
+	}
+	
+	/**
+	 * Captures a frame of audio from the microphone, leaving the frame's position untouched.
+	 * @param frame the audio frame
+	 */
+	public synchronized void audio(ByteBuffer frame)
+	{
+		if (!begin(AUDIO))
+			return;
+		ByteBuffer b = frame.duplicate() ;
+		byte[] bytes = new byte[b.remaining()] ;
+		b.get(bytes) ;
+		writeBytes(bytes) ;
+	}
+	
+	/**
+	 * Captures the user hanging up, and pushes the trace so far to the file.
+	 */
+	public synchronized void hangUp()
+	{
+		if (begin(HANG_UP))
+			flush() ;
+	}
+	
+	/**
+	 * Captures a call ended for being idle too long, and pushes the trace so far to the file.
+	 */
+	public synchronized void timeOut()
+	{
+		if (begin(TIME_OUT))
+			flush() ;
+	}
+	
+	/**
+	 * Captures something the hub said to the user.
+	 * @param output the voice output
+	 */
+	public synchronized void output(String output)
+	{
+		if (begin(OUTPUT))
+			writeText(output) ;
+	}
+	
+	/**
+	 * Checks whether writing the trace has failed, in which case nothing more is captured.
+	 * @return true if the trace is incomplete
+	 */
+	public synchronized boolean isBroken()
+	{
+		return broken;
+	}
+	
+	/**
+	 * Finishes the trace file.
+	 */
+	public synchronized void close()
+	{
+		try
+		{
+			out.close() ;
+		}
+		catch (IOException e)
+		{
+			broken = true ;
+		}
+	}
+	
+	/**
+	 * Writes an event's type and the microseconds since the previous event.
+	 * @param type the event type
+	 * @return false if the trace is broken
+	 */
+	private boolean begin(int type)
+	{
+		if (broken)
+			return false;
+		long now = System.nanoTime() ;
+		try
+		{
+			out.writeByte(type) ;
+			writeVarLong(out, (now - lastNanos) / 1000) ;
+		}
+		catch (IOException e)
+		{
+			broken = true ;
+		}
+		lastNanos = now ;
+		return !broken;
+	}
+	
+	/**
+	 * Writes a text as its length and UTF-8 bytes.
+	 * @param text the text
+	 */
+	private void writeText(String text)
+	{
+		writeBytes(text.getBytes(StandardCharsets.UTF_8)) ;
+	}
+	
+	/**
+	 * Writes bytes preceded by their count.
+	 * @param bytes the bytes
+	 */
+	private void writeBytes(byte[] bytes)
+	{
+		try
+		{
+			writeVarLong(out, bytes.length) ;
+			out.write(bytes) ;
+		}
+		catch (IOException e)
+		{
+			broken = true ;
+		}
+	}
+	
+	/**
+	 * Pushes the buffered trace to the file.
+	 */
+	private void flush()
+	{
+		try
+		{
+			out.flush() ;
+		}
+		catch (IOException e)
+		{
+			broken = true ;
+		}
+	}
+	
+	/**
+	 * Writes a non-negative number in as few bytes as it needs, 7 bits per byte.
+	 * @param out the stream
+	 * @param n the number
+	 * @throws IOException if the stream can't be written
+	 * @precondition n >= 0
+	 */
+	static void writeVarLong(DataOutput out, long n) throws IOException
+	{
+		while ((n & ~0x7FL) != 0)
+		{
+			out.writeByte((int) (n & 0x7F) | 0x80) ;
+			n >>>= 7 ;
+		}
+		out.writeByte((int) n) ;
+	}
+	
+	/**
+	 * Reads a number written by writeVarLong.
+	 * @param in the stream
+	 * @return the number
+	 * @throws IOException if the stream ends or can't be read
+	 */
+	static long readVarLong(DataInput in) throws IOException
+	{
+		long n = 0 ;
+		for (int shift = 0; shift < 64; shift += 7)
+		{
+			int b = in.readUnsignedByte() ;
+			n |= (long) (b & 0x7F) << shift ;
+			if ((b & 0x80) == 0)
+				return n;
+		}
+		throw new IOException("Malformed number in trace!");
+	}
+}
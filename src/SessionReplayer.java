@@ -0,0 +1,361 @@
+import java.io.* ;
+import java.nio.ByteBuffer ;
+import java.nio.charset.StandardCharsets ;
+import java.nio.file.* ;
+import java.util.* ;
+import java.util.concurrent.Executor ;
+
+/**
+ * Feeds a trace captured by a SessionRecorder to a new headless ControlHub, checking that the hub
+ * says exactly what it said when the trace was captured, and measuring how long each event takes.
+ * Replaying a captured trace as fast as possible turns real traffic into a benchmark.
+ * The hub starts from the mail center state stored in the trace, and its login throttle and deposit
+ * guard follow the trace's clock rather than the real one, so they decide as they did when it was captured.
+ */
+public class SessionReplayer
+{
+	private final ArrayList<Event> events ;
+	private long startMillis ;
+	private byte[] state ;
+	
+	/**
+	 * Constructs a replayer of a trace file.
+	 * @param file the trace file
+	 * @throws IOException if the file can't be read or isn't a trace
+	 */
+	public SessionReplayer(Path file) throws IOException
+	{
+		events = new ArrayList<Event>() ;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file))))
+		{
+			int version ;
+			if (in.readInt() != SessionRecorder.MAGIC || (version = in.readShort()) < 1 || version > SessionRecorder.VERSION)
+				throw new IOException("Not a session trace: " + file);
+			startMillis = in.readLong() ;
+			state = null ;
+			if (version >= 2)
+			{
+				state = new byte[(int) SessionRecorder.readVarLong(in)] ;
+				in.readFully(state) ;
+			}
+			int type ;
+			while ((type = in.read()) >= 0)
+			{
+				long delay = SessionRecorder.readVarLong(in) ;
+				byte[] payload = null ;
+				if (type == SessionRecorder.DIAL || type == SessionRecorder.SPEECH
+						|| type == SessionRecorder.AUDIO || type == SessionRecorder.OUTPUT)
+				{
+					payload = new byte[(int) SessionRecorder.readVarLong(in)] ;
+					in.readFully(payload) ;
+				}
+				events.add(new Event(type, delay, payload)) ;
+			}
+		}
+		catch (EOFException e)
+		{
+			throw new IOException("Session trace is cut short: " + file, e);
+		}
+	}
+	
+	/**
+	 * Gets the number of user events in the trace.
+	 * @return the number of events, not counting the hub's outputs
+	 */
+	public int eventCount()
+	{
+		int n = 0 ;
+		for (Event e: events)
+			if (e.type != SessionRecorder.OUTPUT)
+				n++ ;
+		return n;
+	}
+	
+	/**
+	 * Replays the trace into a new hub over a mail center restored from the trace.
+	 * @param originalSpeed true to wait between events as long as the user did, false to go as fast as possible
+	 * @return the report of the replay
+	 * @throws IOException if the mail center state in the trace can't be read
+	 */
+	public Report replay(boolean originalSpeed) throws IOException
+	{
+		MailCenter c = new MailCenter() ;
+		restore(c) ;
+		HeadlessPhone p = new HeadlessPhone() ;
+		DepositQueue d = new DepositQueue(c) ;
+		ControlHub h = new ControlHub(c, p, d, new AdmissionControl(d), new TimingWheel()) ;
+		h.setDispatcher(new 
+			Executor()
+			{
+				public void execute(Runnable r)
+				{
+					r.run() ;
+				}
+			}) ;
+		final long[] traceMillis = { startMillis } ;
+		h.setLoginThrottle(new 
+			LoginThrottle()
+			{
+				@Override
+				public boolean tryAttempt(String extension, int line)
+				{
+					return tryAttempt(extension, line, traceMillis[0]);
+				}
+			}) ;
+		h.setDepositGuard(new 
+			DepositGuard()
+			{
+				@Override
+				public boolean allowDeposit(String extension, int line)
+				{
+					return allowDeposit(extension, line, traceMillis[0]);
+				}
+				
+				@Override
+				public void recordDeposit(String extension, int line)
+				{
+					recordDeposit(extension, line, traceMillis[0]) ;
+				}
+			}) ;
+		p.takeSpoken() ;
+		
+		Report r = new Report() ;
+		long elapsedMicros = 0 ;
+		int i = 0 ;
+		while (i < events.size())
+		{
+			Event e = events.get(i++) ;
+			elapsedMicros += e.delay ;
+			if (e.type == SessionRecorder.OUTPUT)
+			{
+				r.mismatches.add("Output before any event: " + e.text()) ;
+				continue ;
+			}
+			if (originalSpeed)
+				pause(e.delay) ;
+			traceMillis[0] = startMillis + elapsedMicros / 1000 ;
+			
+			long start = System.nanoTime() ;
+			apply(h, e) ;
+			h.awaitPendingPassword() ;
+			r.latencies.add(System.nanoTime() - start) ;
+			if (e.type == SessionRecorder.HANG_UP || e.type == SessionRecorder.TIME_OUT)
+				d.awaitStored() ;
+			
+			ArrayList<String> expected = new ArrayList<String>() ;
+			while (i < events.size() && events.get(i).type == SessionRecorder.OUTPUT)
+			{
+				elapsedMicros += events.get(i).delay ;
+				expected.add(events.get(i++).text()) ;
+			}
+			List<String> actual = p.takeSpoken() ;
+			if (!expected.equals(actual))
+				r.mismatches.add("Event " + r.latencies.size() + " (" + e + "): expected " + expected + " but was " + actual) ;
+		}
+		return r;
+	}
+	
+	/**
+	 * Fills a mail center with the mailboxes and distribution lists the trace starts from.
+	 * A trace without a state starts from an empty mail center.
+	 * @param c the empty mail center
+	 * @throws IOException if the state can't be read
+	 */
+	@SuppressWarnings("unchecked")
+	private void restore(MailCenter c) throws IOException
+	{
+		if (state == null)
+			return;
+		try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(state)))
+		{
+			Map<String, String[]> groups = (Map<String, String[]>) in.readObject() ;
+			int count = in.readInt() ;
+			for (int i = 0; i < count; i++)
+			{
+				byte[] copy = (byte[]) in.readObject() ;
+				try (ObjectInputStream m = new ObjectInputStream(new ByteArrayInputStream(copy)))
+				{
+					c.add((Mailbox) m.readObject()) ;
+				}
+			}
+			for (Map.Entry<String, String[]> e: groups.entrySet())
+				c.addGroup(e.getKey(), Arrays.asList(e.getValue())) ;
+		}
+		catch (ClassNotFoundException | ClassCastException e)
+		{
+			throw new IOException("Mail center state in the trace can't be read!", e);
+		}
+	}
+	
+	/**
+	 * Feeds one user event to the hub.
+	 * @param h the hub
+	 * @param e the event
+	 */
+	private static void apply(ControlHub h, Event e)
+	{
+		switch (e.type)
+		{
+			case SessionRecorder.DIAL:
+				h.dial(e.text()) ;
+				break ;
+			case SessionRecorder.SPEECH:
+				h.record(e.text()) ;
+				break ;
+			case SessionRecorder.AUDIO:
+				h.record(ByteBuffer.wrap(e.payload)) ;
+				break ;
+			case SessionRecorder.HANG_UP:
+				h.hangUp() ;
+				break ;
+			case SessionRecorder.TIME_OUT:
+				h.timeOut() ;
+				break ;
+		}
+	}
+	
+	/**
+	 * Waits as long as the user did between two events.
+	 * @param micros the wait in microseconds
+	 */
+	private static void pause(long micros)
+	{
+		try
+		{
+			Thread.sleep(micros / 1000, (int) (micros % 1000) * 1000) ;
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt() ;
+		}
+	}
+	
+	/**
+	 * Replays a trace file as fast as possible, or at its original speed with --original-speed,
+	 * and prints the report.
+	 * @param args the trace file, optionally followed by --original-speed
+	 * @throws IOException if the trace can't be read
+	 */
+	public static void main(String[] args) throws IOException
+	{
+		SessionReplayer r = new SessionReplayer(Paths.get(args[0])) ;
+		Report report = r.replay(args.length > 1 && args[1].equals("--original-speed")) ;
+		System.out.println(report) ;
+		for (String m: report.getMismatches())
+			System.out.println(m) ;
+	}
+	
+	/**
+	 * The outcome of a replay: the events whose output differed from the trace, and the time each event took.
+	 */
+	public static class Report
+	{
+		private final ArrayList<String> mismatches = new ArrayList<String>() ;
+		private final ArrayList<Long> latencies = new ArrayList<Long>() ;
+		
+		/**
+		 * Gets the number of events replayed.
+		 * @return the number of events
+		 */
+		public int getEventCount()
+		{
+			return latencies.size();
+		}
+		
+		/**
+		 * Checks whether the hub said the same as in the trace after every event.
+		 * @return true if there was no mismatch
+		 */
+		public boolean matched()
+		{
+			return mismatches.isEmpty();
+		}
+		
+		/**
+		 * Gets a description of every event whose output differed from the trace.
+		 * @return the mismatches, in order
+		 */
+		public List<String> getMismatches()
+		{
+			return Collections.unmodifiableList(mismatches);
+		}
+		
+		/**
+		 * Gets a percentile of the time events took.
+		 * @param p the percentile, between 0 and 100
+		 * @return the time in nanoseconds, or 0 if no event was replayed
+		 * @precondition 0 <= p && p <= 100
+		 */
+		public long latencyPercentile(double p)
+		{
+			assert(0 <= p && p <= 100) : "Percentile must be between 0 and 100!" ;
+			if (latencies.isEmpty())
+				return 0;
+			long[] sorted = new long[latencies.size()] ;
+			for (int i = 0; i < sorted.length; i++)
+				sorted[i] = latencies.get(i) ;
+			Arrays.sort(sorted) ;
+			return sorted[(int) Math.min(sorted.length - 1, Math.round(p / 100 * (sorted.length - 1)))];
+		}
+		
+		/**
+		 * Gets the total time the events took, without the waits between them.
+		 * @return the time in nanoseconds
+		 */
+		public long getTotalNanos()
+		{
+			long total = 0 ;
+			for (long l: latencies)
+				total += l ;
+			return total;
+		}
+		
+		@Override
+		public String toString()
+		{
+			return getEventCount() + " events, " + mismatches.size() + " mismatches, latency p50 "
+					+ latencyPercentile(50) / 1000 + " us, p99 " + latencyPercentile(99) / 1000
+					+ " us, max " + latencyPercentile(100) / 1000 + " us";
+		}
+	}
+	
+	/**
+	 * One event of a trace.
+	 */
+	private static class Event
+	{
+		private final int type ;
+		private final long delay ;
+		private final byte[] payload ;
+		
+		private Event(int type, long delay, byte[] payload)
+		{
+			this.type = type ;
+			this.delay = delay ;
+			this.payload = payload ;
+		}
+		
+		private String text()
+		{
+			return new String(payload, StandardCharsets.UTF_8);
+		}
+		
+		@Override
+		public String toString()
+		{
+			switch (type)
+			{
+				case SessionRecorder.DIAL:
+					return "dial " + text();
+				case SessionRecorder.SPEECH:
+					return "speech";
+				case SessionRecorder.AUDIO:
+					return "audio " + payload.length + " bytes";
+				case SessionRecorder.HANG_UP:
+					return "hang up";
+				default:
+					return "time out";
+			}
+		}
+	}
+}
@@ -0,0 +1,203 @@
+import java.util.* ;
+
+/**
+ * A mail center whose mailboxes are partitioned across several shard mail centers by a consistent
+ * hash ring on the extension number. Every operation on a mailbox is routed to the shard owning it.
+ * Distribution lists, retention, text indexes, statistics, events, and message storage tiers stay
+ * with this front center, which sees every change; the shards only hold the mailboxes, and pin them
+ * and log their arrival and departure to this center's replicas.
+ * All shards live in this process: a shard is a MailCenter object, not a remote node. Forwarded
+ * copies share one MessageBody and the hub makes many small calls per key press, which only work
+ * in shared memory; shards in other processes would need their own protocol and are not supported.
+ */
+public class ShardedMailCenter extends MailCenter
+{
+	private final HashRing ring ;
+	private final TreeMap<String, MailCenter> shards ;
+	private ReplicationLog replication ;
+	
+	/**
+	 * Constructs a sharded mail center with no shard. Add a shard before adding mailboxes.
+	 */
+	public ShardedMailCenter()
+	{
+		ring = new HashRing() ;
+		shards = new TreeMap<String, MailCenter>() ;
+	}
+	
+	/**
+	 * Adds a shard and moves to it only the mailboxes it now owns.
+	 * @param name the name of the shard
+	 * @param shard the mail center holding the shard's mailboxes
+	 * @return the number of mailboxes moved
+	 * @precondition !ring.contains(name) && shard.size() == 0
+	 */
+	public synchronized int addShard(String name, MailCenter shard)
+	{
+		assert(!ring.contains(name) && shard.size() == 0) : "Shard already exists or isn't empty!" ;
+		shard.stopIndexing() ;
+		shard.setReplicationLog(replication) ;
+		ring.add(name) ;
+		shards.put(name, shard) ;
+		int moved = 0 ;
+		for (Map.Entry<String, MailCenter> e: shards.entrySet())
+			if (!e.getKey().equals(name))
+				for (String extension: e.getValue().getExtensions())
+					if (ring.nodeFor(extension).equals(name))
+					{
+						shard.add(e.getValue().remove(extension)) ;
+						moved++ ;
+					}
+		return moved;
+	}
+	
+	/**
+	 * Removes a shard and hands each of its mailboxes to its new owner.
+	 * @param name the name of the shard
+	 * @return the removed shard, now empty
+	 * @precondition ring.contains(name) && shards.size() > 1
+	 */
+	public synchronized MailCenter removeShard(String name)
+	{
+		assert(ring.contains(name) && shards.size() > 1) : "Shard doesn't exist or is the last one!" ;
+		ring.remove(name) ;
+		MailCenter shard = shards.remove(name) ;
+		for (String extension: shard.getExtensions())
+			shards.get(ring.nodeFor(extension)).add(shard.remove(extension)) ;
+		shard.setReplicationLog(null) ;
+		return shard;
+	}
+	
+	/**
+	 * Gets the name of the shard owning an extension number.
+	 * @param extension the extension number
+	 * @return the shard name
+	 * @precondition shards.size() > 0
+	 */
+	public synchronized String shardOf(String extension)
+	{
+		return ring.nodeFor(extension);
+	}
+	
+	/**
+	 * Gets the shard owning an extension number.
+	 * @param extension the extension number
+	 * @return the shard
+	 */
+	private MailCenter owner(String extension)
+	{
+		return shards.get(ring.nodeFor(extension));
+	}
+	
+	@Override
+	public synchronized void setReplicationLog(ReplicationLog log)
+	{
+		super.setReplicationLog(log) ;
+		replication = log ;
+		for (MailCenter shard: shards.values())
+			shard.setReplicationLog(log) ;
+	}
+	
+	@Override
+	protected void pin(String extension)
+	{
+		owner(extension).pin(extension) ;
+	}
+	
+	@Override
+	protected void unpin(String extension)
+	{
+		owner(extension).unpin(extension) ;
+	}
+	
+	@Override
+	public synchronized int size()
+	{
+		int n = 0 ;
+		for (MailCenter shard: shards.values())
+			n += shard.size() ;
+		return n;
+	}
+	
+	@Override
+	public synchronized void add(String extension, Credential credential)
+	{
+		owner(extension).add(extension, credential) ;
+		indexMailbox(owner(extension).get(extension)) ;
+	}
+	
+	@Override
+	public synchronized void add(Mailbox m)
+	{
+		owner(m.getExtension()).add(m) ;
+		indexMailbox(m) ;
+	}
+	
+	@Override
+	public synchronized Mailbox remove(String extension)
+	{
+		unindexMailbox(extension) ;
+		return owner(extension).remove(extension);
+	}
+	
+	@Override
+	synchronized Map<String, byte[]> copyMailboxes(Collection<String> wanted)
+	{
+		HashMap<String, byte[]> copies = new HashMap<String, byte[]>() ;
+		for (MailCenter shard: shards.values())
+			copies.putAll(shard.copyMailboxes(wanted)) ;
+		return copies;
+	}
+	
+	@Override
+	public synchronized List<String> getExtensions()
+	{
+		ArrayList<String> list = new ArrayList<String>() ;
+		for (MailCenter shard: shards.values())
+			list.addAll(shard.getExtensions()) ;
+		Collections.sort(list) ;
+		return list;
+	}
+	
+	@Override
+	public synchronized List<String> getExtensionsWithPrefix(String prefix)
+	{
+		ArrayList<String> list = new ArrayList<String>() ;
+		for (MailCenter shard: shards.values())
+			list.addAll(shard.getExtensionsWithPrefix(prefix)) ;
+		Collections.sort(list) ;
+		return list;
+	}
+	
+	@Override
+	public synchronized List<String> getExtensionsBetween(String from, String to)
+	{
+		ArrayList<String> list = new ArrayList<String>() ;
+		for (MailCenter shard: shards.values())
+			list.addAll(shard.getExtensionsBetween(from, to)) ;
+		Collections.sort(list) ;
+		return list;
+	}
+	
+	@Override
+	public synchronized boolean hasExtensionPrefix(String prefix)
+	{
+		for (MailCenter shard: shards.values())
+			if (shard.hasExtensionPrefix(prefix))
+				return true;
+		return false;
+	}
+	
+	@Override
+	public synchronized boolean checkMailbox(String extension)
+	{
+		return !shards.isEmpty() && owner(extension).checkMailbox(extension);
+	}
+	
+	@Override
+	public synchronized Mailbox get(String extension)
+	{
+		assert(checkMailbox(extension)) : "Mailbox doesn't exist!" ;
+		return owner(extension).get(extension);
+	}
+}
@@ -1,14 +1,26 @@
 import java.awt.* ;
 import java.awt.event.* ;
+import java.nio.ByteBuffer ;
+import java.util.Iterator ;
+import java.util.Map ;
+import java.util.TreeMap ;
+import javax.sound.sampled.* ;
 import javax.swing.* ;
 
 /**
  * Presents a phone GUI for the voicemail system.
  */
-public class Telephone
+public class Telephone implements Phone
 {
 	private ControlHub hub ;
 	private final JTextArea speakerField ;
+	private final JLabel lamp ;
+	private final TreeMap<String, Integer> waiting ;
+	private volatile Thread player ;
+	private volatile boolean capturing ;
+	
+	private static final AudioFormat AUDIO_FORMAT = new AudioFormat(AudioClip.SAMPLE_RATE, 16, 1, true, false) ;
+	private static final int FRAME_BYTES = 320 ;
 	
 	/**
 	 * Constructs a telephone with a speaker, keypad, and microphone.
@@ -20,6 +32,9 @@ public class Telephone
 		speakerPanel.add(new JLabel("Speaker:"), BorderLayout.NORTH) ;
 		speakerField = new JTextArea(10, 25) ;
 		speakerPanel.add(speakerField, BorderLayout.CENTER) ;
+		lamp = new JLabel("Message waiting: none") ;
+		waiting = new TreeMap<String, Integer>() ;
+		speakerPanel.add(lamp, BorderLayout.SOUTH) ;
 		
 		String keyLabels = "123456789*0#" ;
 		JPanel keyPanel = new JPanel() ;
@@ -62,8 +77,22 @@ public class Telephone
 				}
 			}) ;
 		
+		final JToggleButton audioButton = new JToggleButton("Record audio") ;
+		audioButton.addActionListener(new 
+			ActionListener()
+			{
+				public void actionPerformed(ActionEvent event)
+				{
+					if (audioButton.isSelected())
+						startCapture(audioButton) ;
+					else
+						capturing = false ;
+				}
+			}) ;
+		
 		JPanel buttonPanel = new JPanel() ;
 		buttonPanel.add(speechButton) ;
+		buttonPanel.add(audioButton) ;
 		buttonPanel.add(hangupButton) ;
 		
 		JPanel microphonePanel = new JPanel() ;
@@ -91,6 +120,109 @@ public class Telephone
 		speakerField.setText(output) ;
 	}
 	
+	/**
+	 * Lights the message-waiting lamp for a mailbox with new messages, or turns it off for one without.
+	 * Must be called on the event dispatch thread.
+	 * @param extension the extension number of the mailbox
+	 * @param newCount the number of new messages waiting
+	 */
+	public void showMessageWaiting(String extension, int newCount)
+	{
+		if (newCount > 0)
+			waiting.put(extension, newCount) ;
+		else
+			waiting.remove(extension) ;
+		
+		StringBuilder text = new StringBuilder("Message waiting:") ;
+		for (Map.Entry<String, Integer> e: waiting.entrySet())
+			text.append(" ").append(e.getKey()).append(" (").append(e.getValue()).append(")") ;
+		lamp.setText(waiting.isEmpty() ? "Message waiting: none" : text.toString()) ;
+	}
+	
+	/**
+	 * Plays recorded audio through the speaker. Playback starts with the first chunk right away and
+	 * streams the rest chunk by chunk; any audio still playing is stopped first.
+	 * @param clip the audio to be played
+	 */
+	public void play(final AudioClip clip)
+	{
+		player = new Thread(new 
+			Runnable()
+			{
+				public void run()
+				{
+					try (SourceDataLine line = AudioSystem.getSourceDataLine(AUDIO_FORMAT))
+					{
+						line.open(AUDIO_FORMAT) ;
+						line.start() ;
+						Iterator<ByteBuffer> chunks = clip.chunks() ;
+						byte[] buffer = new byte[AudioClip.CHUNK_BYTES] ;
+						while (chunks.hasNext() && player == Thread.currentThread())
+						{
+							ByteBuffer chunk = chunks.next() ;
+							int n = chunk.remaining() ;
+							chunk.get(buffer, 0, n) ;
+							line.write(buffer, 0, n) ;
+						}
+						line.drain() ;
+					}
+					catch (LineUnavailableException | IllegalArgumentException e)
+					{
+						return;
+					}
+				}
+			}, "speaker") ;
+		player.setDaemon(true) ;
+		player.start() ;
+	}
+	
+	/**
+	 * Captures audio from the microphone and sends it to the hub frame by frame until the button is released.
+	 * @param button the button controlling the capture
+	 */
+	private void startCapture(final JToggleButton button)
+	{
+		final TargetDataLine line ;
+		try
+		{
+			line = AudioSystem.getTargetDataLine(AUDIO_FORMAT) ;
+			line.open(AUDIO_FORMAT) ;
+		}
+		catch (LineUnavailableException | IllegalArgumentException e)
+		{
+			button.setSelected(false) ;
+			speak("No microphone is available\n") ;
+			return;
+		}
+		
+		capturing = true ;
+		line.start() ;
+		Thread t = new Thread(new 
+			Runnable()
+			{
+				public void run()
+				{
+					while (capturing)
+					{
+						byte[] frame = new byte[FRAME_BYTES] ;
+						final int n = line.read(frame, 0, frame.length) ;
+						final ByteBuffer b = ByteBuffer.wrap(frame, 0, n) ;
+						SwingUtilities.invokeLater(new 
+							Runnable()
+							{
+								public void run()
+								{
+									hub.record(b) ;
+								}
+							}) ;
+					}
+					line.close() ;
+				}
+			}, "microphone") ;
+		t.setDaemon(true) ;
+		t.start() ;
+	}
+	
 	/**
 	 * Assigns ControlHub input to ControlHub field
 	 * @param h the ControlHub object
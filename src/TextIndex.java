@@ -0,0 +1,312 @@
+import java.util.* ;
+
+/**
+ * An inverted index from words to the documents containing them, such as messages or greetings.
+ * A document is identified by the extension of its mailbox and a number, e.g. the message id.
+ * The index is updated one document at a time and answers word and phrase queries, for one mailbox
+ * or all of them, by looking only at the postings of the queried words.
+ */
+public class TextIndex
+{
+	private final HashMap<String, Postings> postings ;
+	private final HashMap<String, HashMap<Long, String[]>> documents ;
+	private int documentCount ;
+	
+	/**
+	 * Constructs an empty index.
+	 */
+	public TextIndex()
+	{
+		postings = new HashMap<String, Postings>() ;
+		documents = new HashMap<String, HashMap<Long, String[]>>() ;
+		documentCount = 0 ;
+	}
+	
+	/**
+	 * Splits a text into lower case words, dropping punctuation.
+	 * @param text the text
+	 * @return the words, in order
+	 */
+	public static String[] tokenize(String text)
+	{
+		ArrayList<String> words = new ArrayList<String>() ;
+		int start = -1 ;
+		for (int i = 0; i <= text.length(); i++)
+		{
+			boolean letter = i < text.length() && Character.isLetterOrDigit(text.charAt(i)) ;
+			if (letter && start < 0)
+				start = i ;
+			else if (!letter && start >= 0)
+			{
+				words.add(text.substring(start, i).toLowerCase()) ;
+				start = -1 ;
+			}
+		}
+		return words.toArray(new String[words.size()]);
+	}
+	
+	/**
+	 * Gets the number of documents in the index.
+	 * @return the number of documents
+	 */
+	public int size()
+	{
+		return documentCount;
+	}
+	
+	/**
+	 * Gets the number of different words in the index.
+	 * @return the number of words
+	 */
+	public int wordCount()
+	{
+		return postings.size();
+	}
+	
+	/**
+	 * Adds a document, replacing any document with the same extension and number.
+	 * @param extension the extension of the mailbox holding the document
+	 * @param id the number of the document in the mailbox
+	 * @param text the content of the document
+	 */
+	public void add(String extension, long id, String text)
+	{
+		remove(extension, id) ;
+		String[] words = tokenize(text) ;
+		HashMap<String, ArrayList<Integer>> positions = new HashMap<String, ArrayList<Integer>>() ;
+		for (int i = 0; i < words.length; i++)
+		{
+			ArrayList<Integer> list = positions.get(words[i]) ;
+			if (list == null)
+			{
+				list = new ArrayList<Integer>() ;
+				positions.put(words[i], list) ;
+			}
+			list.add(i) ;
+		}
+		
+		for (Map.Entry<String, ArrayList<Integer>> e: positions.entrySet())
+		{
+			Postings p = postings.get(e.getKey()) ;
+			if (p == null)
+			{
+				p = new Postings() ;
+				postings.put(e.getKey(), p) ;
+			}
+			int[] at = new int[e.getValue().size()] ;
+			for (int i = 0; i < at.length; i++)
+				at[i] = e.getValue().get(i) ;
+			p.add(extension, id, at) ;
+		}
+		
+		HashMap<Long, String[]> mailbox = documents.get(extension) ;
+		if (mailbox == null)
+		{
+			mailbox = new HashMap<Long, String[]>() ;
+			documents.put(extension, mailbox) ;
+		}
+		mailbox.put(id, positions.keySet().toArray(new String[positions.size()])) ;
+		documentCount++ ;
+	}
+	
+	/**
+	 * Removes a document.
+	 * @param extension the extension of the mailbox holding the document
+	 * @param id the number of the document in the mailbox
+	 * @return true if the document was in the index
+	 */
+	public boolean remove(String extension, long id)
+	{
+		HashMap<Long, String[]> mailbox = documents.get(extension) ;
+		String[] words = mailbox == null ? null : mailbox.remove(id) ;
+		if (words == null)
+			return false;
+		if (mailbox.isEmpty())
+			documents.remove(extension) ;
+		for (String w: words)
+		{
+			Postings p = postings.get(w) ;
+			p.remove(extension, id) ;
+			if (p.count == 0)
+				postings.remove(w) ;
+		}
+		documentCount-- ;
+		return true;
+	}
+	
+	/**
+	 * Removes every document of a mailbox.
+	 * @param extension the extension of the mailbox
+	 */
+	public void removeAll(String extension)
+	{
+		HashMap<Long, String[]> mailbox = documents.get(extension) ;
+		if (mailbox != null)
+			for (Long id: new ArrayList<Long>(mailbox.keySet()))
+				remove(extension, id) ;
+	}
+	
+	/**
+	 * Finds the documents containing all the words of a query, in any order.
+	 * @param extension the extension of the mailbox to search, or null to search every mailbox
+	 * @param query the words
+	 * @return the matching documents, by extension and then by number
+	 */
+	public List<Hit> search(String extension, String query)
+	{
+		return find(extension, tokenize(query), false);
+	}
+	
+	/**
+	 * Finds the documents containing the words of a query next to each other, in the same order.
+	 * @param extension the extension of the mailbox to search, or null to search every mailbox
+	 * @param phrase the words
+	 * @return the matching documents, by extension and then by number
+	 */
+	public List<Hit> searchPhrase(String extension, String phrase)
+	{
+		return find(extension, tokenize(phrase), true);
+	}
+	
+	/**
+	 * Intersects the postings of the words, starting from the rarest one.
+	 * @param extension the extension of the mailbox to search, or null to search every mailbox
+	 * @param words the words of the query
+	 * @param phrase true if the words must be next to each other, in order
+	 * @return the matching documents
+	 */
+	private List<Hit> find(String extension, String[] words, boolean phrase)
+	{
+		ArrayList<Hit> hits = new ArrayList<Hit>() ;
+		if (words.length == 0)
+			return hits;
+		Postings[] lists = new Postings[words.length] ;
+		Postings rarest = null ;
+		for (int i = 0; i < words.length; i++)
+		{
+			lists[i] = postings.get(words[i]) ;
+			if (lists[i] == null)
+				return hits;
+			if (rarest == null || lists[i].count < rarest.count)
+				rarest = lists[i] ;
+		}
+		
+		Collection<String> mailboxes = extension != null ? Collections.singleton(extension)
+				: new TreeSet<String>(rarest.byMailbox.keySet()) ;
+		for (String ext: mailboxes)
+		{
+			TreeMap<Long, int[]> candidates = rarest.byMailbox.get(ext) ;
+			if (candidates == null)
+				continue ;
+			for (Long id: candidates.keySet())
+				if (matches(lists, ext, id, phrase))
+					hits.add(new Hit(ext, id)) ;
+		}
+		return hits;
+	}
+	
+	/**
+	 * Checks if a document contains all the words, next to each other if needed.
+	 * @param lists the postings of the words, in query order
+	 * @param extension the extension of the mailbox holding the document
+	 * @param id the number of the document
+	 * @param phrase true if the words must be next to each other, in order
+	 * @return true if the document matches
+	 */
+	private static boolean matches(Postings[] lists, String extension, long id, boolean phrase)
+	{
+		int[][] at = new int[lists.length][] ;
+		for (int i = 0; i < lists.length; i++)
+		{
+			at[i] = lists[i].get(extension, id) ;
+			if (at[i] == null)
+				return false;
+		}
+		if (!phrase)
+			return true;
+		for (int start: at[0])
+		{
+			int i = 1 ;
+			while (i < at.length && Arrays.binarySearch(at[i], start + i) >= 0)
+				i++ ;
+			if (i == at.length)
+				return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * A document matching a query.
+	 */
+	public static class Hit
+	{
+		private final String extension ;
+		private final long id ;
+		
+		private Hit(String extension, long id)
+		{
+			this.extension = extension ;
+			this.id = id ;
+		}
+		
+		/**
+		 * Gets the extension of the mailbox holding the document.
+		 * @return the extension number
+		 */
+		public String getExtension()
+		{
+			return extension;
+		}
+		
+		/**
+		 * Gets the number of the document in the mailbox, e.g. the message id.
+		 * @return the document number
+		 */
+		public long getId()
+		{
+			return id;
+		}
+		
+		@Override
+		public String toString()
+		{
+			return extension + "#" + id;
+		}
+	}
+	
+	/**
+	 * The documents containing one word, grouped by mailbox, with the word's positions in each.
+	 */
+	private static class Postings
+	{
+		private final HashMap<String, TreeMap<Long, int[]>> byMailbox = new HashMap<String, TreeMap<Long, int[]>>() ;
+		private int count ;
+		
+		private void add(String extension, long id, int[] positions)
+		{
+			TreeMap<Long, int[]> docs = byMailbox.get(extension) ;
+			if (docs == null)
+			{
+				docs = new TreeMap<Long, int[]>() ;
+				byMailbox.put(extension, docs) ;
+			}
+			docs.put(id, positions) ;
+			count++ ;
+		}
+		
+		private void remove(String extension, long id)
+		{
+			TreeMap<Long, int[]> docs = byMailbox.get(extension) ;
+			docs.remove(id) ;
+			if (docs.isEmpty())
+				byMailbox.remove(extension) ;
+			count-- ;
+		}
+		
+		private int[] get(String extension, long id)
+		{
+			TreeMap<Long, int[]> docs = byMailbox.get(extension) ;
+			return docs == null ? null : docs.get(id);
+		}
+	}
+}
@@ -0,0 +1,351 @@
+import java.io.* ;
+import java.nio.charset.StandardCharsets ;
+import java.util.* ;
+import java.util.zip.* ;
+
+/**
+ * Keeps saved message bodies in memory up to a budget, and moves the least recently played ones
+ * to an append-only segment file on disk. A background compactor compresses saved bodies that
+ * are still in memory. Bodies that are compressed or on disk are read back through a small LRU cache.
+ */
+public class TieredStore
+{
+	private final long hotBudget ;
+	private final long cacheBudget ;
+	private final LinkedHashMap<MessageBody, Boolean> hot ;
+	private final LinkedHashMap<MessageBody, String> cache ;
+	private final LinkedHashSet<MessageBody> uncompressed ;
+	private long hotBytes ;
+	private long cacheBytes ;
+	private RandomAccessFile segment ;
+	private Thread compactor ;
+	private long spillCount ;
+	private long compressCount ;
+	private long cacheHitCount ;
+	private long cacheMissCount ;
+	
+	public static final long DEFAULT_HOT_BUDGET = 1024 * 1024 ;
+	public static final long DEFAULT_CACHE_BUDGET = 256 * 1024 ;
+	public static final long COMPACTION_INTERVAL_MILLIS = 5000 ;
+	public static final int COMPACTION_BATCH = 32 ;
+	
+	/**
+	 * Constructs a store with the default memory budgets.
+	 */
+	public TieredStore()
+	{
+		this(DEFAULT_HOT_BUDGET, DEFAULT_CACHE_BUDGET) ;
+	}
+	
+	/**
+	 * Constructs a store with supplied memory budgets.
+	 * @param hotBudget the memory in bytes for saved bodies kept in memory
+	 * @param cacheBudget the memory in bytes for bodies read back from disk or decompressed
+	 * @precondition hotBudget >= 0 && cacheBudget >= 0
+	 */
+	public TieredStore(long hotBudget, long cacheBudget)
+	{
+		assert(hotBudget >= 0 && cacheBudget >= 0) : "Budget can't be negative!" ;
+		this.hotBudget = hotBudget ;
+		this.cacheBudget = cacheBudget ;
+		hot = new LinkedHashMap<MessageBody, Boolean>(16, 0.75f, true) ;
+		cache = new LinkedHashMap<MessageBody, String>(16, 0.75f, true) ;
+		uncompressed = new LinkedHashSet<MessageBody>() ;
+		hotBytes = cacheBytes = 0 ;
+	}
+	
+	/**
+	 * Takes charge of a saved body. It stays in memory until it becomes one of the least recently
+	 * played bodies once the budget is exceeded. Does nothing if the body is already managed.
+	 * @param b the body of a saved message
+	 */
+	public synchronized void admit(MessageBody b)
+	{
+		if (b.getStore() != null)
+			return;
+		b.attach(this) ;
+		hot.put(b, Boolean.TRUE) ;
+		uncompressed.add(b) ;
+		hotBytes += b.residentBytes() ;
+		spillOverBudget() ;
+	}
+	
+	/**
+	 * Gets the content of a managed body, from memory, or decompressed or read from disk through the cache.
+	 * @param b the body
+	 * @return the content
+	 */
+	public synchronized String read(MessageBody b)
+	{
+		String content = b.getHotContent() ;
+		if (content != null)
+		{
+			hot.get(b) ;
+			return content;
+		}
+		
+		content = cache.get(b) ;
+		if (content != null)
+		{
+			cacheHitCount++ ;
+			return content;
+		}
+		
+		cacheMissCount++ ;
+		if (b.getCompressed() != null)
+		{
+			hot.get(b) ;
+			content = inflate(b.getCompressed(), b.length()) ;
+		}
+		else
+		{
+			try
+			{
+				byte[] bytes = new byte[b.getStoredBytes()] ;
+				segment.seek(b.getOffset()) ;
+				segment.readFully(bytes) ;
+				content = b.isStoredCompressed() ? inflate(bytes, b.length()) : new String(bytes, StandardCharsets.UTF_8) ;
+			}
+			catch (IOException e)
+			{
+				throw new UncheckedIOException("Can't read message from disk", e);
+			}
+		}
+		
+		cache.put(b, content) ;
+		cacheBytes += 2L * b.length() ;
+		Iterator<MessageBody> i = cache.keySet().iterator() ;
+		while (cacheBytes > cacheBudget && i.hasNext())
+		{
+			cacheBytes -= 2L * i.next().length() ;
+			i.remove() ;
+		}
+		return content;
+	}
+	
+	/**
+	 * Stops managing a body no message refers to anymore, so nothing here keeps it in memory.
+	 * @param b the body
+	 */
+	public synchronized void forget(MessageBody b)
+	{
+		uncompressed.remove(b) ;
+		if (hot.remove(b) != null)
+			hotBytes -= b.residentBytes() ;
+		if (cache.remove(b) != null)
+			cacheBytes -= 2L * b.length() ;
+	}
+	
+	/**
+	 * Compresses some of the saved bodies still in memory, oldest first.
+	 * Bodies that don't get smaller are left as they are.
+	 * @param budget the maximum number of bodies to look at
+	 * @return the number of bodies compressed
+	 */
+	public synchronized int compact(int budget)
+	{
+		int compressed = 0 ;
+		Iterator<MessageBody> i = uncompressed.iterator() ;
+		while (budget-- > 0 && i.hasNext())
+		{
+			MessageBody b = i.next() ;
+			i.remove() ;
+			if (!hot.containsKey(b) || b.getHotContent() == null)
+				continue;
+			
+			byte[] bytes = deflate(b.getHotContent()) ;
+			if (bytes.length < b.residentBytes())
+			{
+				hotBytes -= b.residentBytes() ;
+				b.compress(bytes) ;
+				hotBytes += b.residentBytes() ;
+				compressCount++ ;
+				compressed++ ;
+			}
+		}
+		return compressed;
+	}
+	
+	/**
+	 * Starts a background thread that compacts saved bodies periodically. Does nothing if already started.
+	 */
+	public synchronized void startCompaction()
+	{
+		if (compactor != null)
+			return;
+		compactor = new Thread(new 
+			Runnable()
+			{
+				public void run()
+				{
+					try
+					{
+						while (true)
+						{
+							Thread.sleep(COMPACTION_INTERVAL_MILLIS) ;
+							while (compact(COMPACTION_BATCH) > 0)
+								Thread.yield() ;
+						}
+					}
+					catch (InterruptedException e)
+					{
+						return;
+					}
+				}
+			}, "message-compactor") ;
+		compactor.setDaemon(true) ;
+		compactor.start() ;
+	}
+	
+	/**
+	 * Gets the memory used by saved bodies kept in memory.
+	 * @return the number of bytes
+	 */
+	public synchronized long getHotBytes()
+	{
+		return hotBytes;
+	}
+	
+	/**
+	 * Gets the number of saved bodies in memory that haven't been looked at by the compactor yet.
+	 * @return the number of bodies waiting to be compacted
+	 */
+	public synchronized int getUncompressedCount()
+	{
+		return uncompressed.size();
+	}
+	
+	/**
+	 * Gets the number of bodies moved to disk so far.
+	 * @return the number of spills
+	 */
+	public synchronized long getSpillCount()
+	{
+		return spillCount;
+	}
+	
+	/**
+	 * Gets the number of bodies compressed so far.
+	 * @return the number of compressions
+	 */
+	public synchronized long getCompressCount()
+	{
+		return compressCount;
+	}
+	
+	/**
+	 * Gets the number of compressed or disk bodies found in the cache.
+	 * @return the number of cache hits
+	 */
+	public synchronized long getCacheHitCount()
+	{
+		return cacheHitCount;
+	}
+	
+	/**
+	 * Gets the number of compressed or disk bodies that had to be decompressed or read from the segment file.
+	 * @return the number of cache misses
+	 */
+	public synchronized long getCacheMissCount()
+	{
+		return cacheMissCount;
+	}
+	
+	/**
+	 * Moves the least recently played bodies to disk until the memory budget is met.
+	 * If the disk can't be written, the bodies simply stay in memory.
+	 */
+	private void spillOverBudget()
+	{
+		Iterator<MessageBody> i = hot.keySet().iterator() ;
+		try
+		{
+			while (hotBytes > hotBudget && i.hasNext())
+			{
+				MessageBody b = i.next() ;
+				boolean wasCompressed = b.getCompressed() != null ;
+				byte[] bytes = wasCompressed ? b.getCompressed() : b.getHotContent().getBytes(StandardCharsets.UTF_8) ;
+				RandomAccessFile s = segment() ;
+				long offset = s.length() ;
+				s.seek(offset) ;
+				s.write(bytes) ;
+				hotBytes -= b.residentBytes() ;
+				b.spill(offset, bytes.length, wasCompressed) ;
+				spillCount++ ;
+				i.remove() ;
+				uncompressed.remove(b) ;
+			}
+		}
+		catch (IOException e)
+		{
+			return;
+		}
+	}
+	
+	/**
+	 * Gets the segment file, creating it the first time a body is moved to disk.
+	 * @return the segment file
+	 */
+	private RandomAccessFile segment() throws IOException
+	{
+		if (segment == null)
+		{
+			File f = File.createTempFile("voicemail", ".seg") ;
+			f.deleteOnExit() ;
+			segment = new RandomAccessFile(f, "rw") ;
+		}
+		return segment;
+	}
+	
+	/**
+	 * Compresses content with the fastest deflate level.
+	 * @param content the content
+	 * @return the compressed bytes
+	 */
+	private static byte[] deflate(String content)
+	{
+		byte[] input = content.getBytes(StandardCharsets.UTF_8) ;
+		Deflater d = new Deflater(Deflater.BEST_SPEED) ;
+		d.setInput(input) ;
+		d.finish() ;
+		ByteArrayOutputStream out = new ByteArrayOutputStream(input.length / 2 + 16) ;
+		byte[] buffer = new byte[512] ;
+		while (!d.finished())
+			out.write(buffer, 0, d.deflate(buffer)) ;
+		d.end() ;
+		return out.toByteArray();
+	}
+	
+	/**
+	 * Decompresses content compressed by deflate().
+	 * @param bytes the compressed bytes
+	 * @param length the length of the content
+	 * @return the content
+	 */
+	private static String inflate(byte[] bytes, int length)
+	{
+		Inflater i = new Inflater() ;
+		i.setInput(bytes) ;
+		ByteArrayOutputStream out = new ByteArrayOutputStream(length) ;
+		byte[] buffer = new byte[512] ;
+		try
+		{
+			while (!i.finished())
+			{
+				int n = i.inflate(buffer) ;
+				if (n == 0 && (i.needsInput() || i.needsDictionary()))
+					throw new UncheckedIOException(new IOException("Compressed message is truncated"));
+				out.write(buffer, 0, n) ;
+			}
+		}
+		catch (DataFormatException e)
+		{
+			throw new UncheckedIOException(new IOException(e));
+		}
+		finally
+		{
+			i.end() ;
+		}
+		return new String(out.toByteArray(), StandardCharsets.UTF_8);
+	}
+}
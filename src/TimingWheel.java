@@ -0,0 +1,175 @@
+import java.awt.event.* ;
+
+/**
+ * A hashed timing wheel. Arming, cancelling, and expiring a timeout are all constant time,
+ * so every call can keep its own inactivity timer. The wheel is advanced by a Swing timer,
+ * hence expired tasks run on the same thread as the phone's key events.
+ */
+public class TimingWheel
+{
+	private final Timeout[] slots ;
+	private final int tickMillis ;
+	private int cursor ;
+	private javax.swing.Timer ticker ;
+	
+	public static final int DEFAULT_TICK_MILLIS = 1000 ;
+	public static final int DEFAULT_SLOTS = 64 ;
+	
+	/**
+	 * Constructs a wheel with the default tick length and number of slots.
+	 */
+	public TimingWheel()
+	{
+		this(DEFAULT_TICK_MILLIS, DEFAULT_SLOTS) ;
+	}
+	
+	/**
+	 * Constructs a wheel with supplied tick length and number of slots.
+	 * @param tick the length of one tick in milliseconds
+	 * @param slotCount the number of slots in the wheel
+	 * @precondition tick > 0 && slotCount > 0
+	 */
+	public TimingWheel(int tick, int slotCount)
+	{
+		assert(tick > 0 && slotCount > 0) : "Tick and slot count must be bigger than 0!" ;
+		tickMillis = tick ;
+		slots = new Timeout[slotCount] ;
+		cursor = 0 ;
+	}
+	
+	/**
+	 * Starts advancing the wheel once per tick. Does nothing if already started.
+	 */
+	public void start()
+	{
+		if (ticker != null)
+			return;
+		ticker = new javax.swing.Timer(tickMillis, new 
+			ActionListener()
+			{
+				public void actionPerformed(ActionEvent event)
+				{
+					advance() ;
+				}
+			}) ;
+		ticker.start() ;
+	}
+	
+	/**
+	 * Stops advancing the wheel.
+	 */
+	public void stop()
+	{
+		if (ticker != null)
+			ticker.stop() ;
+		ticker = null ;
+	}
+	
+	/**
+	 * Arms a timeout that runs a task after the supplied delay, rounded up to whole ticks.
+	 * @param task the task to run when the timeout expires
+	 * @param delayMillis the delay in milliseconds
+	 * @return the armed timeout, which can be cancelled
+	 * @precondition delayMillis >= 0
+	 */
+	public Timeout schedule(Runnable task, long delayMillis)
+	{
+		assert(delayMillis >= 0) : "Delay can't be negative!" ;
+		long ticks = Math.max(1, (delayMillis + tickMillis - 1) / tickMillis) ;
+		Timeout t = new Timeout(task, (ticks - 1) / slots.length) ;
+		t.slot = (int) ((cursor + ticks) % slots.length) ;
+		t.next = slots[t.slot] ;
+		if (t.next != null)
+			t.next.previous = t ;
+		slots[t.slot] = t ;
+		return t;
+	}
+	
+	/**
+	 * Moves the wheel forward by one tick and runs every timeout that expires on it.
+	 * The expired timeouts are taken out of the slot before any of them runs, so a task may cancel
+	 * or arm any timeout, including one of the same slot, without the others being skipped.
+	 */
+	public void advance()
+	{
+		cursor = (cursor + 1) % slots.length ;
+		Timeout t = slots[cursor] ;
+		Timeout expired = null ;
+		Timeout lastExpired = null ;
+		while (t != null)
+		{
+			Timeout next = t.next ;
+			if (t.rounds > 0)
+				t.rounds-- ;
+			else
+			{
+				unlink(t) ;
+				t.expiring = true ;
+				if (lastExpired == null)
+					expired = t ;
+				else
+					lastExpired.next = t ;
+				lastExpired = t ;
+			}
+			t = next ;
+		}
+		
+		while (expired != null)
+		{
+			t = expired ;
+			expired = t.next ;
+			t.next = null ;
+			if (t.expiring)
+			{
+				t.expiring = false ;
+				t.task.run() ;
+			}
+		}
+	}
+	
+	/**
+	 * Removes a timeout from its slot.
+	 * @param t the timeout to be removed
+	 */
+	private void unlink(Timeout t)
+	{
+		if (t.previous != null)
+			t.previous.next = t.next ;
+		else
+			slots[t.slot] = t.next ;
+		if (t.next != null)
+			t.next.previous = t.previous ;
+		t.previous = t.next = null ;
+		t.slot = -1 ;
+	}
+	
+	/**
+	 * A task armed on the wheel.
+	 */
+	public class Timeout
+	{
+		private final Runnable task ;
+		private long rounds ;
+		private int slot ;
+		private Timeout previous ;
+		private Timeout next ;
+		private boolean expiring ;
+		
+		private Timeout(Runnable task, long rounds)
+		{
+			this.task = task ;
+			this.rounds = rounds ;
+		}
+		
+		/**
+		 * Disarms the timeout, even if it expires on the tick being run but hasn't run yet.
+		 * Does nothing if it has already run or been cancelled.
+		 */
+		public void cancel()
+		{
+			if (slot >= 0)
+				unlink(this) ;
+			expiring = false ;
+		}
+	}
+}
@@ -1,14 +1,49 @@
+import java.io.IOException ;
+import java.nio.file.Paths ;
+import javax.swing.SwingUtilities ;
+
 /**
  * This program tests the mail system. A single phone
  * communicates with the program through System.in/System.out.
+ * If a file is given as argument, every call is captured into it as a session trace.
  */
 public class VoicemailSystemTester
 {
-	public static void main(String[] args)
+	public static void main(String[] args) throws IOException
 	{
-		MailCenter c = new MailCenter() ;
-		Telephone p = new Telephone() ;
-		ControlHub h = new ControlHub(c, p) ;
+		TieredStore s = new TieredStore() ;
+		s.startCompaction() ;
+		MailCenter c = new MailCenter(s) ;
+		final Telephone p = new Telephone() ;
+		c.getEventBus().subscribe("message-waiting-lamp", new 
+			MessageWaitingListener()
+			{
+				public void messageWaiting(final MessageWaitingEvent e)
+				{
+					SwingUtilities.invokeLater(new 
+						Runnable()
+						{
+							public void run()
+							{
+								p.showMessageWaiting(e.getExtension(), e.getNewCount()) ;
+							}
+						}) ;
+				}
+				
+				public void eventsMissed(long count)
+				{
+				}
+			}) ;
+		DepositQueue d = new DepositQueue(c) ;
+		TimingWheel w = new TimingWheel() ;
+		w.start() ;
+		ControlHub h = new ControlHub(c, p, d, new AdmissionControl(d), w, new CallDetailLog()) ;
+		if (args.length > 0)
+			h.setSessionRecorder(new SessionRecorder(Paths.get(args[0]), c)) ;
+		DeliveryScheduler ds = new DeliveryScheduler(c) ;
+		ds.start() ;
+		h.setDeliveryScheduler(ds) ;
+		c.startRetention(w) ;
 		p.startSystem(h) ;
 	}
 }
\ No newline at end of file